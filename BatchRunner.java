@@ -0,0 +1,461 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BatchRunner.java
+ *
+ * Headless command mode (--batch [file]): reads one command per line from a file or stdin
+ * instead of walking the menus, for scripted restocks, price changes or replayed orders.
+ *
+ *   login &lt;username&gt; &lt;password&gt;        orders that follow are placed for this user
+ *   admin &lt;username&gt; &lt;password&gt;        allows the item commands that follow
+ *   order &lt;item-id&gt; &lt;quantity&gt;
+ *   add-item &lt;price&gt; &lt;stock&gt; &lt;name...&gt;
+ *   update-item &lt;item-id&gt; name|price|stock &lt;value...&gt;
+ *   delete-item &lt;item-id&gt;
+ *
+ * Blank lines and lines starting with # are skipped. Lines are split on whitespace, with no
+ * prompts and no Scanner. Consecutive orders, and consecutive item writes, are collected into
+ * groups of up to batchSize commands and each group is one transaction: orders through
+ * OrderService.placeBatch, item writes as JDBC batches of the admin menu's statements. If an
+ * item group fails for a reason other than a deadlock, its commands are re-run one per
+ * transaction so only the bad ones fail. A stock change on a hot item reshards it on its own;
+ * delete-item is a soft delete when the ItemPurger is enabled, as in the admin menu.
+ *
+ * One result line per command, in input order ("&lt;line&gt; OK ...", "&lt;line&gt; OUT_OF_STOCK",
+ * "&lt;line&gt; NOT_FOUND" or "&lt;line&gt; ERROR &lt;reason&gt;"), goes through a single large buffer,
+ * followed by a summary line starting with #.
+ */
+final class BatchRunner {
+
+    private static final int OUTPUT_BUFFER_CHARS = 1 << 20;
+
+    private enum Kind { NONE, ORDER, ITEM, RESHARD }
+
+    private static final class Command {
+        final int line;
+        final String op;
+        Kind kind = Kind.NONE;
+        int userId;
+        int itemId;
+        // order quantity, or the stock of add-item / update-item ... stock
+        int quantity;
+        long price;
+        String name;
+        String field;
+        String result;
+
+        Command(int line, String op) {
+            this.line = line;
+            this.op = op;
+        }
+
+        Command fail(String reason) {
+            result = "ERROR " + reason;
+            return this;
+        }
+    }
+
+    private final DataSource ds;
+    private final UserService users;
+    private final OrderService orders;
+    private final StockLedger ledger;
+    private final CatalogCache catalog;
+    private final SearchIndex search;
+    private final StockShards shards;
+    private final ItemPurger purger;
+    private final int batchSize;
+
+    // Who the script is logged in as
+    private int userId = -1;
+    private boolean admin = false;
+
+    private final List<Command> pending = new ArrayList<>();
+    private Kind groupKind = Kind.NONE;
+    private long ok;
+    private long failed;
+
+    /**
+     * @param ledger null if the stock ledger is disabled
+     */
+    BatchRunner(DataSource ds, UserService users, OrderService orders, StockLedger ledger, CatalogCache catalog,
+                SearchIndex search, StockShards shards, ItemPurger purger, int batchSize) {
+        this.ds = ds;
+        this.users = users;
+        this.orders = orders;
+        this.ledger = ledger;
+        this.catalog = catalog;
+        this.search = search;
+        this.shards = shards;
+        this.purger = purger;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Runs every command in the input and writes the results to output (which is flushed, not closed).
+     */
+    void run(BufferedReader input, OutputStream output) throws IOException {
+        long start = System.nanoTime();
+        Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), OUTPUT_BUFFER_CHARS);
+        try {
+            String text;
+            int lineNo = 0;
+            while ((text = input.readLine()) != null) {
+                lineNo++;
+                String line = text.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Command c = parse(lineNo, line);
+                boolean write = c.kind == Kind.ORDER || c.kind == Kind.ITEM;
+                if (pending.size() >= batchSize || c.kind == Kind.RESHARD
+                        || (write && groupKind != Kind.NONE && groupKind != c.kind)) {
+                    flush(out);
+                }
+                if (c.kind == Kind.RESHARD) {
+                    reshard(c);
+                }
+                pending.add(c);
+                if (write) {
+                    groupKind = c.kind;
+                }
+            }
+            flush(out);
+            out.write(String.format("# %d commands in %.2f s: %d ok, %d not ok%n",
+                    ok + failed, (System.nanoTime() - start) / 1e9, ok, failed));
+        } finally {
+            out.flush();
+        }
+    }
+
+    // ========== Parsing (login/admin take effect right away) ==========
+
+    private Command parse(int lineNo, String line) {
+        String[] t = line.split("\\s+", 4);
+        Command c = new Command(lineNo, t[0].toLowerCase());
+        try {
+            switch (c.op) {
+                case "login":
+                    if (t.length != 3) {
+                        return c.fail("usage: login <username> <password>");
+                    }
+                    userId = users.authenticate(t[1], t[2]);
+                    return userId != -1 ? ok(c, "login " + t[1]) : c.fail("Invalid username or password");
+                case "admin":
+                    if (t.length != 3) {
+                        return c.fail("usage: admin <username> <password>");
+                    }
+                    admin = isAdmin(t[1], t[2]);
+                    return admin ? ok(c, "admin " + t[1]) : c.fail("Invalid admin credentials");
+                case "order":
+                    if (t.length != 3) {
+                        return c.fail("usage: order <item-id> <quantity>");
+                    }
+                    if (userId == -1) {
+                        return c.fail("Not logged in (login <username> <password>)");
+                    }
+                    c.userId = userId;
+                    c.itemId = Integer.parseInt(t[1]);
+                    c.quantity = Integer.parseInt(t[2]);
+                    if (c.quantity <= 0) {
+                        return c.fail("Quantity must be positive");
+                    }
+                    c.kind = Kind.ORDER;
+                    return c;
+                case "add-item":
+                    if (t.length != 4) {
+                        return c.fail("usage: add-item <price> <stock> <name...>");
+                    }
+                    c.price = Money.parse(t[1]);
+                    c.quantity = Integer.parseInt(t[2]);
+                    c.name = t[3];
+                    return item(c);
+                case "update-item":
+                    if (t.length != 4) {
+                        return c.fail("usage: update-item <item-id> name|price|stock <value...>");
+                    }
+                    c.itemId = Integer.parseInt(t[1]);
+                    c.field = t[2].toLowerCase();
+                    if ("name".equals(c.field)) {
+                        c.name = t[3];
+                    } else if ("price".equals(c.field)) {
+                        c.price = Money.parse(t[3]);
+                    } else if ("stock".equals(c.field)) {
+                        c.quantity = Integer.parseInt(t[3]);
+                    } else {
+                        return c.fail("Unknown field " + t[2] + " (name, price or stock)");
+                    }
+                    return item(c);
+                case "delete-item":
+                    if (t.length != 2) {
+                        return c.fail("usage: delete-item <item-id>");
+                    }
+                    c.itemId = Integer.parseInt(t[1]);
+                    return item(c);
+                default:
+                    return c.fail("Unknown command " + t[0]);
+            }
+        } catch (NumberFormatException e) {
+            return c.fail("Invalid number: " + e.getMessage());
+        } catch (SQLException e) {
+            return c.fail("Login failed: " + e.getMessage());
+        }
+    }
+
+    private Command item(Command c) {
+        if (!admin) {
+            return c.fail("Admin login required (admin <username> <password>)");
+        }
+        if (!"add-item".equals(c.op) && purger.isDeleted(c.itemId)) {
+            c.result = "NOT_FOUND";
+            return c;
+        }
+        if (("add-item".equals(c.op) || "price".equals(c.field)) && !Money.isValidPrice(c.price)) {
+            return c.fail("Price out of range");
+        }
+        c.kind = "stock".equals(c.field) && shards.isHot(c.itemId) ? Kind.RESHARD : Kind.ITEM;
+        return c;
+    }
+
+    private static Command ok(Command c, String detail) {
+        c.result = "OK " + detail;
+        return c;
+    }
+
+    // Same rules as the admin menu: DB role first, then the fallback credentials
+    private boolean isAdmin(String username, String password) {
+        try {
+            if (users.checkAdmin(username, password) == UserService.AdminCheck.ADMIN) {
+                return true;
+            }
+        } catch (SQLException e) {
+            System.err.println("DB admin-check error (proceeding to fallback): " + e.getMessage());
+        }
+        return users.isFallbackAdmin(username, password);
+    }
+
+    // ========== Execution ==========
+
+    private void flush(Writer out) throws IOException {
+        List<Command> group = new ArrayList<>();
+        for (Command c : pending) {
+            if (c.kind == groupKind && c.result == null) {
+                group.add(c);
+            }
+        }
+        if (groupKind == Kind.ORDER) {
+            placeOrders(group);
+        } else if (groupKind == Kind.ITEM) {
+            writeItems(group);
+        }
+        for (Command c : pending) {
+            if (c.result.startsWith("OK")) {
+                ok++;
+            } else {
+                failed++;
+            }
+            out.write(Integer.toString(c.line));
+            out.write(' ');
+            out.write(c.result);
+            out.write('\n');
+        }
+        pending.clear();
+        groupKind = Kind.NONE;
+    }
+
+    private void placeOrders(List<Command> group) {
+        int n = group.size();
+        int[] userIds = new int[n];
+        int[] itemIds = new int[n];
+        int[] quantities = new int[n];
+        for (int i = 0; i < n; i++) {
+            Command c = group.get(i);
+            userIds[i] = c.userId;
+            itemIds[i] = c.itemId;
+            quantities[i] = c.quantity;
+        }
+        try {
+            OrderService.Result[] results = orders.placeBatch(userIds, itemIds, quantities);
+            for (int i = 0; i < n; i++) {
+                group.get(i).result = results[i].name();
+            }
+        } catch (SQLException e) {
+            System.err.println("Error placing orders (lines " + group.get(0).line + "-" + group.get(n - 1).line
+                    + "), rolled back:");
+            e.printStackTrace();
+            for (Command c : group) {
+                c.fail("rolled back: " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeItems(List<Command> group) {
+        try {
+            writeItemsOnce(group);
+        } catch (SQLException e) {
+            if (group.size() == 1) {
+                group.get(0).fail(e.getMessage());
+                return;
+            }
+            // Find the bad command(s): one transaction each
+            for (Command c : group) {
+                writeItems(Collections.singletonList(c));
+            }
+        }
+    }
+
+    private void writeItemsOnce(List<Command> group) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = ds.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    writeItems(conn, group);
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                    break;
+                } catch (SQLException e) {
+                    OrderService.rollbackQuietly(conn);
+                    if (!OrderService.isRetryable(e) || attempt >= OrderService.MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+            OrderService.backoff(attempt);
+        }
+        afterItemWrites(group);
+    }
+
+    // Runs of updates or hard deletes go out as one JDBC batch each; inserts (for their key) and
+    // soft deletes (two statements) one at a time
+    private void writeItems(Connection conn, List<Command> group) throws SQLException {
+        boolean soft = purger.isEnabled();
+        try (PreparedStatement update = conn.prepareStatement(Sql.ITEM_UPDATE.text);
+             PreparedStatement delete = conn.prepareStatement(Sql.ITEM_DELETE.text);
+             PreparedStatement insert = conn.prepareStatement(Sql.ITEM_INSERT.text, Statement.RETURN_GENERATED_KEYS)) {
+            List<Command> batch = new ArrayList<>();
+            PreparedStatement batchStmt = null;
+            for (Command c : group) {
+                if ("add-item".equals(c.op)) {
+                    executeBatch(batchStmt, batch);
+                    insert.setString(1, c.name);
+                    Money.set(insert, 2, c.price);
+                    insert.setInt(3, c.quantity);
+                    insert.executeUpdate();
+                    try (ResultSet keys = insert.getGeneratedKeys()) {
+                        c.itemId = keys.next() ? keys.getInt(1) : -1;
+                    }
+                    c.result = "OK id " + c.itemId;
+                    continue;
+                }
+                if (soft && "delete-item".equals(c.op)) {
+                    executeBatch(batchStmt, batch);
+                    c.result = purger.softDelete(conn, c.itemId) ? "OK" : "NOT_FOUND";
+                    continue;
+                }
+                PreparedStatement stmt = "delete-item".equals(c.op) ? delete : update;
+                if (stmt != batchStmt) {
+                    executeBatch(batchStmt, batch);
+                    batchStmt = stmt;
+                }
+                if (stmt == delete) {
+                    delete.setInt(1, c.itemId);
+                } else {
+                    // NULL keeps the current value, as in the admin menu's updateItem
+                    if ("name".equals(c.field)) update.setString(1, c.name);
+                    else update.setNull(1, Types.VARCHAR);
+                    if ("price".equals(c.field)) Money.set(update, 2, c.price);
+                    else update.setNull(2, Types.DECIMAL);
+                    if ("stock".equals(c.field)) update.setInt(3, c.quantity);
+                    else update.setNull(3, Types.INTEGER);
+                    update.setInt(4, c.itemId);
+                }
+                stmt.addBatch();
+                batch.add(c);
+            }
+            executeBatch(batchStmt, batch);
+        }
+    }
+
+    private static void executeBatch(PreparedStatement stmt, List<Command> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int[] counts = stmt.executeBatch();
+        for (int i = 0; i < batch.size(); i++) {
+            // SUCCESS_NO_INFO (-2) from a rewritten batch counts as done
+            batch.get(i).result = counts[i] == 0 ? "NOT_FOUND" : "OK";
+        }
+        batch.clear();
+    }
+
+    // Cache, ledger and search index upkeep, as the admin menu does after each write
+    private void afterItemWrites(List<Command> group) {
+        boolean reload = false;
+        for (Command c : group) {
+            if (!c.result.startsWith("OK")) {
+                continue;
+            }
+            if ("add-item".equals(c.op)) {
+                search.put(c.itemId, c.name, null);
+                reload = true;
+            } else if ("delete-item".equals(c.op)) {
+                if (purger.isEnabled()) {
+                    purger.deleted(c.itemId);
+                }
+                invalidateStock(c.itemId);
+                search.remove(c.itemId);
+                shards.forget(c.itemId);
+                reload = true;
+            } else if ("stock".equals(c.field)) {
+                invalidateStock(c.itemId);
+                catalog.setStock(c.itemId, c.quantity);
+            } else {
+                if ("name".equals(c.field)) {
+                    search.rename(c.itemId, c.name);
+                }
+                reload = true;
+            }
+        }
+        if (reload) {
+            catalog.invalidate();
+        }
+    }
+
+    private void reshard(Command c) {
+        try {
+            int total = shards.reshard(c.itemId, shards.shardCount(c.itemId), c.quantity);
+            if (total < 0) {
+                c.result = "NOT_FOUND";
+                return;
+            }
+            invalidateStock(c.itemId);
+            catalog.setStock(c.itemId, total);
+            c.result = "OK";
+        } catch (SQLException e) {
+            c.fail(e.getMessage());
+        }
+    }
+
+    private void invalidateStock(int itemId) {
+        if (ledger != null) {
+            ledger.invalidate(itemId);
+        }
+    }
+}
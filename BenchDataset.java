@@ -0,0 +1,156 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * BenchDataset.java
+ *
+ * Creates the shopping cart schema (same shape as the README script) in a scratch database and
+ * seeds it for benchmarks and load tests. Sizes scale with the requested number of order rows:
+ * items = rows / 10, users = rows / 100 (at least 10 of each).
+ *
+ * Defaults to an in-memory H2 database in MySQL compatibility mode; the H2 jar only needs to be on
+ * the runtime classpath.
+ */
+final class BenchDataset {
+
+    static final String DEFAULT_URL = "jdbc:h2:mem:cartbench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    static final int INITIAL_STOCK = 1_000_000;
+    private static final int BATCH = 5_000;
+
+    final long orders;
+    final int items;
+    final int users;
+
+    BenchDataset(long orders) {
+        this.orders = orders;
+        this.items = (int) Math.max(10, orders / 10);
+        this.users = (int) Math.max(10, orders / 100);
+    }
+
+    static String username(int i) {
+        return "user" + i;
+    }
+
+    static String password(int i) {
+        return "pw" + i;
+    }
+
+    /**
+     * Drops and recreates the tables, fills users/items/orders and brings the schema to
+     * SchemaMigrations.LATEST_VERSION. Ids are 1..users and 1..items.
+     */
+    void install(DataSource ds) throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            try (Statement st = conn.createStatement()) {
+                st.execute("DROP TABLE IF EXISTS schema_version");
+                st.execute("DROP TABLE IF EXISTS orders_archive");
+                st.execute("DROP TABLE IF EXISTS item_stock_shards");
+                st.execute("DROP TABLE IF EXISTS sales_daily");
+                st.execute("DROP TABLE IF EXISTS orders");
+                st.execute("DROP TABLE IF EXISTS items");
+                st.execute("DROP TABLE IF EXISTS users");
+                st.execute("CREATE TABLE users ("
+                        + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                        + "username VARCHAR(100) NOT NULL UNIQUE, "
+                        + "password VARCHAR(255) NOT NULL, "
+                        + "full_name VARCHAR(200), "
+                        + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+                st.execute("CREATE TABLE items ("
+                        + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                        + "sku VARCHAR(64) NULL UNIQUE, "
+                        + "name VARCHAR(200) NOT NULL, "
+                        + "description TEXT, "
+                        + "price DECIMAL(10,2) NOT NULL, "
+                        + "stock INT NOT NULL DEFAULT 0, "
+                        + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+                        + "deleted_at TIMESTAMP NULL)");
+                st.execute("CREATE TABLE orders ("
+                        + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                        + "user_id INT NOT NULL, "
+                        + "item_id INT NOT NULL, "
+                        + "quantity INT NOT NULL, "
+                        + "order_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+                        + "client_order_id CHAR(36) NULL UNIQUE, "
+                        + "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, "
+                        + "FOREIGN KEY (item_id) REFERENCES items(id) ON DELETE CASCADE)");
+                st.execute("CREATE TABLE sales_daily ("
+                        + "item_id INT NOT NULL, "
+                        + "sale_date DATE NOT NULL, "
+                        + "units BIGINT NOT NULL DEFAULT 0, "
+                        + "revenue DECIMAL(14,2) NOT NULL DEFAULT 0, "
+                        + "PRIMARY KEY (item_id, sale_date))");
+                st.execute("CREATE INDEX idx_sales_date ON sales_daily (sale_date, item_id)");
+                st.execute("CREATE TABLE item_stock_shards ("
+                        + "item_id INT NOT NULL, "
+                        + "shard INT NOT NULL, "
+                        + "stock INT NOT NULL DEFAULT 0, "
+                        + "PRIMARY KEY (item_id, shard), "
+                        + "FOREIGN KEY (item_id) REFERENCES items(id) ON DELETE CASCADE)");
+            }
+
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO users (username, password, full_name) VALUES (?, ?, ?)")) {
+                for (int i = 1; i <= users; i++) {
+                    ps.setString(1, username(i));
+                    ps.setString(2, password(i));
+                    ps.setString(3, "Bench User " + i);
+                    ps.addBatch();
+                    if (i % BATCH == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                    }
+                }
+                ps.executeBatch();
+                conn.commit();
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO items (name, description, price, stock) VALUES (?, ?, ?, ?)")) {
+                for (int i = 1; i <= items; i++) {
+                    ps.setString(1, "Item " + i);
+                    ps.setString(2, "Benchmark item number " + i);
+                    Money.set(ps, 3, 100 + (i % 10_000));
+                    ps.setInt(4, INITIAL_STOCK);
+                    ps.addBatch();
+                    if (i % BATCH == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                    }
+                }
+                ps.executeBatch();
+                conn.commit();
+            }
+
+            long now = System.currentTimeMillis();
+            long yearMillis = 365L * 24 * 3600 * 1000;
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO orders (user_id, item_id, quantity, order_date) VALUES (?, ?, ?, ?)")) {
+                for (long i = 1; i <= orders; i++) {
+                    ps.setInt(1, 1 + rnd.nextInt(users));
+                    ps.setInt(2, 1 + rnd.nextInt(items));
+                    ps.setInt(3, 1 + rnd.nextInt(3));
+                    ps.setTimestamp(4, new Timestamp(now - rnd.nextLong(yearMillis)));
+                    ps.addBatch();
+                    if (i % BATCH == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                    }
+                }
+                ps.executeBatch();
+                conn.commit();
+            }
+            conn.setAutoCommit(true);
+        }
+        // Records the tables above and adds the order indexes, after the bulk load is done
+        new SchemaMigrations(ds).migrate();
+    }
+}
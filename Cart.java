@@ -0,0 +1,60 @@
+package shopingcartapp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cart.java
+ *
+ * Per-session basket of item quantities, checked out in one transaction by
+ * OrderService.checkoutCart. Lines are kept sorted by item_id, which is also the
+ * order stock rows get locked in, so concurrent checkouts cannot deadlock each other.
+ */
+final class Cart {
+    private final TreeMap<Integer, Integer> lines = new TreeMap<>();
+
+    /**
+     * Adds quantity to the item's line.
+     *
+     * @return false (cart unchanged) if quantity is not positive or the line would overflow
+     */
+    boolean add(int itemId, int quantity) {
+        if (quantity <= 0) {
+            return false;
+        }
+        Integer current = lines.get(itemId);
+        if (current != null) {
+            try {
+                quantity = Math.addExact(current, quantity);
+            } catch (ArithmeticException e) {
+                return false;
+            }
+        }
+        lines.put(itemId, quantity);
+        return true;
+    }
+
+    boolean remove(int itemId) {
+        return lines.remove(itemId) != null;
+    }
+
+    void clear() {
+        lines.clear();
+    }
+
+    boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    int size() {
+        return lines.size();
+    }
+
+    /**
+     * item_id -> quantity, ascending by item_id.
+     */
+    Map<Integer, Integer> lines() {
+        return Collections.unmodifiableMap(lines);
+    }
+}
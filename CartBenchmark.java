@@ -0,0 +1,232 @@
+package shopingcartapp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CartBenchmark.java
+ *
+ * Microbenchmarks for the cart operations, run directly against OrderService, UserService,
+ * CatalogCache and OrderHistory on an embedded database (H2 in MySQL mode by default).
+ * Follows the JMH recipe by hand: per benchmark and thread count, warmup iterations are run and
+ * discarded, then measured iterations report throughput (mean +- stddev) and mean latency.
+ *
+ * Each dataset size is seeded fresh (see BenchDataset). Thread counts > 1 run the "contended"
+ * variants where every thread hammers the same item.
+ *
+ * Usage:
+ *   java -cp .:h2.jar shopingcartapp.CartBenchmark [--url JDBC_URL] [--rows 1000,100000,10000000]
+ *        [--threads 1,8] [--warmup 3] [--iterations 5] [--millis 1000] [--filter placeOrder]
+ */
+public final class CartBenchmark {
+
+    interface Op {
+        void run(ThreadLocalRandom rnd) throws SQLException;
+    }
+
+    private CartBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        String url = opts.getOrDefault("url", BenchDataset.DEFAULT_URL);
+        String user = opts.getOrDefault("user", "sa");
+        String password = opts.getOrDefault("password", "");
+        long[] rows = parseLongs(opts.getOrDefault("rows", "1000,100000,10000000"));
+        int[] threads = parseInts(opts.getOrDefault("threads", "1,8"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "3"));
+        int iterations = Integer.parseInt(opts.getOrDefault("iterations", "5"));
+        long millis = Long.parseLong(opts.getOrDefault("millis", "1000"));
+        String filter = opts.getOrDefault("filter", "");
+
+        int maxThreads = 1;
+        for (int t : threads) {
+            maxThreads = Math.max(maxThreads, t);
+        }
+
+        System.out.printf("%-36s %10s %8s %14s %12s %12s%n",
+                "Benchmark", "Rows", "Threads", "ops/s", "+-", "us/op");
+        for (long n : rows) {
+            BenchDataset data = new BenchDataset(n);
+            try (ConnectionPool pool = new ConnectionPool(url, user, password,
+                    maxThreads + 4, 1, 60_000L, 30_000L, 1_000L, 64)) {
+                long seedStart = System.nanoTime();
+                data.install(pool);
+                System.out.printf("# seeded %d orders, %d items, %d users in %.1f s%n",
+                        data.orders, data.items, data.users, (System.nanoTime() - seedStart) / 1e9);
+
+                SchemaCapabilities schema = new SchemaCapabilities(pool);
+                schema.refresh();
+                UserService users = new UserService(pool, schema);
+                CatalogCache cached = new CatalogCache(pool, 60_000L, Integer.MAX_VALUE);
+                CatalogCache uncached = new CatalogCache(pool, 0L, Integer.MAX_VALUE);
+                SalesRollup sales = new SalesRollup(pool, schema);
+
+                Map<String, Op> single = new LinkedHashMap<>();
+                Map<String, Op> contended = new LinkedHashMap<>();
+
+                single.put("loginUser", rnd -> {
+                    int i = 1 + rnd.nextInt(data.users);
+                    users.authenticate(BenchDataset.username(i), BenchDataset.password(i));
+                });
+                single.put("viewItems.cached", rnd -> cached.get());
+                single.put("viewItems.db", rnd -> uncached.get());
+                single.put("viewCart.page20", rnd -> {
+                    try (Connection conn = pool.getConnection()) {
+                        OrderHistory.page(conn, 1 + rnd.nextInt(data.users), null, null,
+                                OrderHistory.Cursor.FIRST, 20, rs -> rs.getInt("quantity"));
+                    }
+                });
+
+                List<OrderService> services = new ArrayList<>();
+                for (OrderService.Mode mode : OrderService.Mode.values()) {
+                    OrderService svc = new OrderService(pool, mode, null, null, sales, null);
+                    services.add(svc);
+                    String name = "placeOrder." + mode.name().toLowerCase();
+                    single.put(name, rnd -> svc.placeOrder(1 + rnd.nextInt(data.users), 1 + rnd.nextInt(data.items), 1));
+                    contended.put(name + ".hotItem", rnd -> svc.placeOrder(1 + rnd.nextInt(data.users), 1, 1));
+                }
+                StockLedger ledger = new StockLedger(pool);
+                ledger.loadAll();
+                OrderService withLedger = new OrderService(pool, OrderService.Mode.OPTIMISTIC, ledger, null, sales, null);
+                services.add(withLedger);
+                single.put("placeOrder.optimistic+ledger", rnd ->
+                        withLedger.placeOrder(1 + rnd.nextInt(data.users), 1 + rnd.nextInt(data.items), 1));
+                contended.put("placeOrder.optimistic+ledger.hotItem", rnd ->
+                        withLedger.placeOrder(1 + rnd.nextInt(data.users), 1, 1));
+
+                try {
+                    for (int t : threads) {
+                        Map<String, Op> benches = new LinkedHashMap<>(single);
+                        if (t > 1) {
+                            benches.putAll(contended);
+                        }
+                        for (Map.Entry<String, Op> bench : benches.entrySet()) {
+                            if (!bench.getKey().contains(filter)) {
+                                continue;
+                            }
+                            run(bench.getKey(), n, bench.getValue(), t, warmup, iterations, millis);
+                        }
+                    }
+                } finally {
+                    for (OrderService svc : services) {
+                        svc.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(String name, long rows, Op op, int threads,
+                            int warmup, int iterations, long millis) throws InterruptedException {
+        for (int i = 0; i < warmup; i++) {
+            iteration(op, threads, millis);
+        }
+        double[] throughput = new double[iterations];
+        long totalOps = 0;
+        long totalNanos = 0;
+        long errors = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] r = iteration(op, threads, millis);
+            throughput[i] = r[0] * 1e9 / r[1];
+            totalOps += r[0];
+            totalNanos += r[1] * threads;
+            errors += r[2];
+        }
+
+        double mean = 0;
+        for (double v : throughput) {
+            mean += v;
+        }
+        mean /= iterations;
+        double var = 0;
+        for (double v : throughput) {
+            var += (v - mean) * (v - mean);
+        }
+        double stddev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+        double usPerOp = totalOps == 0 ? Double.NaN : totalNanos / 1e3 / totalOps;
+
+        System.out.printf("%-36s %10d %8d %14.1f %12.1f %12.2f%s%n",
+                name, rows, threads, mean, stddev, usPerOp, errors > 0 ? "  (" + errors + " errors)" : "");
+    }
+
+    /**
+     * Runs op on the given number of threads for roughly millis.
+     *
+     * @return {operations, elapsed nanos, errors}
+     */
+    private static long[] iteration(Op op, int threads, long millis) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        LongAdder errors = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        try {
+                            op.run(rnd);
+                            ops.increment();
+                        } catch (SQLException e) {
+                            errors.increment();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1_000_000L;
+        start.countDown();
+        done.await();
+        return new long[]{ops.sum(), System.nanoTime() - begin, errors.sum()};
+    }
+
+    // ========== Argument parsing ==========
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                String key = args[i].substring(2);
+                String value = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true";
+                opts.put(key, value);
+            }
+        }
+        return opts;
+    }
+
+    static long[] parseLongs(String csv) {
+        String[] parts = csv.split(",");
+        long[] out = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            out[i] = Long.parseLong(parts[i].trim());
+        }
+        return out;
+    }
+
+    static int[] parseInts(String csv) {
+        String[] parts = csv.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            out[i] = Integer.parseInt(parts[i].trim());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,107 @@
+package shopingcartapp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CartServer.java
+ *
+ * Line-protocol server mode: every TCP client gets its own Session and runs the same
+ * welcome/user/admin menus as the console, so one JVM can serve many shoppers at once
+ * (connect with e.g. `nc localhost 5555`).
+ *
+ * Clients are handled on virtual threads when the JVM supports them (JDK 21+);
+ * on older JDKs it falls back to a cached platform-thread pool.
+ */
+final class CartServer implements AutoCloseable {
+    private final int port;
+    private final ExecutorService clients;
+    private final AtomicInteger connected = new AtomicInteger();
+    private volatile ServerSocket serverSocket;
+
+    CartServer(int port) {
+        this.port = port;
+        this.clients = newPerClientExecutor();
+    }
+
+    /**
+     * Accepts clients until the server socket is closed.
+     */
+    void serve() throws IOException {
+        try (ServerSocket ss = new ServerSocket(port)) {
+            serverSocket = ss;
+            System.out.println("Shopping cart server listening on port " + port
+                    + (isVirtual() ? " (virtual threads)" : " (platform threads)"));
+            while (!ss.isClosed()) {
+                Socket socket;
+                try {
+                    socket = ss.accept();
+                } catch (IOException e) {
+                    if (ss.isClosed()) {
+                        break;
+                    }
+                    System.err.println("Accept failed: " + e.getMessage());
+                    continue;
+                }
+                clients.execute(() -> handle(socket));
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    private void handle(Socket socket) {
+        connected.incrementAndGet();
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream()), true, StandardCharsets.UTF_8);
+            Session session = new Session(s.getInputStream(), out, out, true);
+            ShopingCartApp.runSession(session);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Client " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } finally {
+            connected.decrementAndGet();
+        }
+    }
+
+    int getConnectedCount() {
+        return connected.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ServerSocket ss = serverSocket;
+        if (ss != null) {
+            ss.close();
+        }
+        clients.shutdownNow();
+    }
+
+    private boolean isVirtual() {
+        return !(clients instanceof java.util.concurrent.ThreadPoolExecutor);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the app still
+     * compiles and runs on JDK 17.
+     */
+    private static ExecutorService newPerClientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "cart-client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -0,0 +1,751 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CartTests.java
+ *
+ * Behaviour checks for the pieces whose bugs do not show up in a benchmark: money parsing, the
+ * CSV reader, the cart, the Prometheus dump, and (on an embedded database seeded by
+ * BenchDataset, H2 in MySQL mode by default) the admin login metric, the query plan check (on
+ * made-up EXPLAIN rows), the stock ledger, the guarded-decrement checkout, cart checkout
+ * rollback, group-commit shutdown, journal replay and dedup, the catalog cache bounds and write
+ * races, the catalog import of hot items and soft-deleted skus, the search index, and the item
+ * export of soft-deleted and hot items.
+ *
+ * Prints one line per check and exits non-zero if any fails.
+ *
+ * Usage:
+ *   java -cp .:h2.jar shopingcartapp.CartTests [--url JDBC_URL] [--user sa] [--password ""]
+ */
+public final class CartTests {
+
+    interface Check {
+        void run() throws Exception;
+    }
+
+    private static final String DEFAULT_URL = "jdbc:h2:mem:carttests;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+
+    private static int passed;
+    private static int failed;
+
+    private CartTests() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = CartBenchmark.parseArgs(args);
+        String url = opts.getOrDefault("url", DEFAULT_URL);
+        String user = opts.getOrDefault("user", "sa");
+        String password = opts.getOrDefault("password", "");
+
+        test("Money.parse", CartTests::moneyParse);
+        test("Money.format", CartTests::moneyFormat);
+        test("CsvReader", CartTests::csvReader);
+        test("Cart.add", CartTests::cartAdd);
+        test("Metrics.prometheus families", CartTests::prometheusFamilies);
+
+        BenchDataset data = new BenchDataset(100);
+        try (ConnectionPool pool = new ConnectionPool(url, user, password, 12, 1, 60_000L, 30_000L, 1_000L, 64)) {
+            data.install(pool);
+            SchemaCapabilities schema = new SchemaCapabilities(pool);
+            schema.refresh();
+            test("fallback admin login counted apart", () -> fallbackAdminLogin(pool, schema));
+            test("StockLedger reserve/release/invalidate", () -> stockLedger(pool));
+            test("guarded decrement checkout", () -> guardedDecrement(pool));
+            test("guarded decrement under contention", () -> guardedDecrementContended(pool));
+            test("cart checkout rolls back and releases", () -> cartCheckoutRollback(pool));
+            test("group commit after close fails", () -> groupCommitClosed(pool));
+            test("journal replay skips applied orders", () -> journalReplay(pool));
+            test("query plan check wants the index in key", () -> queryPlanCheck(pool));
+            test("catalog cache skips soft-deleted rows", () -> catalogLiveRows(pool, schema, data));
+            test("catalog cache remembers too large", () -> catalogTooLarge(pool));
+            test("catalog cache drops a load overlapping a write", () -> catalogRacingWrite(pool));
+            test("catalog import reshards hot items", () -> importHotItem(pool, schema));
+            test("search leaves soft-deleted items out after an import", () -> searchLiveRows(pool, schema));
+            test("item export leaves soft-deleted items out", () -> exportLiveRows(pool, schema));
+            test("item export round-trips the stock of hot items", () -> exportHotItem(pool, schema));
+            test("catalog import rejects skus of soft-deleted items", () -> importDeletedSku(pool, schema));
+        }
+
+        System.out.printf("# %d passed, %d failed%n", passed, failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // ========== Without a database ==========
+
+    private static void moneyParse() {
+        checkEquals(1200L, Money.parse("12"), "12");
+        checkEquals(1250L, Money.parse("12.5"), "12.5");
+        checkEquals(1250L, Money.parse(" 12.50 "), "12.50");
+        checkEquals(5L, Money.parse(".05"), ".05");
+        checkEquals(-1L, Money.parse("-0.01"), "-0.01");
+        for (String bad : new String[]{"", ".", "1.234", "1e3", "12,50", "abc", "--1", "92233720368547758.08"}) {
+            try {
+                Money.parse(bad);
+                throw new AssertionError("parsed '" + bad + "'");
+            } catch (NumberFormatException expected) {
+                // rejected as it should be
+            }
+        }
+    }
+
+    private static void moneyFormat() {
+        checkEquals("0.00", Money.format(0), "0");
+        checkEquals("0.05", Money.format(5), "5");
+        checkEquals("12.50", Money.format(1250), "1250");
+        checkEquals("-0.05", Money.format(-5), "-5");
+        checkEquals(Money.MAX_PRICE_CENTS, Money.parse(Money.format(Money.MAX_PRICE_CENTS)), "round trip");
+    }
+
+    private static void csvReader() throws Exception {
+        String csv = "sku,name,price\r\n"
+                + "\n"
+                + "A1,\"Tea, green\",1.50\n"
+                + "A2,\"Say \"\"hi\"\"\",2\n"
+                + "A3,\"two\nlines\",3\n"
+                + "A4,,4";
+        try (CatalogImport.CsvReader r = new CatalogImport.CsvReader(new StringReader(csv))) {
+            checkEquals(Arrays.asList("sku", "name", "price"), r.next(), "header");
+            checkEquals(Arrays.asList("A1", "Tea, green", "1.50"), r.next(), "quoted comma");
+            checkEquals(3, r.recordLine(), "line after a blank line");
+            checkEquals(Arrays.asList("A2", "Say \"hi\"", "2"), r.next(), "escaped quotes");
+            checkEquals(Arrays.asList("A3", "two\nlines", "3"), r.next(), "line break in quotes");
+            checkEquals(Arrays.asList("A4", "", "4"), r.next(), "empty field, no final newline");
+            checkEquals(7, r.recordLine(), "line after a multi-line record");
+            check(r.next() == null, "end of input");
+        }
+        try (CatalogImport.CsvReader r = new CatalogImport.CsvReader(new StringReader("a,\"open\n"))) {
+            r.next();
+            throw new AssertionError("unterminated quote accepted");
+        } catch (IOException expected) {
+            // rejected as it should be
+        }
+    }
+
+    private static void cartAdd() {
+        Cart cart = new Cart();
+        check(cart.add(3, 2), "add");
+        check(cart.add(3, 5), "add to line");
+        checkEquals(7, cart.lines().get(3), "summed line");
+        check(!cart.add(3, 0), "zero quantity accepted");
+        check(!cart.add(4, -1), "negative quantity accepted");
+        check(cart.add(5, Integer.MAX_VALUE), "max quantity");
+        check(!cart.add(5, 1), "overflowing line accepted");
+        checkEquals(Integer.MAX_VALUE, cart.lines().get(5), "line after rejected add");
+        checkEquals(Arrays.asList(3, 5), new ArrayList<>(cart.lines().keySet()), "lines sorted by item id");
+    }
+
+    private static void prometheusFamilies() {
+        Metrics.counter("carttests_x", "a", "1").increment();
+        Metrics.counter("carttests_x_y").increment();
+        Metrics.counter("carttests_x").increment();
+        String text = Metrics.prometheus();
+        checkEquals(1, count(text, "# TYPE carttests_x counter\n"), "TYPE lines for carttests_x");
+        checkEquals(1, count(text, "# TYPE carttests_x_y counter\n"), "TYPE lines for carttests_x_y");
+        int type = text.indexOf("# TYPE carttests_x counter\n");
+        int other = text.indexOf("# TYPE carttests_x_y counter\n");
+        check(text.indexOf("carttests_x{a=\"1\"} 1\n") > type && text.indexOf("carttests_x{a=\"1\"} 1\n") < other,
+                "labelled series of carttests_x outside its family:\n" + text);
+    }
+
+    // ========== On the embedded database ==========
+
+    private static void fallbackAdminLogin(ConnectionPool pool, SchemaCapabilities schema) throws SQLException {
+        UserService users = new UserService(pool, schema);
+        users.setFallbackAdmin("carttests-admin", "secret");
+        LongAdder fallback = Metrics.counter("cart_logins_total", "kind", "admin", "result", "fallback");
+        LongAdder failure = Metrics.counter("cart_logins_total", "kind", "admin", "result", "failure");
+        long fallbackBefore = fallback.sum();
+        long failureBefore = failure.sum();
+        check(users.checkAdmin("carttests-admin", "secret") != UserService.AdminCheck.ADMIN, "DB admin");
+        check(users.isFallbackAdmin("carttests-admin", "secret"), "fallback credentials refused");
+        check(users.checkAdmin("carttests-admin", "wrong") != UserService.AdminCheck.ADMIN, "DB admin");
+        check(!users.isFallbackAdmin("carttests-admin", "wrong"), "wrong fallback password accepted");
+        checkEquals(1L, fallback.sum() - fallbackBefore, "fallback logins");
+        checkEquals(1L, failure.sum() - failureBefore, "failed admin logins");
+    }
+
+    private static void stockLedger(ConnectionPool pool) throws SQLException {
+        setStock(pool, 1, 5);
+        StockLedger ledger = new StockLedger(pool);
+        checkEquals(StockLedger.Reservation.RESERVED, ledger.tryReserve(1, 3), "reserve 3 of 5");
+        checkEquals(StockLedger.Reservation.SOLD_OUT, ledger.tryReserve(1, 3), "reserve 3 of 2");
+        ledger.release(1, 3);
+        checkEquals(StockLedger.Reservation.RESERVED, ledger.tryReserve(1, 5), "reserve 5 after release");
+        checkEquals(StockLedger.Reservation.SOLD_OUT, ledger.tryReserve(1, 1), "reserve beyond stock");
+        checkEquals(StockLedger.Reservation.NOT_FOUND, ledger.tryReserve(999_999, 1), "unknown item");
+
+        // An admin restock only shows up after invalidate()
+        setStock(pool, 1, 10);
+        checkEquals(StockLedger.Reservation.SOLD_OUT, ledger.tryReserve(1, 1), "stale entry before invalidate");
+        ledger.invalidate(1);
+        checkEquals(StockLedger.Reservation.RESERVED, ledger.tryReserve(1, 10), "reserve after invalidate");
+
+        // Journaled but undrained quantities are subtracted on reload
+        ledger.setPending(itemId -> itemId == 1 ? 4 : 0);
+        ledger.invalidateAll();
+        checkEquals(StockLedger.Reservation.SOLD_OUT, ledger.tryReserve(1, 7), "pending subtracted");
+        checkEquals(StockLedger.Reservation.RESERVED, ledger.tryReserve(1, 6), "rest of the stock");
+    }
+
+    private static void guardedDecrement(ConnectionPool pool) throws SQLException {
+        setStock(pool, 2, 2);
+        long orders = countOrders(pool, 2);
+        try (OrderService svc = new OrderService(pool, OrderService.Mode.OPTIMISTIC, null, null, null, null)) {
+            checkEquals(OrderService.Result.OUT_OF_STOCK, svc.placeOrder(1, 2, 3), "order above stock");
+            checkEquals(2, stock(pool, 2), "stock after rejected order");
+            checkEquals(OrderService.Result.OK, svc.placeOrder(1, 2, 2), "order of all stock");
+            checkEquals(0, stock(pool, 2), "stock after order");
+            checkEquals(OrderService.Result.OUT_OF_STOCK, svc.placeOrder(1, 2, 1), "order when sold out");
+            checkEquals(OrderService.Result.NOT_FOUND, svc.placeOrder(1, 999_999, 1), "unknown item");
+        }
+        checkEquals(orders + 1, countOrders(pool, 2), "orders written");
+    }
+
+    private static void guardedDecrementContended(ConnectionPool pool) throws Exception {
+        int stock = 50;
+        int threads = 8;
+        int perThread = 20;
+        setStock(pool, 3, stock);
+        long orders = countOrders(pool, 3);
+        AtomicInteger ok = new AtomicInteger();
+        List<Throwable> errors = new ArrayList<>();
+        try (OrderService svc = new OrderService(pool, OrderService.Mode.OPTIMISTIC, null, null, null, null)) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int userId = 1 + t;
+                Thread w = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            if (svc.placeOrder(userId, 3, 1) == OrderService.Result.OK) {
+                                ok.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                });
+                workers.add(w);
+                w.start();
+            }
+            start.countDown();
+            for (Thread w : workers) {
+                w.join();
+            }
+        }
+        check(errors.isEmpty(), "orders failed: " + errors);
+        checkEquals(stock, ok.get(), "orders accepted");
+        checkEquals(0, stock(pool, 3), "stock left");
+        checkEquals(orders + stock, countOrders(pool, 3), "orders written");
+    }
+
+    private static void cartCheckoutRollback(ConnectionPool pool) throws SQLException {
+        setStock(pool, 4, 10);
+        setStock(pool, 5, 1);
+        long orders4 = countOrders(pool, 4);
+        StockLedger ledger = new StockLedger(pool);
+        try (OrderService svc = new OrderService(pool, OrderService.Mode.OPTIMISTIC, ledger, null, null, null)) {
+            Cart cart = new Cart();
+            cart.add(4, 3);
+            cart.add(5, 2);
+            OrderService.CartResult r = svc.checkoutCart(1, cart);
+            checkEquals(OrderService.Result.OUT_OF_STOCK, r.result, "cart with a sold-out line");
+            checkEquals(5, r.itemId, "rejected line");
+            checkEquals(10, stock(pool, 4), "stock of the other line");
+            checkEquals(orders4, countOrders(pool, 4), "orders of the other line");
+            check(!cart.isEmpty(), "cart cleared after a failed checkout");
+            // The reservation of item 4 was given back
+            checkEquals(StockLedger.Reservation.RESERVED, ledger.tryReserve(4, 10), "ledger after failed checkout");
+            ledger.release(4, 10);
+
+            cart.remove(5);
+            checkEquals(OrderService.Result.OK, svc.checkoutCart(1, cart).result, "cart checkout");
+            checkEquals(7, stock(pool, 4), "stock after checkout");
+            check(cart.isEmpty(), "cart not cleared after checkout");
+            checkEquals(StockLedger.Reservation.SOLD_OUT, ledger.tryReserve(4, 8), "ledger after checkout");
+        }
+    }
+
+    private static void groupCommitClosed(ConnectionPool pool) throws Exception {
+        setStock(pool, 9, 10);
+        GroupCommitPipeline pipeline = new GroupCommitPipeline(pool, null, null, 1L, 16);
+        checkEquals(OrderService.Result.OK, pipeline.submit(1, 9, 1), "order before close");
+        pipeline.close();
+        List<Object> outcome = new ArrayList<>();
+        Thread caller = new Thread(() -> {
+            try {
+                outcome.add(pipeline.submit(1, 9, 1));
+            } catch (SQLException e) {
+                outcome.add(e);
+            }
+        });
+        caller.setDaemon(true);
+        caller.start();
+        caller.join(5_000L);
+        check(!caller.isAlive(), "submit after close hangs");
+        check(outcome.size() == 1 && outcome.get(0) instanceof SQLException, "submit after close: " + outcome);
+        checkEquals(9, stock(pool, 9), "stock after close");
+    }
+
+    private static void journalReplay(ConnectionPool pool) throws Exception {
+        setStock(pool, 6, 100);
+        Path file = Files.createTempFile("carttests", ".journal");
+        Path rejects = file.resolveSibling(file.getFileName() + ".rejects");
+        try {
+            UUID applied = UUID.randomUUID();
+            UUID fresh = UUID.randomUUID();
+            UUID orphan = UUID.randomUUID();
+            // The drainer only starts in replay(), so these stay in the file
+            OrderJournal first = new OrderJournal(pool, null, null, file, 1 << 20, true, 20L, 256);
+            first.append(applied, 1, 6, 2);
+            first.append(fresh, 1, 6, 3);
+            first.append(orphan, 1, 999_999, 1);
+            checkEquals(5, first.pending(6), "pending before drain");
+            first.close();
+
+            // As if the first record had been committed just before a crash
+            try (Connection conn = pool.getConnection()) {
+                try (PreparedStatement stmt = conn.prepareStatement(Sql.ORDER_INSERT_JOURNALED.text)) {
+                    stmt.setString(1, applied.toString());
+                    stmt.setInt(2, 1);
+                    stmt.setInt(3, 6);
+                    stmt.setInt(4, 2);
+                    stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+                    stmt.executeUpdate();
+                }
+                OrderService.decrementStock(conn, 6, 2);
+            }
+
+            OrderJournal second = new OrderJournal(pool, null, null, file, 1 << 20, true, 20L, 256);
+            try {
+                checkEquals(5, second.pending(6), "pending after restart");
+                checkEquals(new TreeSet<>(Arrays.asList(6, 999_999)), second.replay(), "replayed items");
+                checkEquals(0, second.pending(6), "pending after replay");
+            } finally {
+                second.close();
+            }
+            checkEquals(1L, countClientOrder(pool, applied), "order applied before the crash");
+            checkEquals(1L, countClientOrder(pool, fresh), "order applied by the replay");
+            checkEquals(0L, countClientOrder(pool, orphan), "order for a missing item");
+            checkEquals(95, stock(pool, 6), "stock after replay");
+            List<String> rejected = Files.readAllLines(rejects, StandardCharsets.UTF_8);
+            checkEquals(1, rejected.size(), "rejected orders");
+            check(rejected.get(0).startsWith(orphan + ",1,999999,1,"), "rejects line: " + rejected.get(0));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(rejects);
+        }
+    }
+
+    private static void queryPlanCheck(ConnectionPool pool) throws SQLException {
+        // H2 has no MySQL EXPLAIN, so each hot query gets made-up plan rows: {table, type, possible_keys, key, extra}
+        Map<Sql, String[][]> plans = new EnumMap<>(Sql.class);
+        String byUser;
+        String byDate;
+        try (Connection conn = pool.getConnection()) {
+            DatabaseMetaData meta = conn.getMetaData();
+            String catalog = conn.getCatalog();
+            byUser = index(meta, catalog, "orders", "user_id", "order_date");
+            byDate = index(meta, catalog, "orders", "order_date");
+            String byName = index(meta, catalog, "users", "username");
+            String byId = index(meta, catalog, "items", "id");
+            String bySaleDate = index(meta, catalog, "sales_daily", "sale_date");
+            String byShardItem = index(meta, catalog, "item_stock_shards", "item_id");
+            String byOrderItem = index(meta, catalog, "orders", "item_id");
+            plans.put(Sql.LOGIN_USER, new String[][]{{"users", "const", byName, byName, null}});
+            plans.put(Sql.ITEM_LOOKUP, new String[][]{{"items", "const", byId, byId, null}});
+            plans.put(Sql.ORDERS_USER_PAGE, new String[][]{
+                    {"orders", "range", byUser, byUser, "Using where; Backward index scan"},
+                    {"items", "eq_ref", "primary", "primary", null}});
+            plans.put(Sql.ORDERS_ALL_PAGE, new String[][]{
+                    {"orders", "range", byDate, byDate, "Using where; Backward index scan"},
+                    {"users", "eq_ref", "primary", "primary", null}});
+            plans.put(Sql.SALES_BY_DAY, new String[][]{{"sales_daily", "range", bySaleDate, bySaleDate, "Using where"}});
+            plans.put(Sql.SHARDS_FOR_ITEM, new String[][]{{"item_stock_shards", "ref", byShardItem, byShardItem, null}});
+            plans.put(Sql.PURGE_CHUNK_END, new String[][]{
+                    {"<derived2>", "ALL", null, null, null}, {"orders", "ref", byOrderItem, byOrderItem, null}});
+        }
+        checkEquals(0, planCheck(pool, plans).size(), "failures with every index in key");
+
+        // The index is only a candidate: MySQL scans the table anyway
+        plans.put(Sql.ORDERS_ALL_PAGE, new String[][]{{"orders", "ALL", byDate, null, "Using where"}});
+        // The right index, but the rows are sorted afterwards
+        plans.put(Sql.ORDERS_USER_PAGE, new String[][]{
+                {"orders", "ref", byUser, byUser, "Using where"}, {"items", "eq_ref", "primary", "primary", "Using filesort"}});
+        // Another index than the one the query relies on
+        plans.put(Sql.SALES_BY_DAY, new String[][]{{"sales_daily", "range", "primary", "primary", "Using where"}});
+        List<String> failures = planCheck(pool, plans);
+        checkEquals(3, failures.size(), "failures: " + failures);
+        check(failures.get(0).startsWith("ORDERS_USER_PAGE: sorts"), failures.get(0));
+        check(failures.get(1).startsWith("ORDERS_ALL_PAGE: orders is scanned (type=ALL"), failures.get(1));
+        check(failures.get(2).startsWith("SALES_BY_DAY: sales_daily is read with key=primary"), failures.get(2));
+    }
+
+    private static String index(DatabaseMetaData meta, String catalog, String table, String... columns)
+            throws SQLException {
+        TreeSet<String> names = new TreeSet<>(SchemaMigrations.indexesWithPrefix(meta, catalog, table, columns));
+        check(!names.isEmpty(), "no index on " + table + Arrays.toString(columns));
+        return names.first();
+    }
+
+    // Runs QueryPlanCheck with every EXPLAIN answered from plans (one SELECT of literal rows)
+    private static List<String> planCheck(ConnectionPool pool, Map<Sql, String[][]> plans) throws SQLException {
+        Map<String, Sql> byText = new HashMap<>();
+        for (Sql sql : plans.keySet()) {
+            byText.put("EXPLAIN " + sql.text, sql);
+        }
+        try (Connection real = pool.getConnection()) {
+            Connection conn = (Connection) Proxy.newProxyInstance(CartTests.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        Sql sql = "prepareStatement".equals(method.getName()) ? byText.get((String) args[0]) : null;
+                        if (sql != null) {
+                            return cannedPlan(real, plans.get(sql));
+                        }
+                        try {
+                            return method.invoke(real, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+            return QueryPlanCheck.run(conn);
+        }
+    }
+
+    private static PreparedStatement cannedPlan(Connection real, String[][] rows) throws SQLException {
+        StringBuilder select = new StringBuilder();
+        for (int i = 0; i < rows.length; i++) {
+            select.append(i == 0 ? "" : " UNION ALL ").append("SELECT CAST(? AS VARCHAR(64)) AS \"table\", "
+                    + "CAST(? AS VARCHAR(64)) AS \"type\", CAST(? AS VARCHAR(64)) AS \"possible_keys\", "
+                    + "CAST(? AS VARCHAR(64)) AS \"key\", CAST(? AS VARCHAR(64)) AS \"extra\"");
+        }
+        PreparedStatement canned = real.prepareStatement(select.toString());
+        int p = 1;
+        for (String[] row : rows) {
+            for (String value : row) {
+                canned.setString(p++, value);
+            }
+        }
+        // The check binds the query's own parameters; those go nowhere
+        return (PreparedStatement) Proxy.newProxyInstance(CartTests.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if ("setObject".equals(method.getName())) {
+                        return null;
+                    }
+                    try {
+                        return method.invoke(canned, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private static void catalogLiveRows(ConnectionPool pool, SchemaCapabilities schema, BenchDataset data)
+            throws SQLException {
+        ItemPurger purger = new ItemPurger(pool, schema, 500, 5_000, 10_000L);
+        check(purger.isEnabled(), "soft delete not enabled on the test schema");
+        check(purger.delete(7), "soft delete");
+        CatalogCache catalog = new CatalogCache(pool, 60_000L, data.items - 1);
+        catalog.setPurger(purger);
+        CatalogCache.Snapshot snap = catalog.get();
+        check(snap != null, "catalog of maxEntries live items not cached");
+        checkEquals(data.items - 1, snap.size(), "cached items");
+        check(snap.indexOf(7) < 0, "soft-deleted item cached");
+        check(snap.indexOf(data.items) >= 0, "highest-id item missing");
+    }
+
+    private static void catalogTooLarge(ConnectionPool pool) throws SQLException {
+        AtomicInteger loads = new AtomicInteger();
+        DataSource counting = (DataSource) Proxy.newProxyInstance(CartTests.class.getClassLoader(),
+                new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+                    if ("getConnection".equals(method.getName())) {
+                        loads.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(pool, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        CatalogCache catalog = new CatalogCache(counting, 60_000L, 3);
+        check(catalog.get() == null, "catalog above maxEntries cached");
+        check(catalog.get() == null, "catalog above maxEntries cached");
+        checkEquals(1, loads.get(), "catalog reads while too large");
+        catalog.invalidate();
+        check(catalog.get() == null, "catalog above maxEntries cached");
+        checkEquals(2, loads.get(), "catalog reads after invalidate");
+        check(new CatalogCache(pool, 0L, Integer.MAX_VALUE).get() != null, "unbounded catalog not cached");
+    }
+
+    private static void catalogRacingWrite(ConnectionPool pool) throws SQLException {
+        // Runs a cache write inside the load, after its generation was read and before its rows are
+        AtomicInteger loads = new AtomicInteger();
+        AtomicReference<Runnable> duringLoad = new AtomicReference<>();
+        DataSource racing = (DataSource) Proxy.newProxyInstance(CartTests.class.getClassLoader(),
+                new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+                    if ("getConnection".equals(method.getName())) {
+                        loads.incrementAndGet();
+                        Runnable write = duringLoad.getAndSet(null);
+                        if (write != null) {
+                            write.run();
+                        }
+                    }
+                    try {
+                        return method.invoke(pool, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        CatalogCache catalog = new CatalogCache(racing, 60_000L, Integer.MAX_VALUE);
+        duringLoad.set(catalog::invalidate);
+        check(catalog.get() != null, "catalog not loaded");
+        check(catalog.get() != null, "catalog not loaded");
+        checkEquals(2, loads.get(), "catalog reads after an invalidate during the load");
+        check(catalog.get() != null, "catalog not loaded");
+        checkEquals(2, loads.get(), "catalog reads once loaded undisturbed");
+
+        catalog.invalidate();
+        duringLoad.set(() -> catalog.adjustStock(10, -1));
+        check(catalog.get() != null, "catalog not loaded");
+        check(catalog.get() != null, "catalog not loaded");
+        checkEquals(4, loads.get(), "catalog reads after a stock change during the load");
+    }
+
+    private static void importHotItem(ConnectionPool pool, SchemaCapabilities schema) throws Exception {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("UPDATE items SET sku = 'HOT-8' WHERE id = 8")) {
+            stmt.executeUpdate();
+        }
+        StockShards shards = new StockShards(pool, schema);
+        shards.load();
+        checkEquals(100, shards.reshard(8, 4, 100), "reshard");
+        Path file = Files.createTempFile("carttests", ".csv");
+        try {
+            Files.write(file, Arrays.asList("sku,name,price,stock", "HOT-8,Hot item,9.99,40", "NEW-1,New item,1,5"),
+                    StandardCharsets.UTF_8);
+            CatalogImport.Result result = new CatalogImport(pool, shards, 100, 1_000).run(file);
+            checkEquals(2L, result.imported, "imported rows");
+            int total;
+            try (Connection conn = pool.getConnection()) {
+                total = shards.total(conn, 8);
+            }
+            checkEquals(0, stock(pool, 8), "items.stock of the hot item");
+            checkEquals(40, total, "shard total of the hot item");
+            checkEquals(4, shards.shardCount(8), "shard count");
+            StockLedger ledger = new StockLedger(pool);
+            ledger.setShards(shards);
+            checkEquals(StockLedger.Reservation.SOLD_OUT, ledger.tryReserve(8, 41), "ledger above the new stock");
+            checkEquals(StockLedger.Reservation.RESERVED, ledger.tryReserve(8, 40), "ledger at the new stock");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".checkpoint"));
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".rejects"));
+        }
+    }
+
+    private static void searchLiveRows(ConnectionPool pool, SchemaCapabilities schema) throws Exception {
+        ItemPurger purger = new ItemPurger(pool, schema, 500, 5_000, 10_000L);
+        check(purger.delete(10), "soft delete");
+        SearchIndex search = new SearchIndex(pool);
+        search.setPurger(purger);
+        Path file = Files.createTempFile("carttests", ".csv");
+        try {
+            Files.write(file, Arrays.asList("sku,name,price,stock", "NEW-2,Another item,1,5"), StandardCharsets.UTF_8);
+            checkEquals(1L, new CatalogImport(pool, null, 100, 1_000).run(file).imported, "imported rows");
+            // What importItems does once the import is done
+            search.load();
+            check(!search.search("another", 10).isEmpty(), "imported item not found");
+            for (SearchIndex.Hit hit : search.search("item 10", 10)) {
+                check(hit.id != 10, "soft-deleted item found");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".checkpoint"));
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".rejects"));
+        }
+    }
+
+    private static void exportLiveRows(ConnectionPool pool, SchemaCapabilities schema) throws Exception {
+        // Item 10 may already be soft-deleted by an earlier check; this stamp works either way
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE items SET deleted_at = CURRENT_TIMESTAMP WHERE id = 10")) {
+            checkEquals(1, stmt.executeUpdate(), "soft delete");
+        }
+        Path file = Files.createTempFile("carttests", ".csv");
+        try {
+            long rows;
+            try (Connection conn = pool.getConnection()) {
+                rows = DataExport.items(conn, schema, DataExport.Format.CSV, file);
+            }
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            checkEquals(rows + 1, (long) lines.size(), "lines written");
+            for (String line : lines.subList(1, lines.size())) {
+                check(!line.startsWith("10,"), "soft-deleted item exported: " + line);
+            }
+            check(lines.get(1).startsWith("1,"), "first item missing: " + lines.get(1));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void exportHotItem(ConnectionPool pool, SchemaCapabilities schema) throws Exception {
+        // Item 8 is sharded by importHotItem: 0 in items.stock, 40 across its shards
+        StockShards shards = new StockShards(pool, schema);
+        shards.load();
+        check(shards.isHot(8), "item 8 not sharded");
+        Path file = Files.createTempFile("carttests", ".csv");
+        try {
+            try (Connection conn = pool.getConnection()) {
+                DataExport.items(conn, schema, DataExport.Format.CSV, file);
+            }
+            String hot = null;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.startsWith("8,")) {
+                    hot = line;
+                }
+            }
+            check(hot != null && hot.endsWith(",40"), "exported hot item: " + hot);
+            new CatalogImport(pool, shards, 100, 1_000).run(file);
+            try (Connection conn = pool.getConnection()) {
+                checkEquals(40, stock(pool, 8) + shards.total(conn, 8), "hot item stock after re-import");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".checkpoint"));
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".rejects"));
+        }
+    }
+
+    private static void importDeletedSku(ConnectionPool pool, SchemaCapabilities schema) throws Exception {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "UPDATE items SET sku = 'GONE-10', deleted_at = CURRENT_TIMESTAMP WHERE id = 10")) {
+            checkEquals(1, stmt.executeUpdate(), "soft delete");
+        }
+        Path file = Files.createTempFile("carttests", ".csv");
+        Path rejects = file.resolveSibling(file.getFileName() + ".rejects");
+        try {
+            Files.write(file, Arrays.asList("sku,name,price,stock", "GONE-10,Back again,2,7", "NEW-3,Third item,1,5"),
+                    StandardCharsets.UTF_8);
+            CatalogImport catalogImport = new CatalogImport(pool, null, 100, 1_000);
+            catalogImport.setPurger(new ItemPurger(pool, schema, 500, 5_000, 10_000L));
+            CatalogImport.Result result = catalogImport.run(file);
+            checkEquals(1L, result.imported, "imported rows");
+            checkEquals(1L, result.rejected, "rejected rows");
+            List<String> rejected = Files.readAllLines(rejects, StandardCharsets.UTF_8);
+            checkEquals("line 2: sku belongs to deleted item 10", rejected.get(0), "rejects line");
+            checkEquals(0, stock(pool, 10), "stock of the deleted item");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".checkpoint"));
+            Files.deleteIfExists(rejects);
+        }
+    }
+
+    // ========== Helpers ==========
+
+    private static void setStock(ConnectionPool pool, int itemId, int stock) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_SET_STOCK.text)) {
+            stmt.setInt(1, stock);
+            stmt.setInt(2, itemId);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static int stock(ConnectionPool pool, int itemId) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_STOCK.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                check(rs.next(), "no item " + itemId);
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static long countOrders(ConnectionPool pool, int itemId) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.PURGE_COUNT.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private static long countClientOrder(ConnectionPool pool, UUID clientOrderId) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM orders WHERE client_order_id = ?")) {
+            stmt.setString(1, clientOrderId.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private static int count(String text, String part) {
+        int n = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    private static void test(String name, Check check) {
+        try {
+            check.run();
+            passed++;
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL  " + name + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void checkEquals(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+}
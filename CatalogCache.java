@@ -0,0 +1,215 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CatalogCache.java
+ *
+ * Read-through cache of the item catalog behind viewItems.
+ * The whole catalog is held as one immutable snapshot of parallel primitive arrays
+ * (ids sorted ascending, prices in cents (see Money), stock) instead of a map of boxed objects.
+ *
+ * Bounds:
+ * - ttlMillis: a snapshot older than this is reloaded on the next read
+ * - maxEntries: catalogs larger than this are not cached at all (get() returns null and
+ *   callers read the table directly); that verdict is remembered for ttlMillis like a
+ *   snapshot, so a large catalog is not re-counted on every read
+ *
+ * Hot items show their total stock (items.stock plus their StockShards rows); soft-deleted
+ * items (ItemPurger) are left out by the query itself, so they do not count against maxEntries.
+ *
+ * Writes keep it honest: addItem/deleteItem and name/price edits invalidate the snapshot,
+ * stock edits and successful orders adjust the stock slot in place. Each of those also bumps
+ * a generation counter; a load that overlapped one is handed to its caller but not kept, since
+ * it may have read the rows before the write and the write only reached the old snapshot.
+ */
+final class CatalogCache {
+
+    static final class Snapshot {
+        private final int[] ids;
+        private final String[] names;
+        private final long[] priceCents;
+        private final AtomicIntegerArray stock;
+        final long loadedAt;
+
+        Snapshot(int[] ids, String[] names, long[] priceCents, int[] stock, long loadedAt) {
+            this.ids = ids;
+            this.names = names;
+            this.priceCents = priceCents;
+            this.stock = new AtomicIntegerArray(stock);
+            this.loadedAt = loadedAt;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        /**
+         * Position of the item in the arrays, or a negative number if it is not cached.
+         */
+        int indexOf(int itemId) {
+            return Arrays.binarySearch(ids, itemId);
+        }
+
+        int id(int i) {
+            return ids[i];
+        }
+
+        String name(int i) {
+            return names[i];
+        }
+
+        long priceCents(int i) {
+            return priceCents[i];
+        }
+
+        int stock(int i) {
+            return stock.get(i);
+        }
+    }
+
+    private final DataSource ds;
+    private final long ttlMillis;
+    private final int maxEntries;
+    private volatile Snapshot snapshot;
+    // When load() last found more than maxEntries items (0 = not too large)
+    private volatile long tooLargeAt;
+    // Bumped by every write; a load only becomes the snapshot if no write happened meanwhile
+    private final AtomicLong generation = new AtomicLong();
+    private volatile StockShards shards;
+    private volatile ItemPurger purger;
+
+    CatalogCache(DataSource ds, long ttlMillis, int maxEntries) {
+        this.ds = ds;
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Current snapshot, loading it if missing or expired; null if the catalog exceeds maxEntries.
+     */
+    Snapshot get() throws SQLException {
+        Snapshot snap = snapshot;
+        if (snap != null ? isFresh(snap.loadedAt) : isFresh(tooLargeAt)) {
+            return snap;
+        }
+        synchronized (this) {
+            snap = snapshot;
+            if (snap != null ? isFresh(snap.loadedAt) : isFresh(tooLargeAt)) {
+                return snap;
+            }
+            long gen = generation.get();
+            snap = load();
+            snapshot = snap;
+            tooLargeAt = snap == null ? System.currentTimeMillis() : 0L;
+            // Checked after publishing, so a write racing the assignment above is not lost either
+            if (generation.get() != gen) {
+                snapshot = null;
+                tooLargeAt = 0L;
+            }
+            return snap;
+        }
+    }
+
+    private boolean isFresh(long loadedAt) {
+        return loadedAt != 0L && System.currentTimeMillis() - loadedAt < ttlMillis;
+    }
+
+    void setShards(StockShards shards) {
+        this.shards = shards;
+        invalidate();
+    }
+
+    /**
+     * Soft-deleted items are left out of the snapshot.
+     */
+    void setPurger(ItemPurger purger) {
+        this.purger = purger;
+        invalidate();
+    }
+
+    void invalidate() {
+        generation.incrementAndGet();
+        snapshot = null;
+        tooLargeAt = 0L;
+    }
+
+    /**
+     * Applies a stock delta (e.g. -quantity after an order) to the cached row, if cached.
+     */
+    void adjustStock(int itemId, int delta) {
+        generation.incrementAndGet();
+        Snapshot snap = snapshot;
+        if (snap != null) {
+            int i = snap.indexOf(itemId);
+            if (i >= 0) {
+                snap.stock.addAndGet(i, delta);
+            }
+        }
+    }
+
+    /**
+     * Overwrites the cached stock of one item (admin stock edit).
+     */
+    void setStock(int itemId, int stock) {
+        generation.incrementAndGet();
+        Snapshot snap = snapshot;
+        if (snap != null) {
+            int i = snap.indexOf(itemId);
+            if (i >= 0) {
+                snap.stock.set(i, stock);
+            } else {
+                invalidate();
+            }
+        }
+    }
+
+    private Snapshot load() throws SQLException {
+        int cap = 64;
+        int[] ids = new int[cap];
+        String[] names = new String[cap];
+        long[] prices = new long[cap];
+        int[] stock = new int[cap];
+        int n = 0;
+
+        ItemPurger p = purger;
+        Sql query = p != null && p.isEnabled() ? Sql.CATALOG_LOAD_LIVE : Sql.CATALOG_LOAD;
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query.text)) {
+            Map<Integer, Integer> sharded = shards != null ? shards.totals(conn) : Collections.emptyMap();
+            if (maxEntries < Integer.MAX_VALUE) {
+                stmt.setMaxRows(maxEntries + 1);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (n == maxEntries) {
+                        return null;
+                    }
+                    if (n == cap) {
+                        cap *= 2;
+                        ids = Arrays.copyOf(ids, cap);
+                        names = Arrays.copyOf(names, cap);
+                        prices = Arrays.copyOf(prices, cap);
+                        stock = Arrays.copyOf(stock, cap);
+                    }
+                    ids[n] = rs.getInt("id");
+                    names[n] = rs.getString("name");
+                    prices[n] = Money.get(rs, "price");
+                    stock[n] = rs.getInt("stock") + sharded.getOrDefault(ids[n], 0);
+                    n++;
+                }
+            }
+        }
+        return new Snapshot(Arrays.copyOf(ids, n), Arrays.copyOf(names, n),
+                Arrays.copyOf(prices, n), Arrays.copyOf(stock, n), System.currentTimeMillis());
+    }
+}
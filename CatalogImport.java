@@ -0,0 +1,498 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * CatalogImport.java
+ *
+ * Bulk catalog load from a supplier CSV feed, for the admin menu.
+ *
+ * - The file is streamed through a 1M-char buffer and parsed record by record
+ *   (RFC 4180: quoted fields, "" escapes, line breaks inside quotes), never held in memory.
+ * - The header names the columns, in any order: sku, name, price, stock and optional description.
+ * - Rows are validated first; bad rows are counted and written to <file>.rejects with their
+ *   line number and reason instead of failing the import.
+ * - Valid rows are upserted on items.sku (Sql.ITEM_UPSERT) in JDBC batches of batchSize, which
+ *   rewriteBatchedStatements=true turns into multi-row INSERTs.
+ * - Every chunkRows records are one transaction. After each commit the record count is saved
+ *   to <file>.checkpoint, so a failed or interrupted import resumes after the last committed
+ *   chunk when run again on the same (unchanged) file. Re-running a chunk is harmless because
+ *   it is an upsert.
+ * - A hot item's stock lives in its StockShards rows, so the upsert's stock = VALUES(stock)
+ *   alone would add the feed's stock on top of the shards. Hot items in a chunk are resharded
+ *   to the feed's stock in the same transaction, as the admin stock edit does.
+ * - A sku that belongs to a soft-deleted item (ItemPurger) is rejected: the upsert would
+ *   silently update the hidden row. Those skus are read once when the run starts.
+ */
+final class CatalogImport {
+
+    static final class Result {
+        long imported;
+        long rejected;
+        long resumedAfter;
+        long elapsedNanos;
+
+        double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : imported * 1e9 / elapsedNanos;
+        }
+    }
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int READ_BUFFER_CHARS = 1 << 20;
+    private static final int MAX_SKU_LENGTH = 64;
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private final DataSource ds;
+    private final StockShards shards;
+    private final int batchSize;
+    private final int chunkRows;
+    private ItemPurger purger;
+
+    /**
+     * @param shards null if stock shards are not in use
+     */
+    CatalogImport(DataSource ds, StockShards shards, int batchSize, int chunkRows) {
+        this.ds = ds;
+        this.shards = shards;
+        this.batchSize = batchSize;
+        this.chunkRows = Math.max(chunkRows, batchSize);
+    }
+
+    /**
+     * Rows for soft-deleted items' skus are rejected.
+     */
+    void setPurger(ItemPurger purger) {
+        this.purger = purger;
+    }
+
+    private static final class Row {
+        final String sku;
+        final String name;
+        final String description;
+        final long priceCents;
+        final int stock;
+
+        Row(String sku, String name, String description, long priceCents, int stock) {
+            this.sku = sku;
+            this.name = name;
+            this.description = description;
+            this.priceCents = priceCents;
+            this.stock = stock;
+        }
+    }
+
+    /**
+     * Imports the file, resuming from its checkpoint if there is one.
+     *
+     * @throws SQLException if a chunk cannot be committed; the checkpoint is left in place
+     */
+    Result run(Path file) throws IOException, SQLException {
+        Path checkpoint = Paths.get(file + ".checkpoint");
+        Path rejects = Paths.get(file + ".rejects");
+        Result result = new Result();
+        long start = System.nanoTime();
+
+        long skip = readCheckpoint(checkpoint, file);
+        result.resumedAfter = skip;
+        if (skip == 0) {
+            Files.deleteIfExists(rejects);
+        }
+
+        try (CsvReader csv = new CsvReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+             Connection conn = ds.getConnection()) {
+            List<String> header = csv.next();
+            if (header == null) {
+                throw new IOException("Empty file: " + file);
+            }
+            Map<String, Integer> columns = new HashMap<>();
+            for (int i = 0; i < header.size(); i++) {
+                columns.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+            }
+            for (String required : new String[]{"sku", "name", "price", "stock"}) {
+                if (!columns.containsKey(required)) {
+                    throw new IOException("Missing column '" + required + "' in header of " + file);
+                }
+            }
+
+            Map<String, Integer> deletedSkus = deletedSkus(conn);
+            long records = 0;
+            List<Row> chunk = new ArrayList<>(chunkRows);
+            List<String> chunkRejects = new ArrayList<>();
+            List<String> fields;
+            while ((fields = csv.next()) != null) {
+                records++;
+                if (records <= skip) {
+                    continue;
+                }
+                String reason = null;
+                Row row = null;
+                try {
+                    row = parse(fields, columns);
+                } catch (IllegalArgumentException e) {
+                    reason = e.getMessage();
+                }
+                if (row != null && deletedSkus.containsKey(row.sku)) {
+                    reason = "sku belongs to deleted item " + deletedSkus.get(row.sku);
+                    row = null;
+                }
+                if (row != null) {
+                    chunk.add(row);
+                } else {
+                    chunkRejects.add("line " + csv.recordLine() + ": " + reason);
+                }
+                if (records % chunkRows == 0) {
+                    commitChunk(conn, chunk, chunkRejects, rejects, checkpoint, file, records, result);
+                }
+            }
+            commitChunk(conn, chunk, chunkRejects, rejects, checkpoint, file, records, result);
+        }
+
+        Files.deleteIfExists(checkpoint);
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void commitChunk(Connection conn, List<Row> chunk, List<String> chunkRejects, Path rejects,
+                             Path checkpoint, Path file, long records, Result result)
+            throws IOException, SQLException {
+        for (int attempt = 1; !chunk.isEmpty(); attempt++) {
+            try {
+                upsert(conn, chunk);
+                break;
+            } catch (SQLException e) {
+                if (!OrderService.isRetryable(e) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                OrderService.backoff(attempt);
+            }
+        }
+        if (!chunkRejects.isEmpty()) {
+            try (BufferedWriter w = Files.newBufferedWriter(rejects, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String line : chunkRejects) {
+                    w.write(line);
+                    w.newLine();
+                }
+            }
+        }
+        writeCheckpoint(checkpoint, file, records);
+
+        result.imported += chunk.size();
+        result.rejected += chunkRejects.size();
+        Metrics.counter("cart_import_rows_total", "result", "imported").add(chunk.size());
+        Metrics.counter("cart_import_rows_total", "result", "rejected").add(chunkRejects.size());
+        chunk.clear();
+        chunkRejects.clear();
+    }
+
+    private void upsert(Connection conn, List<Row> chunk) throws SQLException {
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_UPSERT.text)) {
+            int pending = 0;
+            for (Row row : chunk) {
+                stmt.setString(1, row.sku);
+                stmt.setString(2, row.name);
+                if (row.description != null) {
+                    stmt.setString(3, row.description);
+                } else {
+                    stmt.setNull(3, Types.VARCHAR);
+                }
+                Money.set(stmt, 4, row.priceCents);
+                stmt.setInt(5, row.stock);
+                stmt.addBatch();
+                if (++pending == batchSize) {
+                    stmt.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                stmt.executeBatch();
+            }
+            reshardHotItems(conn, chunk);
+            conn.commit();
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            OrderService.rollbackQuietly(conn);
+            throw e;
+        }
+    }
+
+    /**
+     * Moves the imported stock of hot items in the chunk into their shards (items row first, then
+     * the shards, like a checkout). Hot items are few, so their skus are looked up one by one.
+     */
+    private void reshardHotItems(Connection conn, List<Row> chunk) throws SQLException {
+        if (shards == null || !shards.isEnabled()) {
+            return;
+        }
+        Map<Integer, Integer> hot = shards.hotItems();
+        if (hot.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> stockBySku = new HashMap<>();
+        for (Row row : chunk) {
+            // A later row for the same sku wins, as in the upsert
+            stockBySku.put(row.sku, row.stock);
+        }
+        Map<Integer, Integer> reshard = new TreeMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_SKU.text)) {
+            for (int itemId : hot.keySet()) {
+                stmt.setInt(1, itemId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    Integer stock = rs.next() ? stockBySku.get(rs.getString("sku")) : null;
+                    if (stock != null) {
+                        reshard.put(itemId, stock);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Integer, Integer> item : reshard.entrySet()) {
+            StockShards.reshard(conn, item.getKey(), hot.get(item.getKey()), item.getValue());
+        }
+    }
+
+    // sku -> id of every soft-deleted item that has one
+    private Map<String, Integer> deletedSkus(Connection conn) throws SQLException {
+        Map<String, Integer> skus = new HashMap<>();
+        if (purger == null || !purger.isEnabled()) {
+            return skus;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEMS_DELETED_SKUS.text);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                skus.put(rs.getString("sku"), rs.getInt("id"));
+            }
+        }
+        return skus;
+    }
+
+    /**
+     * Validated row, or IllegalArgumentException with the reason it was rejected.
+     */
+    private static Row parse(List<String> fields, Map<String, Integer> columns) {
+        String sku = field(fields, columns, "sku");
+        String name = field(fields, columns, "name");
+        String description = field(fields, columns, "description");
+        String priceText = field(fields, columns, "price");
+        String stockText = field(fields, columns, "stock");
+
+        if (sku == null) {
+            throw new IllegalArgumentException("missing sku");
+        }
+        if (sku.length() > MAX_SKU_LENGTH) {
+            throw new IllegalArgumentException("sku longer than " + MAX_SKU_LENGTH + " characters");
+        }
+        if (name == null) {
+            throw new IllegalArgumentException("missing name");
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("name longer than " + MAX_NAME_LENGTH + " characters");
+        }
+        if (priceText == null || stockText == null) {
+            throw new IllegalArgumentException("missing price or stock");
+        }
+        long price;
+        try {
+            price = Money.parse(priceText);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid price '" + priceText + "'");
+        }
+        if (!Money.isValidPrice(price)) {
+            throw new IllegalArgumentException("price out of range: " + priceText);
+        }
+        int stock;
+        try {
+            stock = Integer.parseInt(stockText);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid stock '" + stockText + "'");
+        }
+        if (stock < 0) {
+            throw new IllegalArgumentException("negative stock: " + stockText);
+        }
+        return new Row(sku, name, description, price, stock);
+    }
+
+    // Trimmed field, or null if the column is absent or blank
+    private static String field(List<String> fields, Map<String, Integer> columns, String column) {
+        Integer i = columns.get(column);
+        if (i == null || i >= fields.size()) {
+            return null;
+        }
+        String value = fields.get(i).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    // ========== Checkpoint ==========
+
+    /**
+     * Records already committed, or 0 if there is no checkpoint or it belongs to another
+     * version of the file (size or modification time changed).
+     */
+    private static long readCheckpoint(Path checkpoint, Path file) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(checkpoint)) {
+            p.load(in);
+        }
+        try {
+            if (Long.parseLong(p.getProperty("size", "-1")) != Files.size(file)
+                    || Long.parseLong(p.getProperty("modified", "-1")) != Files.getLastModifiedTime(file).toMillis()) {
+                return 0;
+            }
+            return Long.parseLong(p.getProperty("records", "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeCheckpoint(Path checkpoint, Path file, long records) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("records", Long.toString(records));
+        p.setProperty("size", Long.toString(Files.size(file)));
+        p.setProperty("modified", Long.toString(Files.getLastModifiedTime(file).toMillis()));
+        Path dir = checkpoint.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, checkpoint.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                p.store(out, "CatalogImport progress");
+            }
+            Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // ========== CSV ==========
+
+    /**
+     * Streaming RFC 4180 record reader over its own char buffer.
+     */
+    static final class CsvReader implements AutoCloseable {
+        private final Reader in;
+        private final char[] buf = new char[READ_BUFFER_CHARS];
+        private int pos;
+        private int len;
+        private int line = 1;
+        private int recordLine;
+
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * 1-based line the last record returned by next() started on.
+         */
+        int recordLine() {
+            return recordLine;
+        }
+
+        /**
+         * Next record's fields, or null at end of input. Blank lines are skipped.
+         */
+        List<String> next() throws IOException {
+            while (true) {
+                recordLine = line;
+                List<String> fields = new ArrayList<>();
+                StringBuilder field = new StringBuilder();
+                boolean quoted = false;
+                boolean any = false;
+                int c;
+                while ((c = read()) >= 0) {
+                    if (quoted) {
+                        if (c == '"') {
+                            if (peek() == '"') {
+                                read();
+                                field.append('"');
+                            } else {
+                                quoted = false;
+                            }
+                        } else {
+                            if (c == '\n') {
+                                line++;
+                            }
+                            field.append((char) c);
+                        }
+                    } else if (c == '"' && field.length() == 0) {
+                        quoted = true;
+                        any = true;
+                    } else if (c == ',') {
+                        fields.add(field.toString());
+                        field.setLength(0);
+                        any = true;
+                    } else if (c == '\n') {
+                        line++;
+                        break;
+                    } else if (c != '\r') {
+                        field.append((char) c);
+                        any = true;
+                    }
+                }
+                if (quoted) {
+                    throw new IOException("Unterminated quoted field starting on line " + recordLine);
+                }
+                if (any) {
+                    fields.add(field.toString());
+                    return fields;
+                }
+                if (c < 0) {
+                    return null;
+                }
+            }
+        }
+
+        private int read() throws IOException {
+            if (pos == len && !fill()) {
+                return -1;
+            }
+            return buf[pos++];
+        }
+
+        private int peek() throws IOException {
+            if (pos == len && !fill()) {
+                return -1;
+            }
+            return buf[pos];
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) {
+                return false;
+            }
+            pos = 0;
+            len = n;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
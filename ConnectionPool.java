@@ -0,0 +1,640 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * ConnectionPool.java
+ *
+ * Small bounded JDBC connection pool that replaces the single shared Connection.
+ * - At most maxSize physical connections are open; borrowers wait up to borrowTimeoutMillis for one
+ * - Idle connections above minIdle are evicted after maxIdleMillis by a background thread
+ * - Connections that sat idle longer than validateAfterMillis are checked with isValid() on borrow
+ * - warmUp() opens minIdle connections at startup so the first requests don't pay the connect cost
+ *
+ * Borrowed connections are proxies: close() hands the physical connection back to the pool
+ * (rolling back any open transaction and restoring auto-commit) instead of closing the socket.
+ *
+ * Each physical connection also keeps an LRU cache of up to statementCacheSize prepared
+ * statements keyed by SQL text (see Sql for the registry of statements). prepareStatement on a
+ * borrowed connection returns the cached statement when it is free; its close() only clears
+ * parameters, so the same SQL is parsed/prepared once per connection rather than once per call.
+ *
+ * Borrow time (including opening a new physical connection), commits, rollbacks and the execute
+ * time of every prepared statement (labelled with its Sql registry name) are reported to Metrics.
+ */
+final class ConnectionPool implements DataSource, AutoCloseable {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final int minIdle;
+    private final long maxIdleMillis;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterMillis;
+    private final int statementCacheSize;
+
+    // Most recently returned connection at the head, so eviction works from the tail
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    private static final Metrics.Timer ACQUIRE_TIMER = Metrics.timer("cart_pool_acquire_seconds");
+    private static final Metrics.Timer COMMIT_TIMER = Metrics.timer("cart_db_commit_seconds");
+
+    ConnectionPool(String url, String user, String password,
+                   int maxSize, int minIdle, long maxIdleMillis,
+                   long borrowTimeoutMillis, long validateAfterMillis, int statementCacheSize) {
+        if (maxSize < 1 || minIdle < 0 || minIdle > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: maxSize=" + maxSize + ", minIdle=" + minIdle);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.minIdle = minIdle;
+        this.maxIdleMillis = maxIdleMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterMillis = validateAfterMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000L, maxIdleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens minIdle connections up front. Fails fast if the database is unreachable.
+     */
+    void warmUp() throws SQLException {
+        while (total.get() < minIdle) {
+            if (total.incrementAndGet() > maxSize) {
+                total.decrementAndGet();
+                break;
+            }
+            try {
+                idle.offerFirst(new PooledConnection(openPhysical()));
+            } catch (SQLException e) {
+                total.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection "
+                        + "(active=" + active.get() + ", max=" + maxSize + ")", "08001");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", "08001", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pc = takeIdleOrCreate();
+            active.incrementAndGet();
+            ACQUIRE_TIMER.recordSince(start);
+            return pc.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pool is bound to a single set of credentials");
+    }
+
+    private PooledConnection takeIdleOrCreate() throws SQLException {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            if (isUsable(pc)) {
+                return pc;
+            }
+            invalidated.incrementAndGet();
+            discard(pc);
+        }
+        total.incrementAndGet();
+        try {
+            return new PooledConnection(openPhysical());
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+        try {
+            if (pc.physical.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pc.lastUsed < validateAfterMillis) {
+                return true;
+            }
+            return pc.physical.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection c = DriverManager.getConnection(url, user, password);
+        created.incrementAndGet();
+        return c;
+    }
+
+    private void release(PooledConnection pc) {
+        active.decrementAndGet();
+        boolean reusable = !closed;
+        try {
+            if (pc.physical.isClosed()) {
+                reusable = false;
+            } else if (!pc.physical.getAutoCommit()) {
+                // Never hand a half-finished transaction to the next borrower
+                Metrics.counter("cart_db_rollbacks_total", "source", "pool").increment();
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        if (reusable) {
+            pc.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pc);
+        } else {
+            discard(pc);
+        }
+        permits.release();
+    }
+
+    private void discard(PooledConnection pc) {
+        total.decrementAndGet();
+        try {
+            pc.physical.close();
+        } catch (SQLException ignore) {
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && total.get() > minIdle) {
+            PooledConnection pc = it.next();
+            if (pc.lastUsed < cutoff && idle.removeLastOccurrence(pc)) {
+                evicted.incrementAndGet();
+                discard(pc);
+            }
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long prev;
+        while (nanos > (prev = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(prev, nanos)) {
+                break;
+            }
+        }
+    }
+
+    // ========== Metrics ==========
+    int getActiveCount() {
+        return active.get();
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    int getTotalCount() {
+        return total.get();
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    long getBorrowCount() {
+        return borrows.get();
+    }
+
+    long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    double getAverageWaitMillis() {
+        long n = borrows.get();
+        return n == 0 ? 0.0 : totalWaitNanos.get() / 1_000_000.0 / n;
+    }
+
+    double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    String stats() {
+        return String.format("active=%d idle=%d total=%d max=%d borrows=%d timeouts=%d avgWait=%.3fms maxWait=%.3fms "
+                        + "created=%d evicted=%d invalidated=%d stmtCacheHits=%d stmtCacheMisses=%d",
+                getActiveCount(), getIdleCount(), getTotalCount(), maxSize, getBorrowCount(), getTimeoutCount(),
+                getAverageWaitMillis(), getMaxWaitMillis(), created.get(), evicted.get(), invalidated.get(),
+                statementHits.get(), statementMisses.get());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
+    }
+
+    // ========== DataSource boilerplate ==========
+    @Override
+    public PrintWriter getLogWriter() {
+        return DriverManager.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        DriverManager.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    // ========== Pooled connection + borrower handle ==========
+    private final class PooledConnection {
+        final Connection physical;
+        volatile long lastUsed = System.currentTimeMillis();
+        // Only touched by the current borrower, so no locking needed
+        private final LinkedHashMap<String, CachedStatement> statements =
+                new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                        if (size() > statementCacheSize) {
+                            eldest.getValue().evict();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * prepareStatement(sql), (sql, autoGeneratedKeys) and (sql, resultSetType, resultSetConcurrency)
+         * go through the cache; a statement already checked out (same SQL used twice at once)
+         * gets a plain, uncached one instead.
+         */
+        PreparedStatement prepare(Connection handle, Method method, Object[] args) throws Throwable {
+            StringBuilder key = new StringBuilder((String) args[0]);
+            for (int i = 1; i < args.length; i++) {
+                key.append('\u0000').append(args[i]);
+            }
+            String k = key.toString();
+
+            CachedStatement cached = statements.get(k);
+            if (cached != null && cached.evicted && !cached.inUse) {
+                statements.remove(k);
+                cached = null;
+            }
+            if (cached != null && !cached.inUse) {
+                statementHits.incrementAndGet();
+                return cached.checkOut(handle);
+            }
+            statementMisses.incrementAndGet();
+            PreparedStatement ps = (PreparedStatement) invokePhysical(method, args);
+            if (cached != null) {
+                return timed(ps, (String) args[0]);
+            }
+            cached = new CachedStatement(ps, Sql.nameOf((String) args[0]));
+            statements.put(k, cached);
+            return cached.checkOut(handle);
+        }
+
+        Object invokePhysical(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Handle(this));
+        }
+    }
+
+    /**
+     * One handle per borrow. close() returns the connection to the pool exactly once;
+     * any use after that fails instead of touching a connection someone else now owns.
+     */
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pc;
+        private boolean released = false;
+
+        Handle(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        release(pc);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pc.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pc.physical + "]";
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("Connection has already been returned to the pool", "08003");
+            }
+            switch (method.getName()) {
+                case "prepareStatement":
+                    if (statementCacheSize > 0 && isCacheable(method)) {
+                        return pc.prepare((Connection) proxy, method, args);
+                    }
+                    return timed((PreparedStatement) pc.invokePhysical(method, args), (String) args[0]);
+                case "commit": {
+                    long start = System.nanoTime();
+                    try {
+                        return pc.invokePhysical(method, args);
+                    } finally {
+                        COMMIT_TIMER.recordSince(start);
+                    }
+                }
+                case "rollback":
+                    Metrics.counter("cart_db_rollbacks_total", "source", "app").increment();
+                    return pc.invokePhysical(method, args);
+                default:
+                    return pc.invokePhysical(method, args);
+            }
+        }
+
+        private boolean isCacheable(Method method) {
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length == 0 || params[0] != String.class || params.length > 3) {
+                return false;
+            }
+            for (int i = 1; i < params.length; i++) {
+                if (params[i] != int.class) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A prepared statement that outlives the borrower's try-with-resources: close() clears
+     * parameters and settings and returns it to the connection's cache.
+     */
+    private static final class CachedStatement implements InvocationHandler {
+        private final PreparedStatement physical;
+        private final PreparedStatement proxy;
+        private final String statement;
+        private final Metrics.Timer timer;
+        private Connection owner;
+        boolean inUse = false;
+        boolean evicted = false;
+        private boolean dirty = false;
+
+        CachedStatement(PreparedStatement physical, String statement) {
+            this.physical = physical;
+            this.statement = statement;
+            this.timer = sqlTimer(statement);
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    this);
+        }
+
+        PreparedStatement checkOut(Connection handle) {
+            owner = handle;
+            inUse = true;
+            return proxy;
+        }
+
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                closePhysical();
+            }
+        }
+
+        private void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException ignore) {
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (inUse) {
+                        inUse = false;
+                        owner = null;
+                        if (evicted) {
+                            closePhysical();
+                        } else {
+                            reset();
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return !inUse;
+                case "getConnection":
+                    return owner;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + physical + "]";
+                case "setMaxRows":
+                case "setFetchSize":
+                case "setQueryTimeout":
+                case "setLargeMaxRows":
+                    dirty = true;
+                    break;
+                default:
+                    break;
+            }
+            if (!inUse) {
+                throw new SQLException("Statement is closed", "HY000");
+            }
+            return invokeTimed(statement, timer, physical, method, args);
+        }
+
+        private void reset() {
+            try {
+                physical.clearParameters();
+                physical.clearBatch();
+                if (dirty) {
+                    physical.setMaxRows(0);
+                    physical.setFetchSize(0);
+                    physical.setQueryTimeout(0);
+                    dirty = false;
+                }
+            } catch (SQLException e) {
+                // Can't trust it any more; drop it (the cache entry stays but is never handed out again)
+                evicted = true;
+                closePhysical();
+            }
+        }
+    }
+
+    // ========== Statement timing ==========
+    private static Metrics.Timer sqlTimer(String statement) {
+        return Metrics.timer("cart_sql_seconds", "statement", statement);
+    }
+
+    /**
+     * Wraps a statement that bypasses the cache so its executes are still timed.
+     */
+    private static PreparedStatement timed(PreparedStatement ps, String sql) {
+        String statement = Sql.nameOf(sql);
+        Metrics.Timer timer = sqlTimer(statement);
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return invokeTimed(statement, timer, ps, method, args);
+                    }
+                });
+    }
+
+    /**
+     * Invokes method on target, recording execute/executeQuery/executeUpdate/executeBatch time
+     * (successful or not) in timer.
+     */
+    private static Object invokeTimed(String statement, Metrics.Timer timer,
+                                      Object target, Method method, Object[] args) throws Throwable {
+        if (!method.getName().startsWith("execute")) {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Metrics.counter("cart_sql_errors_total", "statement", statement).increment();
+            throw e.getCause();
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+}
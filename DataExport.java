@@ -0,0 +1,232 @@
+package shopingcartapp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * DataExport.java
+ *
+ * Streams the order history (orders joined to users and items) or the catalog into a CSV or
+ * JSON Lines file for the admin menu.
+ *
+ * - One forward-only, read-only SELECT with streaming enabled (OrderHistory.enableStreaming),
+ *   so only the current row is held in memory whatever the table size.
+ * - Rows go through 256 KB buffers, optionally gzip-compressed (path ending in .gz).
+ * - Orders are read in primary-key order, which needs no sort on the server; the date range
+ *   is a plain filter.
+ * - The file is written next to the target under a temporary name and moved into place when
+ *   complete, so a reader never sees half an export.
+ *
+ * Callers pass a connection from ReadRouter, so with a replica configured the export never
+ * touches the primary that checkouts use.
+ */
+final class DataExport {
+
+    enum Format { CSV, JSONL }
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final int FALLBACK_FETCH_SIZE = 1000;
+
+    private DataExport() {
+    }
+
+    /**
+     * Orders placed in [from, to) (null for unbounded).
+     *
+     * @return rows written
+     */
+    static long orders(Connection conn, Timestamp from, Timestamp to, Format format, Path file)
+            throws SQLException, IOException {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.EXPORT_ORDERS.text)) {
+            stmt.setTimestamp(1, from != null ? from : OrderHistory.MIN_DATE);
+            stmt.setTimestamp(2, to != null ? to : OrderHistory.MAX_DATE);
+            return write(stmt, format, file, "orders");
+        }
+    }
+
+    /**
+     * Every item that is not soft-deleted, hot items with their shard stock included, so the file
+     * re-imports as it was; the sku column is empty when items.sku does not exist.
+     *
+     * @return rows written
+     */
+    static long items(Connection conn, SchemaCapabilities schema, Format format, Path file)
+            throws SQLException, IOException {
+        try (PreparedStatement stmt = conn.prepareStatement(itemsQuery(schema).text)) {
+            return write(stmt, format, file, "items");
+        }
+    }
+
+    // A table without sku predates item_stock_shards and deleted_at (SchemaMigrations V5/V8, README schema)
+    private static Sql itemsQuery(SchemaCapabilities schema) {
+        if (!schema.hasColumn("items", "sku")) {
+            return Sql.EXPORT_ITEMS_NO_SKU;
+        }
+        boolean live = schema.hasColumn("items", "deleted_at");
+        if (schema.hasTable("item_stock_shards")) {
+            return live ? Sql.EXPORT_ITEMS_SHARDED_LIVE : Sql.EXPORT_ITEMS_SHARDED;
+        }
+        return live ? Sql.EXPORT_ITEMS_LIVE : Sql.EXPORT_ITEMS;
+    }
+
+    private static long write(PreparedStatement stmt, Format format, Path file, String table)
+            throws SQLException, IOException {
+        OrderHistory.enableStreaming(stmt, FALLBACK_FETCH_SIZE);
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        long rows = 0;
+        try {
+            try (ResultSet rs = stmt.executeQuery();
+                 Writer out = open(tmp, file.getFileName().toString().endsWith(".gz"))) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int n = meta.getColumnCount();
+                String[] labels = new String[n + 1];
+                boolean[] numeric = new boolean[n + 1];
+                for (int i = 1; i <= n; i++) {
+                    labels[i] = meta.getColumnLabel(i).toLowerCase(Locale.ROOT);
+                    numeric[i] = isNumeric(meta.getColumnType(i));
+                }
+                if (format == Format.CSV) {
+                    for (int i = 1; i <= n; i++) {
+                        if (i > 1) {
+                            out.write(',');
+                        }
+                        csv(out, labels[i]);
+                    }
+                    out.write('\n');
+                }
+                while (rs.next()) {
+                    if (format == Format.CSV) {
+                        for (int i = 1; i <= n; i++) {
+                            if (i > 1) {
+                                out.write(',');
+                            }
+                            String v = rs.getString(i);
+                            if (v != null) {
+                                csv(out, v);
+                            }
+                        }
+                    } else {
+                        out.write('{');
+                        for (int i = 1; i <= n; i++) {
+                            if (i > 1) {
+                                out.write(',');
+                            }
+                            json(out, labels[i]);
+                            out.write(':');
+                            String v = rs.getString(i);
+                            if (v == null) {
+                                out.write("null");
+                            } else if (numeric[i]) {
+                                out.write(v);
+                            } else {
+                                json(out, v);
+                            }
+                        }
+                        out.write('}');
+                    }
+                    out.write('\n');
+                    rows++;
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Metrics.counter("cart_export_rows_total", "table", table).add(rows);
+        return rows;
+    }
+
+    private static Writer open(Path file, boolean gzip) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        out = gzip ? new GZIPOutputStream(out, BUFFER_BYTES) : new BufferedOutputStream(out, BUFFER_BYTES);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_BYTES);
+    }
+
+    private static boolean isNumeric(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Quoted only when needed (comma, quote or line break)
+    private static void csv(Writer out, String v) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < v.length() && !quote; i++) {
+            char c = v.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(v);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private static void json(Writer out, String v) throws IOException {
+        out.write('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
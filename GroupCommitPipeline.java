@@ -0,0 +1,255 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupCommitPipeline.java
+ *
+ * Group-commit checkout stage (OrderService.Mode.GROUP_COMMIT).
+ * Concurrent order requests are queued for up to windowMillis, then drained together:
+ * - requests are grouped by item_id
+ * - each item row is locked once (SELECT stock ... FOR UPDATE, in ascending id order)
+ * - requests are accepted in arrival order while that item's stock lasts
+ * - each item gets a single stock UPDATE, all accepted orders go in as one JDBC batch
+ * - the whole drain is one transaction, so one commit covers many shoppers
+ * - accepted quantities per item are added to the sales rollup in the same transaction
+ * - hot (sharded) items skip the items row: each request takes from a shard (StockShards)
+ *
+ * Every caller still gets its own Result (or the SQLException if the batch failed).
+ */
+final class GroupCommitPipeline implements AutoCloseable {
+
+    private static final class Request {
+        final int userId;
+        final int itemId;
+        final int quantity;
+        final CompletableFuture<OrderService.Result> result = new CompletableFuture<>();
+
+        Request(int userId, int itemId, int quantity) {
+            this.userId = userId;
+            this.itemId = itemId;
+            this.quantity = quantity;
+        }
+    }
+
+    private final DataSource ds;
+    private final SalesRollup sales;
+    private final StockShards shards;
+    private final long windowMillis;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    GroupCommitPipeline(DataSource ds, SalesRollup sales, StockShards shards, long windowMillis, int maxBatch) {
+        this.ds = ds;
+        this.sales = sales;
+        this.shards = shards;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        this.worker = new Thread(this::run, "group-commit");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues the order and blocks until the batch containing it has committed or failed.
+     */
+    OrderService.Result submit(int userId, int itemId, int quantity) throws SQLException {
+        if (!running) {
+            throw new SQLException("Group-commit pipeline is shut down");
+        }
+        Request req = new Request(userId, itemId, quantity);
+        queue.add(req);
+        // close() may have run between the check above and the add, after the worker's last drain;
+        // if the request is still queued nobody would ever complete it
+        if (!running && queue.remove(req)) {
+            throw new SQLException("Group-commit pipeline is shut down");
+        }
+        try {
+            return req.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for group commit", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new SQLException("Group commit failed", cause);
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Give concurrent callers a few milliseconds to join this batch
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commitWithRetry(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        failQueued();
+    }
+
+    // Anything left after shutdown must not hang its caller
+    private void failQueued() {
+        Request req;
+        while ((req = queue.poll()) != null) {
+            req.result.completeExceptionally(new SQLException("Group-commit pipeline is shut down"));
+        }
+    }
+
+    private void commitWithRetry(List<Request> batch) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Map<Request, OrderService.Result> results = commit(batch);
+                for (Map.Entry<Request, OrderService.Result> e : results.entrySet()) {
+                    e.getKey().result.complete(e.getValue());
+                }
+                return;
+            } catch (SQLException e) {
+                if (!OrderService.isRetryable(e) || attempt >= OrderService.MAX_ATTEMPTS) {
+                    for (Request req : batch) {
+                        req.result.completeExceptionally(e);
+                    }
+                    return;
+                }
+                try {
+                    OrderService.backoff(attempt);
+                } catch (SQLException interrupted) {
+                    for (Request req : batch) {
+                        req.result.completeExceptionally(interrupted);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private Map<Request, OrderService.Result> commit(List<Request> batch) throws SQLException {
+        // Group by item; ascending lock order keeps this drain deadlock-free against other checkouts
+        Map<Integer, List<Request>> byItem = new TreeMap<>();
+        for (Request req : batch) {
+            byItem.computeIfAbsent(req.itemId, k -> new ArrayList<>()).add(req);
+        }
+
+        Map<Request, OrderService.Result> results = new LinkedHashMap<>();
+        Map<Integer, Integer> sold = new TreeMap<>();
+        try (Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement lockStmt = conn.prepareStatement(Sql.ITEM_STOCK_FOR_UPDATE.text);
+                 PreparedStatement stockStmt = conn.prepareStatement(Sql.STOCK_DECREMENT.text);
+                 PreparedStatement orderStmt = conn.prepareStatement(Sql.ORDER_INSERT.text)) {
+
+                for (Map.Entry<Integer, List<Request>> group : byItem.entrySet()) {
+                    int itemId = group.getKey();
+                    if (shards != null && shards.isHot(itemId)) {
+                        int taken = 0;
+                        for (Request req : group.getValue()) {
+                            if (shards.take(conn, itemId, req.quantity)) {
+                                taken += req.quantity;
+                                orderStmt.setInt(1, req.userId);
+                                orderStmt.setInt(2, req.itemId);
+                                orderStmt.setInt(3, req.quantity);
+                                orderStmt.addBatch();
+                                results.put(req, OrderService.Result.OK);
+                            } else {
+                                results.put(req, OrderService.Result.OUT_OF_STOCK);
+                            }
+                        }
+                        if (taken > 0) {
+                            sold.put(itemId, taken);
+                        }
+                        continue;
+                    }
+                    lockStmt.setInt(1, itemId);
+                    int stock;
+                    try (ResultSet rs = lockStmt.executeQuery()) {
+                        stock = rs.next() ? rs.getInt("stock") : -1;
+                    }
+
+                    int taken = 0;
+                    for (Request req : group.getValue()) {
+                        if (stock < 0) {
+                            results.put(req, OrderService.Result.NOT_FOUND);
+                        } else if (stock - taken < req.quantity) {
+                            results.put(req, OrderService.Result.OUT_OF_STOCK);
+                        } else {
+                            taken += req.quantity;
+                            orderStmt.setInt(1, req.userId);
+                            orderStmt.setInt(2, req.itemId);
+                            orderStmt.setInt(3, req.quantity);
+                            orderStmt.addBatch();
+                            results.put(req, OrderService.Result.OK);
+                        }
+                    }
+
+                    if (taken > 0) {
+                        stockStmt.setInt(1, taken);
+                        stockStmt.setInt(2, itemId);
+                        stockStmt.addBatch();
+                        sold.put(itemId, taken);
+                    }
+                }
+
+                stockStmt.executeBatch();
+                orderStmt.executeBatch();
+                if (sales != null) {
+                    sales.recordAll(conn, sold);
+                }
+                conn.commit();
+                conn.setAutoCommit(true);
+                return results;
+            } catch (SQLException e) {
+                OrderService.rollbackQuietly(conn);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // The worker notices within one poll interval and drains what is already queued
+        running = false;
+        try {
+            worker.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!worker.isAlive()) {
+            failQueued();
+        }
+    }
+}
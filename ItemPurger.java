@@ -0,0 +1,368 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ItemPurger.java
+ *
+ * Soft delete of items, with the expensive part moved off the admin's request. A hard
+ * DELETE FROM items cascades to every order of the item in one transaction, which for a
+ * bestseller locks millions of orders rows and stalls every checkout.
+ *
+ * - delete() (or softDelete() inside the caller's transaction) only stamps items.deleted_at,
+ *   zeroes the item's stock and drops its stock shards. The in-memory deleted set hides the item
+ *   from the catalog, search and lookups and makes OrderService answer NOT_FOUND at once; the
+ *   zero stock makes any checkout already past that check fail its guarded decrement.
+ * - A background thread then works through deleted items (lowest id first). Each chunk of up to
+ *   chunkRows orders is copied to orders_archive and deleted from orders in one short
+ *   transaction, and the thread sleeps between chunks to stay under rowsPerSecond. When no
+ *   orders are left the items row itself is deleted.
+ * - Everything it needs is in the database (deleted_at, the remaining orders), so after a restart
+ *   load() picks up where the last run stopped.
+ * - If an item's purge fails for good (a schema mismatch in orders_archive, a foreign key from
+ *   another table, ...), that item is backed off exponentially and the worker moves on to the
+ *   next one, so one bad item cannot stall the rest. The failure is kept for failures() and
+ *   counted in cart_purge_failures_total.
+ *
+ * progress() and failures() back the admin menu's purge view. Disabled (deleteItem hard-deletes as before)
+ * until items.deleted_at and orders_archive exist (SchemaMigrations V8/V9).
+ */
+final class ItemPurger implements AutoCloseable {
+
+    static final class Progress {
+        final int itemId;
+        final long total;
+        final long startedMillis;
+        volatile long archived;
+
+        Progress(int itemId, long total) {
+            this.itemId = itemId;
+            this.total = total;
+            this.startedMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Last failed purge attempt of an item; the item is skipped until retryAtMillis.
+     */
+    static final class Failure {
+        final int itemId;
+        final int attempts;
+        final String message;
+        final long retryAtMillis;
+
+        Failure(int itemId, int attempts, String message, long retryAtMillis) {
+            this.itemId = itemId;
+            this.attempts = attempts;
+            this.message = message;
+            this.retryAtMillis = retryAtMillis;
+        }
+    }
+
+    // Backoff after a failure: idleMillis (at least a second), doubling up to 64 times that
+    private static final long MIN_RETRY_MILLIS = 1_000L;
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private final DataSource ds;
+    private final SchemaCapabilities schema;
+    private final int chunkRows;
+    private final int rowsPerSecond;
+    private final long idleMillis;
+    private final Set<Integer> deleted = ConcurrentHashMap.newKeySet();
+    // Items whose orders are being archived right now (at most one with a single worker)
+    private final ConcurrentHashMap<Integer, Progress> running = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Failure> failures = new ConcurrentHashMap<>();
+    private final Object wake = new Object();
+    private final Thread worker;
+    private volatile boolean open = true;
+
+    ItemPurger(DataSource ds, SchemaCapabilities schema, int chunkRows, int rowsPerSecond, long idleMillis) {
+        this.ds = ds;
+        this.schema = schema;
+        this.chunkRows = Math.max(1, chunkRows);
+        this.rowsPerSecond = Math.max(1, rowsPerSecond);
+        this.idleMillis = idleMillis;
+        this.worker = new Thread(this::run, "item-purge");
+        this.worker.setDaemon(true);
+        Metrics.gauge("cart_purge_failing_items", failures::size);
+    }
+
+    boolean isEnabled() {
+        return schema.hasColumn("items", "deleted_at") && schema.hasTable("orders_archive");
+    }
+
+    /**
+     * Re-reads which items are soft-deleted (startup, Reload Schema Capabilities) and starts the
+     * worker if it is not running yet.
+     */
+    void load() throws SQLException {
+        if (!isEnabled()) {
+            deleted.clear();
+            failures.clear();
+            return;
+        }
+        Set<Integer> loaded = new TreeSet<>();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ITEMS_DELETED.text);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                loaded.add(rs.getInt("id"));
+            }
+        }
+        deleted.retainAll(loaded);
+        deleted.addAll(loaded);
+        failures.keySet().retainAll(loaded);
+        if (!worker.isAlive()) {
+            worker.start();
+        }
+        wakeUp();
+    }
+
+    boolean isDeleted(int itemId) {
+        return !deleted.isEmpty() && deleted.contains(itemId);
+    }
+
+    Set<Integer> deletedIds() {
+        return Collections.unmodifiableSet(new TreeSet<>(deleted));
+    }
+
+    // ========== Soft delete ==========
+
+    /**
+     * Soft-deletes the item in its own transaction.
+     *
+     * @return false if there is no such (undeleted) item
+     */
+    boolean delete(int itemId) throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                boolean found = softDelete(conn, itemId);
+                conn.commit();
+                conn.setAutoCommit(true);
+                if (found) {
+                    deleted(itemId);
+                }
+                return found;
+            } catch (SQLException e) {
+                OrderService.rollbackQuietly(conn);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Soft-deletes inside the caller's transaction; call deleted() after it commits.
+     */
+    boolean softDelete(Connection conn, int itemId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_SOFT_DELETE.text)) {
+            stmt.setInt(1, itemId);
+            if (stmt.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        if (schema.hasTable("item_stock_shards")) {
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_DELETE.text)) {
+                stmt.setInt(1, itemId);
+                stmt.executeUpdate();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hides a committed soft delete and queues its purge.
+     */
+    void deleted(int itemId) {
+        deleted.add(itemId);
+        wakeUp();
+    }
+
+    // ========== Progress ==========
+
+    /**
+     * Items with a purge in progress; deleted items not in here are still queued.
+     */
+    List<Progress> progress() {
+        return new ArrayList<>(running.values());
+    }
+
+    /**
+     * Deleted items whose last purge attempt failed.
+     */
+    List<Failure> failures() {
+        return new ArrayList<>(failures.values());
+    }
+
+    // ========== Worker ==========
+
+    private void run() {
+        while (open) {
+            try {
+                Integer next = nextItem();
+                if (next == null) {
+                    synchronized (wake) {
+                        wake.wait(idleMillis);
+                    }
+                    continue;
+                }
+                try {
+                    purge(next);
+                    failures.remove(next);
+                } catch (SQLException e) {
+                    failed(next, e);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lowest deleted item id that is not backing off after a failure, or null.
+     */
+    private Integer nextItem() {
+        if (deleted.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (int itemId : new TreeSet<>(deleted)) {
+            Failure f = failures.get(itemId);
+            if (f == null || f.retryAtMillis <= now) {
+                return itemId;
+            }
+        }
+        return null;
+    }
+
+    private void failed(int itemId, SQLException e) {
+        Failure previous = failures.get(itemId);
+        int attempts = previous == null ? 1 : previous.attempts + 1;
+        long delay = Math.max(MIN_RETRY_MILLIS, idleMillis) << Math.min(attempts - 1, MAX_BACKOFF_SHIFT);
+        failures.put(itemId, new Failure(itemId, attempts, e.toString(), System.currentTimeMillis() + delay));
+        Metrics.counter("cart_purge_failures_total").increment();
+        System.err.println("Purge of item " + itemId + " failed (attempt " + attempts + ", next try in "
+                + delay / 1000 + " s, other items go first):");
+        e.printStackTrace();
+    }
+
+    private void purge(int itemId) throws SQLException, InterruptedException {
+        Progress p = running.get(itemId);
+        if (p == null) {
+            p = new Progress(itemId, countOrders(itemId));
+            running.put(itemId, p);
+        }
+        while (open) {
+            long start = System.nanoTime();
+            int rows = purgeChunk(itemId);
+            if (rows < 0) {
+                running.remove(itemId);
+                deleted.remove(itemId);
+                return;
+            }
+            p.archived += rows;
+            Metrics.counter("cart_purge_rows_total").add(rows);
+            // Stay under rowsPerSecond on average
+            long pauseMillis = rows * 1000L / rowsPerSecond - (System.nanoTime() - start) / 1_000_000;
+            if (pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+        }
+    }
+
+    private long countOrders(int itemId) throws SQLException {
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.PURGE_COUNT.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Archives and deletes the item's next chunkRows orders in one transaction, or deletes the
+     * item itself once none are left.
+     *
+     * @return orders moved, or -1 once the item is gone
+     */
+    private int purgeChunk(int itemId) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = ds.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    int rows = purgeChunk(conn, itemId);
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                    return rows;
+                } catch (SQLException e) {
+                    OrderService.rollbackQuietly(conn);
+                    if (!OrderService.isRetryable(e) || attempt >= OrderService.MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+            OrderService.backoff(attempt);
+        }
+    }
+
+    private int purgeChunk(Connection conn, int itemId) throws SQLException {
+        int lastId;
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.PURGE_CHUNK_END.text)) {
+            stmt.setInt(1, itemId);
+            stmt.setInt(2, chunkRows);
+            try (ResultSet rs = stmt.executeQuery()) {
+                lastId = rs.next() ? rs.getInt(1) : 0;
+                if (rs.wasNull()) {
+                    lastId = 0;
+                }
+            }
+        }
+        if (lastId == 0) {
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.PURGE_ITEM.text)) {
+                stmt.setInt(1, itemId);
+                stmt.executeUpdate();
+            }
+            return -1;
+        }
+        int rows;
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.PURGE_ARCHIVE.text)) {
+            stmt.setInt(1, itemId);
+            stmt.setInt(2, lastId);
+            rows = stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.PURGE_DELETE.text)) {
+            stmt.setInt(1, itemId);
+            stmt.setInt(2, lastId);
+            stmt.executeUpdate();
+        }
+        return rows;
+    }
+
+    private void wakeUp() {
+        synchronized (wake) {
+            wake.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        worker.interrupt();
+        try {
+            worker.join(5_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
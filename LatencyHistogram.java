@@ -0,0 +1,142 @@
+package shopingcartapp;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram.java
+ *
+ * Lock-free log-linear histogram in the style of HdrHistogram: values (nanoseconds) below 128
+ * are counted exactly, above that each power-of-two range is split into 64 linear sub-buckets,
+ * so any recorded value is reported within ~1.6% of its true value. The whole long range fits in
+ * a fixed array of counters, recording is a single atomic increment, and merging is cheap.
+ */
+final class LatencyHistogram {
+
+    private static final int PRECISION_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;   // 128
+    private static final int HALF = SUB_BUCKETS >> 1;             // 64
+    private static final int BUCKETS = SUB_BUCKETS + (64 - PRECISION_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long prev;
+        while (value > (prev = max.get())) {
+            if (max.compareAndSet(prev, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds another histogram's counts into this one.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long prev;
+        long otherMax = other.max.get();
+        while (otherMax > (prev = max.get())) {
+            if (max.compareAndSet(prev, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    long getTotalCount() {
+        return total.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getSum() {
+        return sum.get();
+    }
+
+    double getMean() {
+        long n = total.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Smallest recorded-bucket value v such that at least percentile% of values are <= v.
+     */
+    long getValueAtPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Percentile ladder (like HdrHistogram's outputPercentileDistribution), values divided by scale.
+     */
+    void printDistribution(PrintStream out, double scale, String unit) {
+        out.printf("%12s %12s %12s%n", "Value(" + unit + ")", "Percentile", "TotalCount");
+        double[] ladder = {0, 50, 75, 90, 95, 99, 99.9, 99.99, 99.999, 100};
+        long n = total.get();
+        for (double p : ladder) {
+            out.printf("%12.3f %12.5f %12d%n", getValueAtPercentile(p) / scale, p / 100.0,
+                    (long) Math.ceil(p / 100.0 * n));
+        }
+        out.printf("#[Mean = %.3f, Max = %.3f, Count = %d]%n", getMean() / scale, max.get() / scale, n);
+    }
+
+    // ========== Bucket math ==========
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - (PRECISION_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int k = index - SUB_BUCKETS;
+        int shift = k / HALF + 1;
+        long sub = k % HALF + HALF;
+        long next = (sub + 1) << shift;
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
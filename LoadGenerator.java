@@ -0,0 +1,413 @@
+package shopingcartapp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadGenerator.java
+ *
+ * Closed-loop workload driver: N shopper threads and M admin threads each run a session against
+ * the same services the app uses (UserService, CatalogCache, OrderService, OrderHistory), pick
+ * the next operation from a weighted mix, wait for it to finish, optionally think, and repeat.
+ *
+ * Shopper operations:
+ * - login:   UserService.authenticate for a random account
+ * - browse:  viewItems (CatalogCache snapshot)
+ * - order:   placeOrder for one item
+ * - cart:    add 1-3 items to a Cart and checkoutCart
+ * - history: first page of viewCart (OrderHistory, 20 rows)
+ * Admin operations alternate between a viewAllOrders page and an uncached viewItems.
+ *
+ * With --hot-items K --hot-ratio P, P% of orders go to items 1..K (flash sale); --shards N
+ * splits the stock of those K items over N item_stock_shards rows first (StockShards).
+ *
+ * Every operation has its own LatencyHistogram (reset after --warmup seconds). The report gives
+ * throughput and p50/p99/p99.9/max per operation, orders rejected for stock (OUT_OF_STOCK /
+ * NOT_FOUND), orders that failed on deadlock or lock-wait timeout after all retries, other
+ * errors, and how many transactions OrderService had to retry.
+ *
+ * Being closed-loop, throughput drops as latency grows; the percentiles describe the service
+ * time seen by each virtual user, not the delay an open arrival stream would see.
+ *
+ * Usage:
+ *   java -cp .:h2.jar shopingcartapp.LoadGenerator [--url JDBC_URL] [--user sa] [--password ""]
+ *        [--seed 100000] [--accounts N] [--items N] [--shoppers 50] [--admins 2]
+ *        [--duration 60] [--warmup 10] [--think-ms 0]
+ *        [--mix login=10,browse=40,order=35,cart=10,history=5]
+ *        [--mode optimistic] [--ledger] [--hot-items 5] [--hot-ratio 80] [--shards 8] [--pool 10] [--distribution]
+ */
+public final class LoadGenerator {
+
+    private static final String[] SHOPPER_OPS = {"login", "browse", "order", "cart", "history"};
+    private static final String[] ADMIN_OPS = {"admin.orders", "admin.items"};
+    private static final int HISTORY_PAGE_SIZE = 20;
+
+    /**
+     * Per-operation latency and outcome counters.
+     */
+    static final class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder lockFailures = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        void reset() {
+            latency.reset();
+            rejected.reset();
+            lockFailures.reset();
+            errors.reset();
+        }
+    }
+
+    private final UserService users;
+    private final CatalogCache catalog;
+    private final CatalogCache adminCatalog;
+    private final OrderService orders;
+    private final ConnectionPool pool;
+    private final int accounts;
+    private final int items;
+    private final int hotItems;
+    private final int hotRatio;
+    private final long thinkMillis;
+    private final int[] mixWeights;
+    private final Map<String, OpStats> stats = new LinkedHashMap<>();
+
+    private volatile boolean running = true;
+
+    private LoadGenerator(ConnectionPool pool, UserService users, CatalogCache catalog, CatalogCache adminCatalog,
+                          OrderService orders, int accounts, int items, int hotItems, int hotRatio,
+                          long thinkMillis, int[] mixWeights) {
+        this.pool = pool;
+        this.users = users;
+        this.catalog = catalog;
+        this.adminCatalog = adminCatalog;
+        this.orders = orders;
+        this.accounts = accounts;
+        this.items = items;
+        this.hotItems = hotItems;
+        this.hotRatio = hotRatio;
+        this.thinkMillis = thinkMillis;
+        this.mixWeights = mixWeights;
+        for (String op : SHOPPER_OPS) {
+            stats.put(op, new OpStats());
+        }
+        for (String op : ADMIN_OPS) {
+            stats.put(op, new OpStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = CartBenchmark.parseArgs(args);
+        String url = opts.getOrDefault("url", BenchDataset.DEFAULT_URL);
+        String user = opts.getOrDefault("user", "sa");
+        String password = opts.getOrDefault("password", "");
+        int shoppers = Integer.parseInt(opts.getOrDefault("shoppers", "50"));
+        int admins = Integer.parseInt(opts.getOrDefault("admins", "2"));
+        long durationSeconds = Long.parseLong(opts.getOrDefault("duration", "60"));
+        long warmupSeconds = Long.parseLong(opts.getOrDefault("warmup", "10"));
+        long thinkMillis = Long.parseLong(opts.getOrDefault("think-ms", "0"));
+        int[] mix = parseMix(opts.getOrDefault("mix", "login=10,browse=40,order=35,cart=10,history=5"));
+        OrderService.Mode mode = OrderService.Mode.valueOf(opts.getOrDefault("mode", "optimistic").toUpperCase());
+        boolean useLedger = Boolean.parseBoolean(opts.getOrDefault("ledger", "false"));
+        int hotItems = Integer.parseInt(opts.getOrDefault("hot-items", "0"));
+        int hotRatio = Integer.parseInt(opts.getOrDefault("hot-ratio", hotItems > 0 ? "80" : "0"));
+        int shardCount = Integer.parseInt(opts.getOrDefault("shards", "0"));
+        int poolSize = Integer.parseInt(opts.getOrDefault("pool", "10"));
+        boolean distribution = Boolean.parseBoolean(opts.getOrDefault("distribution", "false"));
+
+        try (ConnectionPool pool = new ConnectionPool(url, user, password,
+                poolSize, Math.min(2, poolSize), 300_000L, 30_000L, 1_000L, 64)) {
+            int accounts;
+            int items;
+            if (opts.containsKey("seed")) {
+                BenchDataset data = new BenchDataset(Long.parseLong(opts.get("seed")));
+                long seedStart = System.nanoTime();
+                data.install(pool);
+                System.out.printf("# seeded %d orders, %d items, %d users in %.1f s%n",
+                        data.orders, data.items, data.users, (System.nanoTime() - seedStart) / 1e9);
+                accounts = data.users;
+                items = data.items;
+            } else {
+                // Existing database: accounts must follow BenchDataset's user<i>/pw<i> naming
+                accounts = Integer.parseInt(opts.getOrDefault("accounts", "10"));
+                items = Integer.parseInt(opts.getOrDefault("items", "10"));
+            }
+
+            SchemaCapabilities schema = new SchemaCapabilities(pool);
+            schema.refresh();
+            UserService users = new UserService(pool, schema);
+            StockShards shards = new StockShards(pool, schema);
+            shards.load();
+            if (shardCount > 1) {
+                for (int itemId = 1; itemId <= Math.min(hotItems, items); itemId++) {
+                    shards.reshard(itemId, shardCount, -1);
+                }
+            }
+            CatalogCache catalog = new CatalogCache(pool, 30_000L, Integer.MAX_VALUE);
+            CatalogCache adminCatalog = new CatalogCache(pool, 0L, Integer.MAX_VALUE);
+            catalog.setShards(shards);
+            adminCatalog.setShards(shards);
+            StockLedger ledger = null;
+            if (useLedger) {
+                ledger = new StockLedger(pool);
+                ledger.setShards(shards);
+                ledger.loadAll();
+            }
+
+            try (OrderService orders = new OrderService(pool, mode, ledger, catalog,
+                    new SalesRollup(pool, schema), shards)) {
+                LoadGenerator gen = new LoadGenerator(pool, users, catalog, adminCatalog, orders,
+                        accounts, items, Math.min(hotItems, items), hotRatio, thinkMillis, mix);
+                System.out.printf("# %d shoppers, %d admins, mode=%s, ledger=%s, hot=%d items @ %d%% (shards=%d), "
+                                + "think=%d ms, pool=%d, warmup=%d s, duration=%d s%n",
+                        shoppers, admins, mode.name().toLowerCase(), useLedger, Math.min(hotItems, items),
+                        hotRatio, shardCount, thinkMillis, poolSize, warmupSeconds, durationSeconds);
+                gen.run(shoppers, admins, warmupSeconds, durationSeconds, distribution);
+            }
+        }
+    }
+
+    private void run(int shoppers, int admins, long warmupSeconds, long durationSeconds,
+                     boolean distribution) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(shoppers + admins);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < shoppers; i++) {
+            int account = 1 + i % accounts;
+            workers.add(new Thread(() -> shopper(account, ready, start), "shopper-" + i));
+        }
+        for (int i = 0; i < admins; i++) {
+            workers.add(new Thread(() -> admin(ready, start), "admin-" + i));
+        }
+        for (Thread t : workers) {
+            t.setDaemon(true);
+            t.start();
+        }
+
+        ready.await();
+        start.countDown();
+        Thread.sleep(warmupSeconds * 1000L);
+        for (OpStats s : stats.values()) {
+            s.reset();
+        }
+        long retriesBefore = OrderService.getRetryCount();
+        long borrowsBefore = pool.getBorrowCount();
+        long timeoutsBefore = pool.getTimeoutCount();
+
+        long begin = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        long elapsed = System.nanoTime() - begin;
+        running = false;
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        report(elapsed, OrderService.getRetryCount() - retriesBefore,
+                pool.getBorrowCount() - borrowsBefore, pool.getTimeoutCount() - timeoutsBefore, distribution);
+    }
+
+    // ========== Virtual users ==========
+    private void shopper(int account, CountDownLatch ready, CountDownLatch start) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int userId;
+        try {
+            userId = users.authenticate(BenchDataset.username(account), BenchDataset.password(account));
+        } catch (SQLException e) {
+            userId = -1;
+        }
+        ready.countDown();
+        if (userId == -1) {
+            System.err.println("Shopper could not log in as " + BenchDataset.username(account));
+            return;
+        }
+        Cart cart = new Cart();
+        try {
+            start.await();
+            while (running) {
+                String op = SHOPPER_OPS[pick(rnd)];
+                OpStats s = stats.get(op);
+                long t0 = System.nanoTime();
+                try {
+                    OrderService.Result result = shopperOp(op, userId, cart, rnd);
+                    s.latency.recordValue(System.nanoTime() - t0);
+                    if (result != null && result != OrderService.Result.OK) {
+                        s.rejected.increment();
+                    }
+                } catch (SQLException e) {
+                    s.latency.recordValue(System.nanoTime() - t0);
+                    countFailure(s, e);
+                }
+                think(rnd);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the order outcome for order/cart, null for reads
+     */
+    private OrderService.Result shopperOp(String op, int userId, Cart cart, ThreadLocalRandom rnd)
+            throws SQLException {
+        switch (op) {
+            case "login": {
+                int i = 1 + rnd.nextInt(accounts);
+                users.authenticate(BenchDataset.username(i), BenchDataset.password(i));
+                return null;
+            }
+            case "browse":
+                catalog.get();
+                return null;
+            case "order":
+                return orders.placeOrder(userId, pickItem(rnd), 1 + rnd.nextInt(3));
+            case "cart": {
+                cart.clear();
+                int lines = 1 + rnd.nextInt(3);
+                for (int i = 0; i < lines; i++) {
+                    cart.add(pickItem(rnd), 1);
+                }
+                return orders.checkoutCart(userId, cart).result;
+            }
+            default:
+                try (Connection conn = pool.getConnection()) {
+                    OrderHistory.page(conn, userId, null, null, OrderHistory.Cursor.FIRST,
+                            HISTORY_PAGE_SIZE, rs -> rs.getInt("quantity"));
+                }
+                return null;
+        }
+    }
+
+    private void admin(CountDownLatch ready, CountDownLatch start) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        ready.countDown();
+        try {
+            start.await();
+            while (running) {
+                String op = ADMIN_OPS[rnd.nextInt(ADMIN_OPS.length)];
+                OpStats s = stats.get(op);
+                long t0 = System.nanoTime();
+                try {
+                    if ("admin.orders".equals(op)) {
+                        try (Connection conn = pool.getConnection()) {
+                            OrderHistory.page(conn, -1, null, null, OrderHistory.Cursor.FIRST,
+                                    HISTORY_PAGE_SIZE, rs -> rs.getInt("quantity"));
+                        }
+                    } else {
+                        adminCatalog.get();
+                    }
+                    s.latency.recordValue(System.nanoTime() - t0);
+                } catch (SQLException e) {
+                    s.latency.recordValue(System.nanoTime() - t0);
+                    countFailure(s, e);
+                }
+                think(rnd);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void countFailure(OpStats s, SQLException e) {
+        if (OrderService.isRetryable(e)) {
+            s.lockFailures.increment();
+        } else {
+            s.errors.increment();
+        }
+    }
+
+    private int pickItem(ThreadLocalRandom rnd) {
+        if (hotItems > 0 && rnd.nextInt(100) < hotRatio) {
+            return 1 + rnd.nextInt(hotItems);
+        }
+        return 1 + rnd.nextInt(items);
+    }
+
+    private int pick(ThreadLocalRandom rnd) {
+        int total = mixWeights[mixWeights.length - 1];
+        int r = rnd.nextInt(total);
+        for (int i = 0; i < mixWeights.length; i++) {
+            if (r < mixWeights[i]) {
+                return i;
+            }
+        }
+        return mixWeights.length - 1;
+    }
+
+    private void think(ThreadLocalRandom rnd) throws InterruptedException {
+        if (thinkMillis > 0) {
+            // Uniform around the mean so virtual users do not march in lockstep
+            Thread.sleep(rnd.nextLong(thinkMillis * 2 + 1));
+        }
+    }
+
+    // ========== Report ==========
+    private void report(long elapsedNanos, long retries, long borrows, long timeouts, boolean distribution) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-14s %10s %10s %10s %10s %10s %10s %9s %9s %7s%n",
+                "Operation", "Count", "ops/s", "p50(ms)", "p99(ms)", "p99.9(ms)", "max(ms)",
+                "rejected", "lockFail", "errors");
+        long totalCount = 0;
+        for (Map.Entry<String, OpStats> e : stats.entrySet()) {
+            OpStats s = e.getValue();
+            LatencyHistogram h = s.latency;
+            long n = h.getTotalCount();
+            if (n == 0) {
+                continue;
+            }
+            totalCount += n;
+            System.out.printf("%-14s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %9d %9d %7d%n",
+                    e.getKey(), n, n / seconds,
+                    h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6,
+                    s.rejected.sum(), s.lockFailures.sum(), s.errors.sum());
+        }
+        System.out.printf("%-14s %10d %10.1f%n", "total", totalCount, totalCount / seconds);
+        System.out.printf("# deadlock/lock-wait retries: %d, pool borrows: %d, pool timeouts: %d%n",
+                retries, borrows, timeouts);
+
+        if (distribution) {
+            for (Map.Entry<String, OpStats> e : stats.entrySet()) {
+                if (e.getValue().latency.getTotalCount() == 0) {
+                    continue;
+                }
+                System.out.println();
+                System.out.println("## " + e.getKey());
+                e.getValue().latency.printDistribution(System.out, 1e6, "ms");
+            }
+        }
+    }
+
+    /**
+     * Parses "login=10,browse=40,..." into cumulative weights in SHOPPER_OPS order.
+     */
+    static int[] parseMix(String spec) {
+        int[] weights = new int[SHOPPER_OPS.length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            int idx = -1;
+            for (int i = 0; i < SHOPPER_OPS.length; i++) {
+                if (SHOPPER_OPS[i].equals(kv[0].trim())) {
+                    idx = i;
+                }
+            }
+            if (idx == -1 || kv.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry: " + part);
+            }
+            weights[idx] = Integer.parseInt(kv[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("Mix has no weight: " + spec);
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,363 @@
+package shopingcartapp;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Metrics.java
+ *
+ * Process-wide registry of counters, timers and gauges, so the pool, the services and the
+ * sessions can be instrumented without threading a metrics object through every constructor.
+ *
+ * - counter(name, labels...) is a LongAdder
+ * - timer(name, labels...) wraps a LatencyHistogram of nanoseconds (p50/p99/p99.9/max)
+ * - gauge(name, supplier) is read on demand (pool size, cache hits, ...)
+ *
+ * Labels are given as alternating key/value strings, e.g. counter("cart_logins_total", "result", "success").
+ *
+ * Everything is exposed as one DynamicMBean (shopingcartapp:type=Metrics) and can be written out
+ * periodically in the Prometheus text format; the file is replaced atomically so a node_exporter
+ * textfile collector or a tail never sees a half-written dump.
+ */
+final class Metrics {
+
+    static final String OBJECT_NAME = "shopingcartapp:type=Metrics";
+
+    /**
+     * Latency timer; values are recorded in nanoseconds and exported in seconds.
+     */
+    static final class Timer {
+        final String name;
+        final String labels;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Timer(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        void record(long nanos) {
+            histogram.recordValue(nanos);
+        }
+
+        /**
+         * Records the time elapsed since startNanos (a System.nanoTime() value).
+         */
+        void recordSince(long startNanos) {
+            histogram.recordValue(System.nanoTime() - startNanos);
+        }
+    }
+
+    private static final class Counter {
+        final String name;
+        final String labels;
+        final LongAdder value = new LongAdder();
+
+        Counter(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final DoubleSupplier supplier;
+
+        Gauge(String name, DoubleSupplier supplier) {
+            this.name = name;
+            this.supplier = supplier;
+        }
+    }
+
+    // Sorted by key (name + labels); prometheus() still groups by family name, see byName
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentSkipListMap<>();
+    // Fast path for hot call sites that look the same series up on every call
+    private static final Map<String, Timer> TIMER_CACHE = new ConcurrentHashMap<>();
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private static volatile ScheduledExecutorService dumper;
+    private static volatile Path dumpFile;
+
+    private Metrics() {
+    }
+
+    // ========== Registry ==========
+    static LongAdder counter(String name, String... labels) {
+        String l = labels(labels);
+        return COUNTERS.computeIfAbsent(name + l, k -> new Counter(name, l)).value;
+    }
+
+    static Timer timer(String name, String... labels) {
+        String l = labels(labels);
+        String key = name + l;
+        Timer t = TIMER_CACHE.get(key);
+        if (t == null) {
+            t = TIMERS.computeIfAbsent(key, k -> new Timer(name, l));
+            TIMER_CACHE.putIfAbsent(key, t);
+        }
+        return t;
+    }
+
+    static void gauge(String name, DoubleSupplier supplier) {
+        GAUGES.put(name, new Gauge(name, supplier));
+    }
+
+    private static String labels(String[] kv) {
+        if (kv.length == 0) {
+            return "";
+        }
+        if (kv.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be key/value pairs");
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < kv.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(kv[i]).append("=\"")
+                    .append(kv[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    // ========== Prometheus text format ==========
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, List<Counter>> family : byName(COUNTERS.values(), c -> c.name).entrySet()) {
+            sb.append("# TYPE ").append(family.getKey()).append(" counter\n");
+            for (Counter c : family.getValue()) {
+                sb.append(c.name).append(c.labels).append(' ').append(c.value.sum()).append('\n');
+            }
+        }
+        for (Map.Entry<String, List<Timer>> family : byName(TIMERS.values(), t -> t.name).entrySet()) {
+            sb.append("# TYPE ").append(family.getKey()).append(" summary\n");
+            for (Timer t : family.getValue()) {
+                LatencyHistogram h = t.histogram;
+                for (double q : QUANTILES) {
+                    sb.append(t.name).append(withLabel(t.labels, "quantile", Double.toString(q))).append(' ')
+                            .append(seconds(h.getValueAtPercentile(q * 100))).append('\n');
+                }
+                sb.append(t.name).append("_sum").append(t.labels).append(' ').append(seconds(h.getSum())).append('\n');
+                sb.append(t.name).append("_count").append(t.labels).append(' ').append(h.getTotalCount()).append('\n');
+            }
+        }
+        for (Gauge g : GAUGES.values()) {
+            sb.append("# TYPE ").append(g.name).append(" gauge\n");
+            sb.append(g.name).append(' ').append(g.supplier.getAsDouble()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Groups series by family name. The registries are sorted by name + labels, which is not
+     * enough: "x{...}" sorts after "x_y", so families x and x_y would interleave and x would get
+     * a second # TYPE line, which Prometheus rejects.
+     */
+    private static <T> Map<String, List<T>> byName(Iterable<T> series, Function<T, String> name) {
+        Map<String, List<T>> families = new TreeMap<>();
+        for (T t : series) {
+            families.computeIfAbsent(name.apply(t), k -> new ArrayList<>()).add(t);
+        }
+        return families;
+    }
+
+    private static String withLabel(String labels, String key, String value) {
+        String extra = key + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + extra + "}" : labels.substring(0, labels.length() - 1) + "," + extra + "}";
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * Writes prometheus() to file via a temp file and an atomic rename.
+     */
+    static void dump(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                w.write(prometheus());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Dumps to file every periodMillis on a daemon thread (and once more on stop()).
+     */
+    static synchronized void startDump(Path file, long periodMillis) {
+        if (dumper != null || periodMillis <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                dump(file);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not write metrics to " + file + ": " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        dumpFile = file;
+    }
+
+    static synchronized void stop() {
+        if (dumper == null) {
+            return;
+        }
+        dumper.shutdownNow();
+        dumper = null;
+        try {
+            dump(dumpFile);
+        } catch (IOException e) {
+            System.err.println("Could not write metrics to " + dumpFile + ": " + e.getMessage());
+        }
+    }
+
+    // ========== JMX ==========
+    static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read-only view of the registry. Attributes are created on the fly, so series that appear
+     * after registration (a new statement, a new outcome) show up on the next getMBeanInfo().
+     * Timers expose .count, .meanMillis, .p50Millis, .p99Millis, .p999Millis and .maxMillis.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+
+        private static final String[] TIMER_FIELDS = {"count", "meanMillis", "p50Millis", "p99Millis", "p999Millis", "maxMillis"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter c = COUNTERS.get(attribute);
+            if (c != null) {
+                return c.value.sum();
+            }
+            Gauge g = GAUGES.get(attribute);
+            if (g != null) {
+                return g.supplier.getAsDouble();
+            }
+            int dot = attribute.lastIndexOf('.');
+            Timer t = dot < 0 ? null : TIMERS.get(attribute.substring(0, dot));
+            if (t != null) {
+                LatencyHistogram h = t.histogram;
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return (double) h.getTotalCount();
+                    case "meanMillis":
+                        return h.getMean() / 1e6;
+                    case "p50Millis":
+                        return h.getValueAtPercentile(50) / 1e6;
+                    case "p99Millis":
+                        return h.getValueAtPercentile(99) / 1e6;
+                    case "p999Millis":
+                        return h.getValueAtPercentile(99.9) / 1e6;
+                    case "maxMillis":
+                        return h.getMax() / 1e6;
+                    default:
+                        break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException ignore) {
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            if ("prometheus".equals(actionName)) {
+                return prometheus();
+            }
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (String key : COUNTERS.keySet()) {
+                attrs.add(new MBeanAttributeInfo(key, "long", "counter", true, false, false));
+            }
+            for (String key : TIMERS.keySet()) {
+                for (String f : TIMER_FIELDS) {
+                    attrs.add(new MBeanAttributeInfo(key + "." + f, "double", "timer", true, false, false));
+                }
+            }
+            for (String key : GAUGES.keySet()) {
+                attrs.add(new MBeanAttributeInfo(key, "double", "gauge", true, false, false));
+            }
+            MBeanOperationInfo dumpOp = new MBeanOperationInfo("prometheus", "All metrics in Prometheus text format",
+                    null, "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(Metrics.class.getName(), "Shopping cart metrics",
+                    attrs.toArray(new MBeanAttributeInfo[0]), null,
+                    new MBeanOperationInfo[]{dumpOp}, new MBeanNotificationInfo[0]);
+        }
+    }
+}
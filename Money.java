@@ -0,0 +1,111 @@
+package shopingcartapp;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Money.java
+ *
+ * Amounts are plain long cents everywhere inside the app (caches, cart totals, reports), so
+ * arithmetic is exact and allocates nothing. The only conversions are at the edges:
+ * - JDBC: get()/set() map DECIMAL(p,2) columns to and from cents
+ * - user input: parse() reads "12", "12.5" or "12.50" without going through double
+ * - output: format() prints "12.50"
+ *
+ * Arithmetic that could overflow (price x quantity) uses the exact Math methods, which throw
+ * instead of wrapping.
+ */
+final class Money {
+
+    // items.price is DECIMAL(10,2)
+    static final long MAX_PRICE_CENTS = 9_999_999_999L;
+
+    private Money() {
+    }
+
+    /**
+     * Cents in a DECIMAL column (0 for NULL). Values with more than two decimals are rounded
+     * half-even, like the database does when storing them.
+     */
+    static long get(ResultSet rs, String column) throws SQLException {
+        BigDecimal value = rs.getBigDecimal(column);
+        return value == null ? 0L : value.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    static void set(PreparedStatement stmt, int index, long cents) throws SQLException {
+        stmt.setBigDecimal(index, BigDecimal.valueOf(cents, 2));
+    }
+
+    static long times(long cents, int quantity) {
+        return Math.multiplyExact(cents, quantity);
+    }
+
+    static boolean isValidPrice(long cents) {
+        return cents >= 0 && cents <= MAX_PRICE_CENTS;
+    }
+
+    /**
+     * Parses a decimal amount with at most two fraction digits ("-" allowed, no exponent).
+     *
+     * @throws NumberFormatException if the text is not such an amount or overflows a long
+     */
+    static long parse(String text) {
+        try {
+            return parseExact(text);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount too large: " + text);
+        }
+    }
+
+    private static long parseExact(String text) {
+        String t = text.trim();
+        int i = 0;
+        boolean negative = false;
+        if (t.startsWith("-")) {
+            negative = true;
+            i = 1;
+        }
+        long units = 0;
+        int digits = 0;
+        for (; i < t.length() && t.charAt(i) != '.'; i++) {
+            units = Math.addExact(Math.multiplyExact(units, 10), digit(t, i));
+            digits++;
+        }
+        long fraction = 0;
+        int fractionDigits = 0;
+        if (i < t.length()) {
+            for (i++; i < t.length(); i++) {
+                if (++fractionDigits > 2) {
+                    throw new NumberFormatException("More than two decimals: " + text);
+                }
+                fraction = fraction * 10 + digit(t, i);
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Not an amount: " + text);
+        }
+        if (fractionDigits == 1) {
+            fraction *= 10;
+        }
+        long cents = Math.addExact(Math.multiplyExact(units, 100), fraction);
+        return negative ? -cents : cents;
+    }
+
+    private static int digit(String t, int i) {
+        char c = t.charAt(i);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not an amount: " + t);
+        }
+        return c - '0';
+    }
+
+    static String format(long cents) {
+        long abs = Math.abs(cents);
+        String s = (abs / 100) + "." + (abs % 100 < 10 ? "0" : "") + (abs % 100);
+        return cents < 0 ? "-" + s : s;
+    }
+}
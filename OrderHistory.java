@@ -0,0 +1,102 @@
+package shopingcartapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * OrderHistory.java
+ *
+ * Keyset-paginated, streamed reads of the orders join for viewAllOrders and viewCart.
+ * Pages are ordered by (order_date DESC, id DESC) and the next page starts strictly after the
+ * last (order_date, id) seen, so every page is an index range scan with a LIMIT instead of an
+ * OFFSET that re-reads everything before it. Rows are handed to the caller as they arrive,
+ * so memory stays flat whatever the page size.
+ *
+ * Optional date range: [from, to). Unset bounds and the first-page cursor are bound as sentinel
+ * values so each query shape is a single fixed SQL string (Sql.ORDERS_ALL_PAGE / ORDERS_USER_PAGE).
+ */
+final class OrderHistory {
+
+    static final Timestamp MIN_DATE = Timestamp.valueOf("1970-01-01 00:00:00");
+    static final Timestamp MAX_DATE = Timestamp.valueOf("9999-12-31 23:59:59");
+
+    /**
+     * Position after the last row of a page. FIRST starts from the newest order.
+     */
+    static final class Cursor {
+        static final Cursor FIRST = new Cursor(MAX_DATE, Integer.MAX_VALUE);
+
+        final Timestamp lastDate;
+        final int lastId;
+
+        Cursor(Timestamp lastDate, int lastId) {
+            this.lastDate = lastDate;
+            this.lastId = lastId;
+        }
+    }
+
+    interface RowHandler {
+        void row(ResultSet rs) throws SQLException;
+    }
+
+    private OrderHistory() {
+    }
+
+    /**
+     * Streams one page to the handler.
+     *
+     * @param userId   only this user's orders, or -1 for all orders
+     * @param from     inclusive lower bound on order_date, or null
+     * @param to       exclusive upper bound on order_date, or null
+     * @return the cursor for the next page, or null if this was the last page
+     */
+    static Cursor page(Connection conn, int userId, Timestamp from, Timestamp to,
+                       Cursor after, int pageSize, RowHandler handler) throws SQLException {
+        String sql = userId == -1 ? Sql.ORDERS_ALL_PAGE.text : Sql.ORDERS_USER_PAGE.text;
+        try (PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            enableStreaming(stmt, pageSize);
+            int idx = 1;
+            if (userId != -1) {
+                stmt.setInt(idx++, userId);
+            }
+            stmt.setTimestamp(idx++, from != null ? from : MIN_DATE);
+            stmt.setTimestamp(idx++, to != null ? to : MAX_DATE);
+            stmt.setTimestamp(idx++, after.lastDate);
+            stmt.setTimestamp(idx++, after.lastDate);
+            stmt.setInt(idx++, after.lastId);
+            stmt.setInt(idx, pageSize);
+
+            int rows = 0;
+            Timestamp lastDate = null;
+            int lastId = 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    handler.row(rs);
+                    lastDate = rs.getTimestamp("order_date");
+                    lastId = rs.getInt("id");
+                    rows++;
+                }
+            }
+            return rows < pageSize || lastDate == null ? null : new Cursor(lastDate, lastId);
+        }
+    }
+
+    /**
+     * MySQL Connector/J streams rows one at a time for forward-only, read-only statements with
+     * fetch size Integer.MIN_VALUE; other drivers reject that, so fall back to a plain fetch size.
+     */
+    static void enableStreaming(Statement stmt, int fallbackFetchSize) {
+        try {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+        } catch (SQLException e) {
+            try {
+                stmt.setFetchSize(fallbackFetchSize);
+            } catch (SQLException ignore) {
+            }
+        }
+    }
+}
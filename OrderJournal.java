@@ -0,0 +1,485 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * OrderJournal.java
+ *
+ * Write-behind order log behind OrderService.Mode.JOURNAL. An accepted order is appended to a
+ * memory-mapped, append-only file (and forced to disk when sync is on) and confirmed to the
+ * shopper right away; a drainer thread then moves journaled orders into MySQL in batches.
+ *
+ * File layout:
+ * - header (64 bytes): magic, version, epoch, offset of the first record not yet in MySQL
+ * - records: length, CRC32 of the payload, payload (epoch, client order id, user, item,
+ *   quantity, accept time)
+ * A record with a bad length, bad CRC or an older epoch ends the log, so a write torn by a crash
+ * is simply dropped (that shopper was never confirmed).
+ *
+ * Drains are idempotent: each order carries a client-generated UUID (orders.client_order_id is
+ * UNIQUE), and stock (and the sales rollup) is only updated for rows that were actually inserted.
+ * A duplicate-key error (1062) on the insert means the order is already in MySQL: if the process
+ * dies between the MySQL commit and the header update, the replay at the next startup re-sends
+ * those records and they are skipped. A confirmed order that MySQL refuses for another integrity
+ * reason (e.g. its item was purged before the drain) cannot be retried into existence; it is
+ * logged, counted in cart_journal_rejected_total and appended to &lt;file&gt;.rejects instead of
+ * being dropped silently. Any other error fails the batch, which is retried.
+ * Stock of hot items is taken from their shards (StockShards.takeAccepted).
+ *
+ * Once everything is drained and the log is past half its size, it is rewound to the start with
+ * a new epoch. If it fills up before the drainer catches up, appends wait (up to a timeout).
+ */
+final class OrderJournal implements AutoCloseable {
+
+    private static final int MAGIC = 0x434A4E4C; // "CJNL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFF_EPOCH = 8;
+    private static final int OFF_APPLIED = 16;
+
+    // epoch(4) + uuid(16) + user(4) + item(4) + quantity(4) + acceptedAt(8)
+    private static final int PAYLOAD_SIZE = 40;
+    private static final int RECORD_SIZE = 8 + PAYLOAD_SIZE;
+
+    private static final long APPEND_WAIT_MILLIS = 5_000L;
+
+    // MySQL ER_DUP_ENTRY; H2 reports a unique violation as SQLState 23505
+    private static final int ER_DUP_ENTRY = 1062;
+
+    /**
+     * One journaled order.
+     */
+    static final class Entry {
+        final UUID clientOrderId;
+        final int userId;
+        final int itemId;
+        final int quantity;
+        final long acceptedAt;
+
+        Entry(UUID clientOrderId, int userId, int itemId, int quantity, long acceptedAt) {
+            this.clientOrderId = clientOrderId;
+            this.userId = userId;
+            this.itemId = itemId;
+            this.quantity = quantity;
+            this.acceptedAt = acceptedAt;
+        }
+    }
+
+    private final DataSource ds;
+    private final SalesRollup sales;
+    private final StockShards shards;
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final boolean sync;
+    private final long drainMillis;
+    private final int maxBatch;
+
+    // Guarded by this
+    private int epoch;
+    private int appliedOffset;
+    private int writeOffset;
+
+    // Quantities journaled but not yet drained, per item (see StockLedger.setPending)
+    private final ConcurrentHashMap<Integer, AtomicInteger> pending = new ConcurrentHashMap<>();
+
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    OrderJournal(DataSource ds, SalesRollup sales, StockShards shards, Path file, int sizeBytes, boolean sync,
+                 long drainMillis, int maxBatch) throws IOException {
+        this.ds = ds;
+        this.sales = sales;
+        this.shards = shards;
+        this.file = file;
+        this.sync = sync;
+        this.drainMillis = drainMillis;
+        this.maxBatch = maxBatch;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int existing = (int) Math.min(Integer.MAX_VALUE, channel.size());
+        this.capacity = Math.max(sizeBytes, existing);
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (existing >= HEADER_SIZE && map.getInt(0) == MAGIC) {
+            if (map.getInt(4) != VERSION) {
+                throw new IOException("Unsupported journal version " + map.getInt(4) + " in " + file);
+            }
+            epoch = map.getInt(OFF_EPOCH);
+            appliedOffset = (int) map.getLong(OFF_APPLIED);
+            writeOffset = scanEnd(appliedOffset);
+        } else {
+            epoch = 1;
+            appliedOffset = HEADER_SIZE;
+            writeOffset = HEADER_SIZE;
+            map.putInt(4, VERSION);
+            map.putInt(OFF_EPOCH, epoch);
+            map.putLong(OFF_APPLIED, appliedOffset);
+            map.putInt(HEADER_SIZE, 0);
+            map.putInt(0, MAGIC);
+            map.force();
+        }
+        for (Entry e : read(appliedOffset, writeOffset)) {
+            pendingCounter(e.itemId).addAndGet(e.quantity);
+        }
+
+        Metrics.gauge("cart_journal_pending_bytes", () -> pendingBytes());
+        this.drainer = new Thread(this::run, "journal-drain");
+        drainer.setDaemon(true);
+    }
+
+    /**
+     * Drains whatever a previous run left behind, synchronously, then starts the background drainer.
+     *
+     * @return ids of the items whose stock changed during the replay
+     */
+    Set<Integer> replay() throws SQLException {
+        Set<Integer> items = new TreeSet<>();
+        List<Entry> batch;
+        while (!(batch = nextBatch()).isEmpty()) {
+            for (Entry e : batch) {
+                items.add(e.itemId);
+            }
+            applyWithRetry(batch);
+        }
+        if (!items.isEmpty()) {
+            System.out.println("Replayed order journal " + file + " (" + items.size() + " items affected)");
+        }
+        drainer.start();
+        return items;
+    }
+
+    /**
+     * Appends an accepted order. When this returns, the order survives a crash (if sync is on).
+     */
+    void append(UUID clientOrderId, int userId, int itemId, int quantity) throws SQLException {
+        if (!running) {
+            throw new SQLException("Order journal is shut down");
+        }
+        long start = System.nanoTime();
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + APPEND_WAIT_MILLIS;
+            while (writeOffset + RECORD_SIZE + 4 > capacity) {
+                notifyAll();
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !running) {
+                    throw new SQLException("Order journal " + file + " is full; orders are not draining into the database");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for journal space", e);
+                }
+            }
+            int pos = writeOffset;
+            map.putInt(pos + 8, epoch);
+            map.putLong(pos + 12, clientOrderId.getMostSignificantBits());
+            map.putLong(pos + 20, clientOrderId.getLeastSignificantBits());
+            map.putInt(pos + 28, userId);
+            map.putInt(pos + 32, itemId);
+            map.putInt(pos + 36, quantity);
+            map.putLong(pos + 40, System.currentTimeMillis());
+            map.putInt(pos + 4, crc(pos + 8));
+            map.putInt(pos + RECORD_SIZE, 0);
+            map.putInt(pos, PAYLOAD_SIZE);
+            if (sync) {
+                map.force();
+            }
+            writeOffset = pos + RECORD_SIZE;
+            pendingCounter(itemId).addAndGet(quantity);
+        }
+        Metrics.timer("cart_journal_append_seconds").recordSince(start);
+    }
+
+    /**
+     * Journaled but not yet drained quantity of an item.
+     */
+    int pending(int itemId) {
+        AtomicInteger p = pending.get(itemId);
+        return p == null ? 0 : p.get();
+    }
+
+    synchronized long pendingBytes() {
+        return writeOffset - appliedOffset;
+    }
+
+    // ========== Drainer ==========
+    private void run() {
+        while (running || pendingBytes() > 0) {
+            List<Entry> batch = nextBatch();
+            if (batch.isEmpty()) {
+                synchronized (this) {
+                    maybeRewind();
+                    try {
+                        wait(drainMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                continue;
+            }
+            try {
+                applyWithRetry(batch);
+            } catch (SQLException e) {
+                // Never drop journaled orders: keep them and try again after a pause
+                System.err.println("Journal drain failed, will retry:");
+                e.printStackTrace();
+                if (!running) {
+                    // Left in the file; replayed at the next startup
+                    return;
+                }
+                try {
+                    Thread.sleep(Math.max(drainMillis, 1_000L));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized List<Entry> nextBatch() {
+        int end = Math.min(writeOffset, appliedOffset + maxBatch * RECORD_SIZE);
+        return read(appliedOffset, end);
+    }
+
+    private void applyWithRetry(List<Entry> batch) throws SQLException {
+        long start = System.nanoTime();
+        List<Entry> rejected;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                rejected = apply(batch);
+                break;
+            } catch (SQLException e) {
+                if (!OrderService.isRetryable(e) || attempt >= OrderService.MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            OrderService.backoff(attempt);
+        }
+        if (!rejected.isEmpty()) {
+            reject(rejected);
+        }
+        synchronized (this) {
+            appliedOffset += batch.size() * RECORD_SIZE;
+            map.putLong(OFF_APPLIED, appliedOffset);
+            if (sync) {
+                map.force();
+            }
+            notifyAll();
+        }
+        // Only after MySQL has the stock change, so a ledger reload never sees it twice as available
+        for (Entry e : batch) {
+            pendingCounter(e.itemId).addAndGet(-e.quantity);
+        }
+        Metrics.timer("cart_journal_drain_seconds").recordSince(start);
+        Metrics.counter("cart_journal_drained_total").add(batch.size());
+    }
+
+    /**
+     * One transaction: insert every order, then decrement stock (ascending item id) only for the
+     * ones that were not already there. A failed INSERT only rolls back that statement, so the
+     * rest of the batch carries on past duplicates and rejects.
+     *
+     * @return orders MySQL refused for an integrity reason other than a duplicate
+     */
+    private List<Entry> apply(List<Entry> batch) throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Map<Integer, Integer> decrements = new TreeMap<>();
+                List<Entry> inserted = new ArrayList<>();
+                List<Entry> rejected = new ArrayList<>();
+                try (PreparedStatement insert = conn.prepareStatement(Sql.ORDER_INSERT_JOURNALED.text)) {
+                    for (Entry e : batch) {
+                        insert.setString(1, e.clientOrderId.toString());
+                        insert.setInt(2, e.userId);
+                        insert.setInt(3, e.itemId);
+                        insert.setInt(4, e.quantity);
+                        insert.setTimestamp(5, new Timestamp(e.acceptedAt));
+                        try {
+                            insert.executeUpdate();
+                        } catch (SQLException ex) {
+                            if (isDuplicate(ex)) {
+                                Metrics.counter("cart_journal_duplicates_total").increment();
+                                continue;
+                            }
+                            if (isIntegrityViolation(ex) && !OrderService.isRetryable(ex)) {
+                                System.err.println("Journaled order " + e.clientOrderId + " refused by the database: "
+                                        + ex.getMessage());
+                                rejected.add(e);
+                                continue;
+                            }
+                            throw ex;
+                        }
+                        decrements.merge(e.itemId, e.quantity, Integer::sum);
+                        inserted.add(e);
+                    }
+                }
+                try (PreparedStatement stock = conn.prepareStatement(Sql.STOCK_DECREMENT.text)) {
+                    for (Map.Entry<Integer, Integer> d : decrements.entrySet()) {
+                        if (shards != null && shards.isHot(d.getKey())) {
+                            shards.takeAccepted(conn, d.getKey(), d.getValue());
+                            continue;
+                        }
+                        stock.setInt(1, d.getValue());
+                        stock.setInt(2, d.getKey());
+                        stock.addBatch();
+                    }
+                    stock.executeBatch();
+                }
+                if (sales != null) {
+                    // Dated by acceptance time, not drain time
+                    for (Entry e : inserted) {
+                        sales.record(conn, e.itemId, e.quantity, new Timestamp(e.acceptedAt));
+                    }
+                }
+                conn.commit();
+                conn.setAutoCommit(true);
+                return rejected;
+            } catch (SQLException e) {
+                OrderService.rollbackQuietly(conn);
+                throw e;
+            }
+        }
+    }
+
+    private static boolean isDuplicate(SQLException e) {
+        // orders.id is AUTO_INCREMENT, so client_order_id is the only unique key a drain can hit
+        return e.getErrorCode() == ER_DUP_ENTRY || "23505".equals(e.getSQLState());
+    }
+
+    private static boolean isIntegrityViolation(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    /**
+     * Records orders that were confirmed but could not be written, so they can be refunded or
+     * re-entered by hand (client_order_id,user_id,item_id,quantity,accepted_at_millis).
+     */
+    private void reject(List<Entry> rejected) {
+        Metrics.counter("cart_journal_rejected_total").add(rejected.size());
+        Path rejects = Paths.get(file + ".rejects");
+        try (BufferedWriter w = Files.newBufferedWriter(rejects, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Entry e : rejected) {
+                w.write(e.clientOrderId + "," + e.userId + "," + e.itemId + "," + e.quantity + "," + e.acceptedAt);
+                w.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write rejected journal orders to " + rejects + ":");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewinds an empty log to the start under a new epoch, so stale records past the new tail
+     * can never be mistaken for live ones. Caller holds the lock.
+     */
+    private void maybeRewind() {
+        if (appliedOffset != writeOffset || writeOffset - HEADER_SIZE < (capacity - HEADER_SIZE) / 2) {
+            return;
+        }
+        epoch++;
+        appliedOffset = HEADER_SIZE;
+        writeOffset = HEADER_SIZE;
+        map.putInt(HEADER_SIZE, 0);
+        map.putInt(OFF_EPOCH, epoch);
+        map.putLong(OFF_APPLIED, appliedOffset);
+        map.force();
+        notifyAll();
+    }
+
+    // ========== Record format ==========
+    private int scanEnd(int from) {
+        int pos = from;
+        while (pos + RECORD_SIZE <= capacity
+                && map.getInt(pos) == PAYLOAD_SIZE
+                && map.getInt(pos + 4) == crc(pos + 8)
+                && map.getInt(pos + 8) == epoch) {
+            pos += RECORD_SIZE;
+        }
+        if (pos + 4 <= capacity) {
+            map.putInt(pos, 0);
+        }
+        return pos;
+    }
+
+    private List<Entry> read(int from, int to) {
+        List<Entry> entries = new ArrayList<>((to - from) / RECORD_SIZE);
+        for (int pos = from; pos < to; pos += RECORD_SIZE) {
+            entries.add(new Entry(
+                    new UUID(map.getLong(pos + 12), map.getLong(pos + 20)),
+                    map.getInt(pos + 28),
+                    map.getInt(pos + 32),
+                    map.getInt(pos + 36),
+                    map.getLong(pos + 40)));
+        }
+        return entries;
+    }
+
+    private int crc(int payloadOffset) {
+        ByteBuffer payload = map.duplicate();
+        payload.limit(payloadOffset + PAYLOAD_SIZE).position(payloadOffset);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private AtomicInteger pendingCounter(int itemId) {
+        return pending.computeIfAbsent(itemId, k -> new AtomicInteger());
+    }
+
+    /**
+     * Stops accepting orders and drains what is left (unless the database is unreachable, in
+     * which case the records stay in the file for the next startup).
+     */
+    @Override
+    public void close() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            synchronized (this) {
+                map.force();
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
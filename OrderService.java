@@ -0,0 +1,738 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OrderService.java
+ *
+ * Checkout logic, independent of the console so it can be driven from any session.
+ *
+ * Modes:
+ * - LOCKING: original flow (SELECT stock ... FOR UPDATE, INSERT order, UPDATE stock)
+ * - OPTIMISTIC: one guarded decrement (UPDATE ... WHERE id = ? AND stock >= ?) then INSERT order;
+ *   the affected row count tells us whether the stock was there, so the row lock is only held
+ *   for the insert and the commit
+ * - GROUP_COMMIT: orders are handed to a GroupCommitPipeline that batches concurrent checkouts
+ *   per item into one transaction
+ * - JOURNAL: the StockLedger accepts or rejects the order, the accepted order is appended to a
+ *   local OrderJournal and confirmed; MySQL is updated asynchronously in batches (write-behind).
+ *   Needs orders.client_order_id. If no ledger is supplied a private one is created, which
+ *   admin stock edits cannot invalidate, so the app always passes its shared ledger in
+ *
+ * checkoutCart buys a whole Cart in one transaction: all stock rows are locked with
+ * SELECT ... FOR UPDATE in ascending item_id order (one round trip per 64 lines), then the stock updates and order lines go
+ * in as two JDBC batches and one commit.
+ *
+ * When a StockLedger is supplied, quantities are reserved in memory first: sold-out items are
+ * rejected without a database round trip, and the reservation is released if the order does
+ * not commit.
+ *
+ * When a StockShards is supplied, hot (sharded) items take their stock from a random shard row
+ * instead of the items row, in every mode, so their buyers do not all queue on one row lock.
+ *
+ * Items soft-deleted by the ItemPurger are rejected as NOT_FOUND before any of this.
+ *
+ * When a SalesRollup is supplied, every committed order also adds its units and revenue to
+ * sales_daily inside the same transaction.
+ *
+ * Successful orders also update the CatalogCache stock in place, so the catalog view stays
+ * current without a reload.
+ *
+ * Every mode retries the whole transaction (for GROUP_COMMIT: the whole batch) with bounded,
+ * jittered backoff when MySQL reports a deadlock or lock-wait timeout, so those transient
+ * failures never reach the shopper.
+ *
+ * placeBatch (headless batch mode) places many independent orders in one transaction.
+ *
+ * placeOrder, checkoutCart and placeBatch report their latency (cart_order_seconds) and outcome
+ * (cart_orders_total: ok, out_of_stock, not_found or rolled_back) to Metrics.
+ */
+final class OrderService implements AutoCloseable {
+
+    enum Mode { LOCKING, OPTIMISTIC, GROUP_COMMIT, JOURNAL }
+
+    enum Result { OK, OUT_OF_STOCK, NOT_FOUND }
+
+    /**
+     * Outcome of a cart checkout; itemId is the line that caused a rejection (-1 when OK).
+     */
+    static final class CartResult {
+        final Result result;
+        final int itemId;
+
+        CartResult(Result result, int itemId) {
+            this.result = result;
+            this.itemId = itemId;
+        }
+    }
+
+    private static final CartResult CART_OK = new CartResult(Result.OK, -1);
+
+    static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 5;
+    private static final long MAX_BACKOFF_MILLIS = 200;
+
+    // MySQL vendor codes: ER_LOCK_DEADLOCK, ER_LOCK_WAIT_TIMEOUT
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+
+    // Deadlock / lock-wait retries across every OrderService and pipeline in this JVM
+    private static final LongAdder RETRIES = Metrics.counter("cart_order_retries_total");
+
+    // Group-commit tuning (override with -Dcart.groupCommit.windowMillis=... etc.)
+    private static final long GROUP_COMMIT_WINDOW_MILLIS = Long.getLong("cart.groupCommit.windowMillis", 5L);
+    private static final int GROUP_COMMIT_MAX_BATCH = Integer.getInteger("cart.groupCommit.maxBatch", 256);
+
+    // Write-behind journal (JOURNAL mode); sync=false trades crash safety of the last orders for latency
+    private static final String JOURNAL_FILE = System.getProperty("cart.journal.file", "orders.journal");
+    private static final int JOURNAL_SIZE_MB = Integer.getInteger("cart.journal.sizeMb", 64);
+    private static final boolean JOURNAL_SYNC = Boolean.parseBoolean(System.getProperty("cart.journal.sync", "true"));
+    private static final long JOURNAL_DRAIN_MILLIS = Long.getLong("cart.journal.drainMillis", 20L);
+    private static final int JOURNAL_MAX_BATCH = Integer.getInteger("cart.journal.maxBatch", 256);
+
+    private final DataSource ds;
+    private final Mode mode;
+    private final String modeLabel;
+    private final GroupCommitPipeline pipeline;
+    private final OrderJournal journal;
+    private final StockLedger ledger;
+    private final CatalogCache catalog;
+    private final SalesRollup sales;
+    private final StockShards shards;
+    private volatile ItemPurger purger;
+
+    /**
+     * In JOURNAL mode this opens the journal and drains anything a previous run left in it
+     * before returning.
+     */
+    OrderService(DataSource ds, Mode mode, StockLedger ledger, CatalogCache catalog,
+                 SalesRollup sales, StockShards shards) throws SQLException {
+        this.ds = ds;
+        this.mode = mode;
+        this.modeLabel = mode.name().toLowerCase();
+        if (ledger == null && mode == Mode.JOURNAL) {
+            // Private ledger (benchmarks): nothing else writes items.stock, so nothing needs to invalidate it
+            ledger = new StockLedger(ds);
+            ledger.setShards(shards);
+        }
+        this.ledger = ledger;
+        this.catalog = catalog;
+        this.sales = sales;
+        this.shards = shards;
+        this.pipeline = mode == Mode.GROUP_COMMIT
+                ? new GroupCommitPipeline(ds, sales, shards, GROUP_COMMIT_WINDOW_MILLIS, GROUP_COMMIT_MAX_BATCH)
+                : null;
+        this.journal = mode == Mode.JOURNAL ? openJournal() : null;
+    }
+
+    private OrderJournal openJournal() throws SQLException {
+        OrderJournal j;
+        try {
+            j = new OrderJournal(ds, sales, shards, Paths.get(JOURNAL_FILE), JOURNAL_SIZE_MB << 20, JOURNAL_SYNC,
+                    JOURNAL_DRAIN_MILLIS, JOURNAL_MAX_BATCH);
+        } catch (IOException e) {
+            throw new SQLException("Cannot open order journal " + JOURNAL_FILE, e);
+        }
+        ledger.setPending(j::pending);
+        try {
+            // The ledger may have been loaded before these orders reached items.stock
+            for (int itemId : j.replay()) {
+                ledger.invalidate(itemId);
+                if (catalog != null) {
+                    catalog.invalidate();
+                }
+            }
+        } catch (SQLException e) {
+            j.close();
+            throw e;
+        }
+        return j;
+    }
+
+    /**
+     * Orders for items the purger has soft-deleted are answered NOT_FOUND without a transaction.
+     */
+    void setPurger(ItemPurger purger) {
+        this.purger = purger;
+    }
+
+    private boolean isDeleted(int itemId) {
+        ItemPurger p = purger;
+        return p != null && p.isDeleted(itemId);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Places a single-item order. Business outcomes come back as a Result;
+     * non-transient database failures are rolled back and rethrown.
+     */
+    Result placeOrder(int userId, int itemId, int quantity) throws SQLException {
+        long start = System.nanoTime();
+        Result result = null;
+        try {
+            if (isDeleted(itemId)) {
+                result = Result.NOT_FOUND;
+                return result;
+            }
+            result = reserveAndPlace(userId, itemId, quantity);
+            if (result == Result.OK && catalog != null) {
+                catalog.adjustStock(itemId, -quantity);
+            }
+            return result;
+        } finally {
+            record("place", start, result);
+        }
+    }
+
+    /**
+     * result == null means the order failed with an exception and was rolled back.
+     */
+    private void record(String op, long start, Result result) {
+        Metrics.timer("cart_order_seconds", "op", op, "mode", modeLabel).recordSince(start);
+        Metrics.counter("cart_orders_total", "op", op,
+                "result", result == null ? "rolled_back" : result.name().toLowerCase()).increment();
+    }
+
+    private Result reserveAndPlace(int userId, int itemId, int quantity) throws SQLException {
+        if (ledger == null) {
+            return placeInDatabase(userId, itemId, quantity);
+        }
+
+        switch (ledger.tryReserve(itemId, quantity)) {
+            case SOLD_OUT:
+                return Result.OUT_OF_STOCK;
+            case NOT_FOUND:
+                return Result.NOT_FOUND;
+            default:
+                break;
+        }
+        Result result = null;
+        try {
+            result = placeInDatabase(userId, itemId, quantity);
+            return result;
+        } finally {
+            if (result != Result.OK) {
+                ledger.release(itemId, quantity);
+                if (result != null) {
+                    // MySQL disagreed with the ledger; resync from items.stock on next use
+                    ledger.invalidate(itemId);
+                }
+            }
+        }
+    }
+
+    private Result placeInDatabase(int userId, int itemId, int quantity) throws SQLException {
+        if (pipeline != null) {
+            return pipeline.submit(userId, itemId, quantity);
+        }
+        if (journal != null) {
+            // The ledger reservation already decided the outcome; the journal makes it durable
+            journal.append(UUID.randomUUID(), userId, itemId, quantity);
+            return Result.OK;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = ds.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    Result result = shards != null && shards.isHot(itemId)
+                            ? placeSharded(conn, userId, itemId, quantity)
+                            : mode == Mode.LOCKING
+                            ? placeLocking(conn, userId, itemId, quantity)
+                            : placeOptimistic(conn, userId, itemId, quantity);
+                    if (result == Result.OK) {
+                        conn.commit();
+                    } else {
+                        conn.rollback();
+                    }
+                    conn.setAutoCommit(true);
+                    return result;
+                } catch (SQLException e) {
+                    rollbackQuietly(conn);
+                    if (!isRetryable(e) || attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Checks out every line of the cart atomically: either all orders are placed or none.
+     * The cart is cleared only on success.
+     */
+    CartResult checkoutCart(int userId, Cart cart) throws SQLException {
+        Map<Integer, Integer> lines = cart.lines();
+        if (lines.isEmpty()) {
+            return CART_OK;
+        }
+
+        long start = System.nanoTime();
+        List<Integer> reserved = new ArrayList<>();
+        CartResult result = null;
+        try {
+            for (Integer itemId : lines.keySet()) {
+                if (isDeleted(itemId)) {
+                    result = new CartResult(Result.NOT_FOUND, itemId);
+                    return result;
+                }
+            }
+            if (ledger != null) {
+                for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+                    StockLedger.Reservation r = ledger.tryReserve(line.getKey(), line.getValue());
+                    if (r != StockLedger.Reservation.RESERVED) {
+                        result = new CartResult(r == StockLedger.Reservation.SOLD_OUT
+                                ? Result.OUT_OF_STOCK : Result.NOT_FOUND, line.getKey());
+                        return result;
+                    }
+                    reserved.add(line.getKey());
+                }
+            }
+
+            for (int attempt = 1; ; attempt++) {
+                try (Connection conn = ds.getConnection()) {
+                    conn.setAutoCommit(false);
+                    try {
+                        CartResult checkedOut = checkoutLocked(conn, userId, lines);
+                        if (checkedOut.result == Result.OK) {
+                            conn.commit();
+                        } else {
+                            conn.rollback();
+                        }
+                        conn.setAutoCommit(true);
+                        result = checkedOut;
+                        break;
+                    } catch (SQLException e) {
+                        rollbackQuietly(conn);
+                        if (!isRetryable(e) || attempt >= MAX_ATTEMPTS) {
+                            throw e;
+                        }
+                    }
+                }
+                backoff(attempt);
+            }
+
+            if (result.result == Result.OK) {
+                if (catalog != null) {
+                    for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+                        catalog.adjustStock(line.getKey(), -line.getValue());
+                    }
+                }
+                cart.clear();
+            }
+            return result;
+        } finally {
+            if (result == null || result.result != Result.OK) {
+                for (Integer itemId : reserved) {
+                    ledger.release(itemId, lines.get(itemId));
+                }
+                if (result != null && ledger != null && result.itemId != -1) {
+                    ledger.invalidate(result.itemId);
+                }
+            }
+            record("cart", start, result == null ? null : result.result);
+        }
+    }
+
+    /**
+     * Places many independent single-item orders, possibly for different users, in one
+     * transaction; each gets its own Result, as if placed one after another in input order.
+     * The distinct items are locked ascending once, the orders are checked against the locked
+     * stock in memory, and then each item gets one stock UPDATE and all orders go in as one
+     * INSERT batch, so n orders cost a few round trips instead of 2n transactions. Hot items take
+     * each order from a shard. This bypasses the group-commit pipeline (the batch already is
+     * one); in JOURNAL mode the orders go through placeOrder, which answers from memory anyway.
+     */
+    Result[] placeBatch(int[] userIds, int[] itemIds, int[] quantities) throws SQLException {
+        int n = itemIds.length;
+        Result[] results = new Result[n];
+        if (journal != null) {
+            for (int i = 0; i < n; i++) {
+                results[i] = placeOrder(userIds[i], itemIds[i], quantities[i]);
+            }
+            return results;
+        }
+
+        long start = System.nanoTime();
+        boolean[] reserved = new boolean[n];
+        boolean committed = false;
+        try {
+            for (int i = 0; i < n; i++) {
+                if (isDeleted(itemIds[i])) {
+                    results[i] = Result.NOT_FOUND;
+                }
+            }
+            if (ledger != null) {
+                for (int i = 0; i < n; i++) {
+                    if (results[i] != null) {
+                        continue;
+                    }
+                    StockLedger.Reservation r = ledger.tryReserve(itemIds[i], quantities[i]);
+                    if (r == StockLedger.Reservation.RESERVED) {
+                        reserved[i] = true;
+                    } else {
+                        results[i] = r == StockLedger.Reservation.SOLD_OUT ? Result.OUT_OF_STOCK : Result.NOT_FOUND;
+                    }
+                }
+            }
+
+            for (int attempt = 1; ; attempt++) {
+                try (Connection conn = ds.getConnection()) {
+                    conn.setAutoCommit(false);
+                    try {
+                        Result[] placed = placeBatchLocked(conn, userIds, itemIds, quantities, results);
+                        conn.commit();
+                        conn.setAutoCommit(true);
+                        results = placed;
+                        committed = true;
+                        break;
+                    } catch (SQLException e) {
+                        rollbackQuietly(conn);
+                        if (!isRetryable(e) || attempt >= MAX_ATTEMPTS) {
+                            throw e;
+                        }
+                    }
+                }
+                backoff(attempt);
+            }
+
+            if (catalog != null) {
+                for (int i = 0; i < n; i++) {
+                    if (results[i] == Result.OK) {
+                        catalog.adjustStock(itemIds[i], -quantities[i]);
+                    }
+                }
+            }
+            return results;
+        } finally {
+            for (int i = 0; i < n; i++) {
+                if (reserved[i] && (!committed || results[i] != Result.OK)) {
+                    ledger.release(itemIds[i], quantities[i]);
+                    if (committed) {
+                        ledger.invalidate(itemIds[i]);
+                    }
+                }
+            }
+            Metrics.timer("cart_order_seconds", "op", "batch", "mode", modeLabel).recordSince(start);
+            if (!committed) {
+                Metrics.counter("cart_orders_total", "op", "batch", "result", "rolled_back").add(n);
+            } else {
+                int[] counts = new int[Result.values().length];
+                for (Result r : results) {
+                    counts[r.ordinal()]++;
+                }
+                for (Result r : Result.values()) {
+                    if (counts[r.ordinal()] > 0) {
+                        Metrics.counter("cart_orders_total", "op", "batch", "result", r.name().toLowerCase())
+                                .add(counts[r.ordinal()]);
+                    }
+                }
+            }
+        }
+    }
+
+    // rejected holds the ledger's answers (null = still to decide); returns a new array
+    private Result[] placeBatchLocked(Connection conn, int[] userIds, int[] itemIds, int[] quantities,
+                                      Result[] rejected) throws SQLException {
+        int n = itemIds.length;
+        Result[] results = rejected.clone();
+        TreeSet<Integer> ids = new TreeSet<>();
+        for (int i = 0; i < n; i++) {
+            if (results[i] == null && (shards == null || !shards.isHot(itemIds[i]))) {
+                ids.add(itemIds[i]);
+            }
+        }
+        Map<Integer, Integer> stock = lockStock(conn, new ArrayList<>(ids));
+
+        // Sold units per item, in ascending item order for the UPDATE batch and the rollup
+        Map<Integer, Integer> sold = new TreeMap<>();
+        try (PreparedStatement orderStmt = conn.prepareStatement(Sql.ORDER_INSERT.text)) {
+            int orders = 0;
+            for (int i = 0; i < n; i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+                int itemId = itemIds[i];
+                if (shards != null && shards.isHot(itemId)) {
+                    results[i] = shards.take(conn, itemId, quantities[i]) ? Result.OK : Result.OUT_OF_STOCK;
+                } else {
+                    Integer available = stock.get(itemId);
+                    if (available == null) {
+                        results[i] = Result.NOT_FOUND;
+                    } else if (available < quantities[i]) {
+                        results[i] = Result.OUT_OF_STOCK;
+                    } else {
+                        stock.put(itemId, available - quantities[i]);
+                        results[i] = Result.OK;
+                    }
+                }
+                if (results[i] == Result.OK) {
+                    sold.merge(itemId, quantities[i], Integer::sum);
+                    orderStmt.setInt(1, userIds[i]);
+                    orderStmt.setInt(2, itemId);
+                    orderStmt.setInt(3, quantities[i]);
+                    orderStmt.addBatch();
+                    orders++;
+                }
+            }
+
+            try (PreparedStatement updateStmt = conn.prepareStatement(Sql.STOCK_DECREMENT.text)) {
+                int updates = 0;
+                for (Map.Entry<Integer, Integer> item : sold.entrySet()) {
+                    if (ids.contains(item.getKey())) {
+                        updateStmt.setInt(1, item.getValue());
+                        updateStmt.setInt(2, item.getKey());
+                        updateStmt.addBatch();
+                        updates++;
+                    }
+                }
+                if (updates > 0) {
+                    updateStmt.executeBatch();
+                }
+            }
+            if (orders > 0) {
+                orderStmt.executeBatch();
+            }
+        }
+        if (sales != null) {
+            sales.recordAll(conn, sold);
+        }
+        return results;
+    }
+
+    private CartResult checkoutLocked(Connection conn, int userId, Map<Integer, Integer> lines) throws SQLException {
+        // 1) Lock the stock rows (lines are sorted by item_id)
+        List<Integer> ids = new ArrayList<>(lines.size());
+        List<Integer> hot = new ArrayList<>();
+        for (Integer itemId : lines.keySet()) {
+            (shards != null && shards.isHot(itemId) ? hot : ids).add(itemId);
+        }
+        Map<Integer, Integer> stock = lockStock(conn, ids);
+        for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+            if (hot.contains(line.getKey())) {
+                continue;
+            }
+            Integer available = stock.get(line.getKey());
+            if (available == null) {
+                return new CartResult(Result.NOT_FOUND, line.getKey());
+            }
+            if (available < line.getValue()) {
+                return new CartResult(Result.OUT_OF_STOCK, line.getKey());
+            }
+        }
+
+        // Hot items take their stock from shard rows instead (after the items locks, ascending)
+        for (Integer itemId : hot) {
+            if (!shards.take(conn, itemId, lines.get(itemId))) {
+                return new CartResult(Result.OUT_OF_STOCK, itemId);
+            }
+        }
+
+        // 2) Stock updates and order lines as two batches
+        try (PreparedStatement updateStmt = conn.prepareStatement(Sql.STOCK_DECREMENT.text);
+             PreparedStatement orderStmt = conn.prepareStatement(Sql.ORDER_INSERT.text)) {
+            for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+                if (!hot.contains(line.getKey())) {
+                    updateStmt.setInt(1, line.getValue());
+                    updateStmt.setInt(2, line.getKey());
+                    updateStmt.addBatch();
+                }
+
+                orderStmt.setInt(1, userId);
+                orderStmt.setInt(2, line.getKey());
+                orderStmt.setInt(3, line.getValue());
+                orderStmt.addBatch();
+            }
+            updateStmt.executeBatch();
+            orderStmt.executeBatch();
+        }
+        if (sales != null) {
+            sales.recordAll(conn, lines);
+        }
+        return CART_OK;
+    }
+
+    /**
+     * Locks the items rows of ids (ascending) with as few round trips as possible and returns their
+     * stock; ids that do not exist are missing from the map. ORDER BY id makes InnoDB take the locks
+     * ascending. IN-lists use the fixed bucket sizes from Sql.lockItems so they hit the statement
+     * cache; spare slots repeat the last id.
+     */
+    private static Map<Integer, Integer> lockStock(Connection conn, List<Integer> ids) throws SQLException {
+        Map<Integer, Integer> stock = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += Sql.LOCK_ITEMS_MAX) {
+            int n = Math.min(Sql.LOCK_ITEMS_MAX, ids.size() - from);
+            int bucket = Sql.lockItemsBucket(n);
+            try (PreparedStatement lockStmt = conn.prepareStatement(Sql.lockItems(bucket))) {
+                for (int i = 0; i < bucket; i++) {
+                    lockStmt.setInt(i + 1, ids.get(from + Math.min(i, n - 1)));
+                }
+                try (ResultSet rs = lockStmt.executeQuery()) {
+                    while (rs.next()) {
+                        stock.put(rs.getInt("id"), rs.getInt("stock"));
+                    }
+                }
+            }
+        }
+        return stock;
+    }
+
+    private Result placeLocking(Connection conn, int userId, int itemId, int quantity) throws SQLException {
+        // 1) Check stock FOR UPDATE (locks row)
+        try (PreparedStatement checkStmt = conn.prepareStatement(Sql.ITEM_STOCK_FOR_UPDATE.text)) {
+            checkStmt.setInt(1, itemId);
+            try (ResultSet rs = checkStmt.executeQuery()) {
+                if (!rs.next()) {
+                    return Result.NOT_FOUND;
+                }
+                if (rs.getInt("stock") < quantity) {
+                    return Result.OUT_OF_STOCK;
+                }
+            }
+        }
+
+        // 2) Insert order
+        insertOrder(conn, userId, itemId, quantity);
+
+        // 3) Update stock
+        try (PreparedStatement updateStmt = conn.prepareStatement(Sql.STOCK_DECREMENT.text)) {
+            updateStmt.setInt(1, quantity);
+            updateStmt.setInt(2, itemId);
+            updateStmt.executeUpdate();
+        }
+        if (sales != null) {
+            sales.record(conn, itemId, quantity, null);
+        }
+        return Result.OK;
+    }
+
+    private Result placeOptimistic(Connection conn, int userId, int itemId, int quantity) throws SQLException {
+        // 1) Guarded decrement: succeeds only if the row exists and has enough stock.
+        //    Done before the INSERT so we take the exclusive row lock first; inserting first would take
+        //    a shared FK lock on the same row and invite upgrade deadlocks between concurrent buyers.
+        if (decrementStock(conn, itemId, quantity) == 0) {
+            return itemExists(conn, itemId) ? Result.OUT_OF_STOCK : Result.NOT_FOUND;
+        }
+
+        // 2) Insert order
+        insertOrder(conn, userId, itemId, quantity);
+        if (sales != null) {
+            sales.record(conn, itemId, quantity, null);
+        }
+        return Result.OK;
+    }
+
+    private Result placeSharded(Connection conn, int userId, int itemId, int quantity) throws SQLException {
+        // Same shape as placeOptimistic, with the guarded decrement on one shard row
+        if (!shards.take(conn, itemId, quantity)) {
+            return Result.OUT_OF_STOCK;
+        }
+        insertOrder(conn, userId, itemId, quantity);
+        if (sales != null) {
+            sales.record(conn, itemId, quantity, null);
+        }
+        return Result.OK;
+    }
+
+    static int decrementStock(Connection conn, int itemId, int quantity) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.STOCK_DECREMENT_GUARDED.text)) {
+            stmt.setInt(1, quantity);
+            stmt.setInt(2, itemId);
+            stmt.setInt(3, quantity);
+            return stmt.executeUpdate();
+        }
+    }
+
+    static void insertOrder(Connection conn, int userId, int itemId, int quantity) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ORDER_INSERT.text)) {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, itemId);
+            stmt.setInt(3, quantity);
+            stmt.executeUpdate();
+        }
+    }
+
+    static boolean itemExists(Connection conn, int itemId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_EXISTS.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // ========== Retry helpers ==========
+
+    /**
+     * Deadlocks (SQLState 40001 / MySQL 1213) and lock-wait timeouts (MySQL 1205) roll back only
+     * the losing transaction, so running it again is safe.
+     */
+    static boolean isRetryable(SQLException e) {
+        for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+            if (cur instanceof SQLTransactionRollbackException
+                    || "40001".equals(cur.getSQLState())
+                    || cur.getErrorCode() == ER_LOCK_DEADLOCK
+                    || cur.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void backoff(int attempt) throws SQLException {
+        RETRIES.increment();
+        long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 10));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap / 2, cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying order", "40001", e);
+        }
+    }
+
+    /**
+     * Number of transactions (or group-commit batches) rerun after a deadlock or lock-wait timeout.
+     */
+    static long getRetryCount() {
+        return RETRIES.sum();
+    }
+
+    @Override
+    public void close() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    static void rollbackQuietly(Connection conn) {
+        try {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        } catch (SQLException ex) {
+            System.err.println("Rollback failed:");
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package shopingcartapp;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * QueryPlanCheck.java
+ *
+ * Guards the indexes the hot queries depend on. Each registered query names the table and the
+ * leading index columns it needs; the check looks the index up in the metadata and runs EXPLAIN
+ * on the real statement (with sample parameters) to see that MySQL actually reads that table
+ * with it. A query fails if no such index exists, if EXPLAIN's key for the table is not one of
+ * them (being in possible_keys only is not enough), if the table is scanned (type=ALL) or if
+ * any step of the plan sorts ("Using filesort"), e.g. after the index was dropped or the
+ * statement was edited into a form that cannot use it.
+ *
+ * Plans are judged on the data present, so run the check against a realistically filled
+ * database: on a near-empty table the optimizer may rightly prefer a scan. A const lookup that
+ * finds no row ("no matching row in const table") reports no key at all, but only happens
+ * through a unique index, so it passes.
+ *
+ * EXPLAIN output is MySQL's; on a database whose EXPLAIN has no key column the check is skipped.
+ * Queries on optional tables that do not exist yet are skipped as well.
+ */
+final class QueryPlanCheck {
+
+    private static final class HotQuery {
+        final Sql sql;
+        final String table;
+        final String[] columns;
+        final Object[] params;
+
+        HotQuery(Sql sql, String table, String[] columns, Object... params) {
+            this.sql = sql;
+            this.table = table;
+            this.columns = columns;
+            this.params = params;
+        }
+    }
+
+    private static final HotQuery[] HOT_QUERIES = {
+            new HotQuery(Sql.LOGIN_USER, "users", new String[]{"username"}, "admin", "admin123"),
+            new HotQuery(Sql.ITEM_LOOKUP, "items", new String[]{"id"}, 1),
+            new HotQuery(Sql.ORDERS_USER_PAGE, "orders", new String[]{"user_id", "order_date"},
+                    1, OrderHistory.MIN_DATE, OrderHistory.MAX_DATE,
+                    OrderHistory.MAX_DATE, OrderHistory.MAX_DATE, Integer.MAX_VALUE, 20),
+            new HotQuery(Sql.ORDERS_ALL_PAGE, "orders", new String[]{"order_date"},
+                    OrderHistory.MIN_DATE, OrderHistory.MAX_DATE,
+                    OrderHistory.MAX_DATE, OrderHistory.MAX_DATE, Integer.MAX_VALUE, 20),
+            new HotQuery(Sql.SALES_BY_DAY, "sales_daily", new String[]{"sale_date"},
+                    Date.valueOf("2000-01-01"), Date.valueOf("2100-01-01")),
+            new HotQuery(Sql.SHARDS_FOR_ITEM, "item_stock_shards", new String[]{"item_id"}, 1),
+            new HotQuery(Sql.PURGE_CHUNK_END, "orders", new String[]{"item_id"}, 1, 500),
+    };
+
+    private QueryPlanCheck() {
+    }
+
+    /**
+     * @return one message per failing query, empty if all pass
+     */
+    static List<String> run(Connection conn) throws SQLException {
+        List<String> failures = new ArrayList<>();
+        DatabaseMetaData meta = conn.getMetaData();
+        String catalog = conn.getCatalog();
+        for (HotQuery q : HOT_QUERIES) {
+            if (!SchemaMigrations.hasTable(meta, catalog, q.table)) {
+                continue;
+            }
+            String wanted = q.table + "(" + String.join(", ", q.columns) + ")";
+            Set<String> indexes = SchemaMigrations.indexesWithPrefix(meta, catalog, q.table, q.columns);
+            if (indexes.isEmpty()) {
+                failures.add(q.sql.name() + ": no index on " + wanted);
+                continue;
+            }
+            String failure = explain(conn, q, indexes, wanted);
+            if (failure != null) {
+                failures.add(failure);
+            }
+        }
+        return failures;
+    }
+
+    private static String explain(Connection conn, HotQuery q, Set<String> indexes, String wanted)
+            throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + q.sql.text)) {
+            for (int i = 0; i < q.params.length; i++) {
+                stmt.setObject(i + 1, q.params[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                Map<String, Integer> cols = new HashMap<>();
+                ResultSetMetaData rsMeta = rs.getMetaData();
+                for (int i = 1; i <= rsMeta.getColumnCount(); i++) {
+                    cols.put(rsMeta.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+                }
+                if (!cols.containsKey("key") || !cols.containsKey("table")) {
+                    return null;
+                }
+                boolean found = false;
+                String failure = null;
+                while (rs.next()) {
+                    String table = rs.getString(cols.get("table"));
+                    String extra = cols.containsKey("extra") ? rs.getString(cols.get("extra")) : null;
+                    if (extra != null && extra.contains("no matching row in const table")) {
+                        return null;
+                    }
+                    if (extra != null && extra.contains("Using filesort")) {
+                        // Whichever table carries it, the rows are sorted instead of read in index order
+                        return q.sql.name() + ": sorts its rows (" + table + ": " + extra
+                                + "), expected to read them in the order of an index on " + wanted + " " + indexes;
+                    }
+                    if (found || table == null || !table.equalsIgnoreCase(q.table)) {
+                        continue;
+                    }
+                    found = true;
+                    String key = rs.getString(cols.get("key"));
+                    String type = cols.containsKey("type") ? rs.getString(cols.get("type")) : null;
+                    String possible = cols.containsKey("possible_keys") ? rs.getString(cols.get("possible_keys")) : null;
+                    if ("ALL".equalsIgnoreCase(type)) {
+                        failure = q.sql.name() + ": " + q.table + " is scanned (type=ALL, possible_keys=" + possible
+                                + "), expected an index on " + wanted + " " + indexes;
+                    } else if (!uses(key, indexes)) {
+                        failure = q.sql.name() + ": " + q.table + " is read with key=" + key
+                                + " (possible_keys=" + possible + "), expected an index on " + wanted + " " + indexes;
+                    }
+                }
+                if (found) {
+                    return failure;
+                }
+            }
+        }
+        return q.sql.name() + ": " + q.table + " not found in EXPLAIN output";
+    }
+
+    // keys is EXPLAIN's comma-separated list (or null)
+    private static boolean uses(String keys, Set<String> indexes) {
+        if (keys == null) {
+            return false;
+        }
+        for (String key : keys.split(",")) {
+            if (indexes.contains(key.trim().toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
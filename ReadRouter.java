@@ -0,0 +1,74 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * ReadRouter.java
+ *
+ * Sends read-only browse/report queries (viewItems, viewCart, viewAllOrders, viewUsers) to a
+ * replica DataSource and leaves everything transactional on the primary, so long reports do not
+ * hold primary connections that checkouts are waiting for.
+ *
+ * Read-your-writes: a session that wrote within the last readYourWritesMillis reads from the
+ * primary, so "View My Orders" right after an order shows it even while the replica lags.
+ * readYourWritesMillis should cover the worst replication lag you expect; 0 turns it off.
+ *
+ * Without a replica every read goes to the primary. If the replica cannot hand out a connection,
+ * the read falls back to the primary instead of failing.
+ */
+final class ReadRouter {
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final long readYourWritesMillis;
+
+    /**
+     * @param replica null to route every read to the primary
+     */
+    ReadRouter(DataSource primary, DataSource replica, long readYourWritesMillis) {
+        this.primary = primary;
+        this.replica = replica;
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    boolean hasReplica() {
+        return replica != null;
+    }
+
+    /**
+     * DataSource for shared read-only caches that are not tied to a session (e.g. the catalog).
+     */
+    DataSource readSource() {
+        return replica != null ? replica : primary;
+    }
+
+    /**
+     * True if this session must not read from the replica yet.
+     */
+    boolean needsPrimary(Session s) {
+        return replica == null
+                || (s != null && s.lastWriteMillis != 0
+                && System.currentTimeMillis() - s.lastWriteMillis < readYourWritesMillis);
+    }
+
+    /**
+     * Connection for a read-only query on behalf of s (null for no session).
+     */
+    Connection read(Session s) throws SQLException {
+        if (needsPrimary(s)) {
+            Metrics.counter("cart_reads_total", "target", replica == null ? "primary" : "primary_ryw").increment();
+            return primary.getConnection();
+        }
+        try {
+            Connection conn = replica.getConnection();
+            Metrics.counter("cart_reads_total", "target", "replica").increment();
+            return conn;
+        } catch (SQLException e) {
+            Metrics.counter("cart_reads_total", "target", "primary_fallback").increment();
+            System.err.println("Replica unavailable, reading from primary: " + e.getMessage());
+            return primary.getConnection();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * SalesRollup.java
+ *
+ * Incrementally maintained sales totals for admin reports, in sales_daily(item_id, sale_date,
+ * units, revenue). Every checkout path adds its lines with one upsert per item inside the order
+ * transaction, so the rollup commits (or rolls back) together with the orders. The row for an
+ * item is only touched after that item's stock row is locked, so it adds no new lock ordering.
+ *
+ * Reports read sales_daily over a day range and never touch orders, so their cost depends on
+ * items x days in the range, not on how many orders exist.
+ *
+ * backfill() rebuilds every completed day (before today) from orders, one day per transaction;
+ * it is safe to re-run, e.g. once after deployment and once the next day so the deploy day
+ * itself is complete too. Revenue uses the item's current price (orders do not record one).
+ *
+ * Everything is a no-op until the sales_daily table exists (SchemaCapabilities).
+ */
+final class SalesRollup {
+
+    private final DataSource ds;
+    private final SchemaCapabilities schema;
+
+    SalesRollup(DataSource ds, SchemaCapabilities schema) {
+        this.ds = ds;
+        this.schema = schema;
+    }
+
+    boolean isEnabled() {
+        return schema.hasTable("sales_daily");
+    }
+
+    // ========== Incremental maintenance (inside the caller's transaction) ==========
+
+    /**
+     * @param at order time, or null for the database's current time
+     */
+    void record(Connection conn, int itemId, int quantity, Timestamp at) throws SQLException {
+        if (!isEnabled()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SALES_ADD.text)) {
+            bind(stmt, itemId, quantity, at);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Records item_id -> quantity lines placed now; iterate in ascending item_id (e.g. a TreeMap)
+     * to keep lock order consistent with the stock rows.
+     */
+    void recordAll(Connection conn, Map<Integer, Integer> quantities) throws SQLException {
+        if (!isEnabled() || quantities.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SALES_ADD.text)) {
+            for (Map.Entry<Integer, Integer> line : quantities.entrySet()) {
+                bind(stmt, line.getKey(), line.getValue(), null);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, int itemId, int quantity, Timestamp at) throws SQLException {
+        if (at != null) {
+            stmt.setTimestamp(1, at);
+        } else {
+            stmt.setNull(1, Types.TIMESTAMP);
+        }
+        stmt.setInt(2, quantity);
+        stmt.setInt(3, quantity);
+        stmt.setInt(4, itemId);
+    }
+
+    // ========== Backfill ==========
+
+    /**
+     * Rebuilds sales_daily for every day before today from the orders table.
+     *
+     * @return number of days rebuilt
+     */
+    int backfill(PrintStream progress) throws SQLException {
+        if (!isEnabled()) {
+            throw new SQLException("sales_daily does not exist; create it first (see README)");
+        }
+        LocalDate first;
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ORDERS_FIRST_DATE.text);
+             ResultSet rs = stmt.executeQuery()) {
+            Timestamp ts = rs.next() ? rs.getTimestamp(1) : null;
+            if (ts == null) {
+                return 0;
+            }
+            first = ts.toLocalDateTime().toLocalDate();
+        }
+
+        LocalDate today = LocalDate.now();
+        int days = 0;
+        for (LocalDate day = first; day.isBefore(today); day = day.plusDays(1)) {
+            try (Connection conn = ds.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement delete = conn.prepareStatement(Sql.SALES_DELETE_DAY.text);
+                     PreparedStatement insert = conn.prepareStatement(Sql.SALES_BACKFILL_DAY.text)) {
+                    delete.setDate(1, Date.valueOf(day));
+                    delete.executeUpdate();
+                    insert.setDate(1, Date.valueOf(day));
+                    insert.setTimestamp(2, Timestamp.valueOf(day.atStartOfDay()));
+                    insert.setTimestamp(3, Timestamp.valueOf(day.plusDays(1).atStartOfDay()));
+                    insert.executeUpdate();
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    OrderService.rollbackQuietly(conn);
+                    throw e;
+                }
+            }
+            days++;
+            if (progress != null && days % 30 == 0) {
+                progress.println("  ... rebuilt through " + day);
+            }
+        }
+        return days;
+    }
+
+    // ========== Reports ==========
+
+    /**
+     * Units and revenue per item for days in [from, to).
+     */
+    static void byItem(Connection conn, LocalDate from, LocalDate to, OrderHistory.RowHandler handler) throws SQLException {
+        query(conn, Sql.SALES_BY_ITEM, from, to, -1, handler);
+    }
+
+    /**
+     * Units and revenue per day for days in [from, to).
+     */
+    static void byDay(Connection conn, LocalDate from, LocalDate to, OrderHistory.RowHandler handler) throws SQLException {
+        query(conn, Sql.SALES_BY_DAY, from, to, -1, handler);
+    }
+
+    /**
+     * The n items with the highest revenue for days in [from, to).
+     */
+    static void top(Connection conn, LocalDate from, LocalDate to, int n, OrderHistory.RowHandler handler) throws SQLException {
+        query(conn, Sql.SALES_TOP, from, to, n, handler);
+    }
+
+    private static void query(Connection conn, Sql sql, LocalDate from, LocalDate to, int limit,
+                              OrderHistory.RowHandler handler) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql.text)) {
+            stmt.setDate(1, Date.valueOf(from));
+            stmt.setDate(2, Date.valueOf(to));
+            if (limit > 0) {
+                stmt.setInt(3, limit);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    handler.row(rs);
+                }
+            }
+        }
+    }
+}
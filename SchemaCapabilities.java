@@ -0,0 +1,89 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SchemaCapabilities.java
+ *
+ * One-time schema introspection. DatabaseMetaData is read once at startup (or on demand via
+ * refresh(), e.g. after a migration) into a table -> columns map, and everything that depends on
+ * optional columns or tables (users.role, users.email, sales_daily, ...) asks this instead of
+ * hitting the metadata API on every call. Names are stored lower-case so lookups are
+ * case-insensitive.
+ */
+final class SchemaCapabilities {
+
+    private static final String[] TABLES = {"users", "items", "orders", "sales_daily", "item_stock_shards",
+            "orders_archive"};
+
+    private final DataSource ds;
+    private volatile Map<String, Set<String>> columns = Collections.emptyMap();
+
+    SchemaCapabilities(DataSource ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Re-reads the column lists of the app's tables (one getColumns call per table).
+     */
+    void refresh() throws SQLException {
+        Map<String, Set<String>> loaded = new HashMap<>();
+        try (Connection conn = ds.getConnection()) {
+            DatabaseMetaData meta = conn.getMetaData();
+            String catalog = conn.getCatalog();
+            for (String table : TABLES) {
+                Set<String> cols = new HashSet<>();
+                try (ResultSet rs = meta.getColumns(catalog, null, table, null)) {
+                    while (rs.next()) {
+                        cols.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+                    }
+                }
+                if (cols.isEmpty()) {
+                    // Some drivers report unquoted identifiers upper-case
+                    try (ResultSet rs = meta.getColumns(catalog, null, table.toUpperCase(Locale.ROOT), null)) {
+                        while (rs.next()) {
+                            cols.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+                        }
+                    }
+                }
+                loaded.put(table, Collections.unmodifiableSet(cols));
+            }
+        }
+        columns = Collections.unmodifiableMap(loaded);
+    }
+
+    boolean hasColumn(String table, String column) {
+        Set<String> cols = columns.get(table.toLowerCase(Locale.ROOT));
+        return cols != null && cols.contains(column.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * True if the table exists (has at least one column).
+     */
+    boolean hasTable(String table) {
+        Set<String> cols = columns.get(table.toLowerCase(Locale.ROOT));
+        return cols != null && !cols.isEmpty();
+    }
+
+    boolean hasRole() {
+        return hasColumn("users", "role");
+    }
+
+    boolean hasEmail() {
+        return hasColumn("users", "email");
+    }
+
+    String describe() {
+        return columns.toString();
+    }
+}
@@ -0,0 +1,307 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * SchemaMigrations.java
+ *
+ * Versioned schema changes, applied in order at startup and recorded in
+ * schema_version(version, description, applied_at). Each migration also knows how to tell that
+ * its change is already there (a table, column or index created by hand from the README), in
+ * which case it is only recorded, so existing databases adopt the versioning without re-running
+ * DDL. MySQL commits DDL implicitly, so every migration is one idempotent step rather than a
+ * transaction.
+ *
+ * Besides the optional tables and columns added over time, the migrations add the composite
+ * indexes the hot order queries need:
+ * - orders(user_id, order_date, id) for View My Orders (filter on user, keyset order by date, id)
+ * - orders(order_date, id) for View All Orders (range and keyset order by date, id)
+ * With them both pages are read in index order with no filesort; QueryPlanCheck verifies that.
+ * They are deliberately not covering: a page is at most pageSize rows, so its row lookups are
+ * cheap next to the joins, while every checkout INSERT would pay for wider index entries.
+ *
+ * Run with main() to migrate and check query plans from a deploy script; it connects to the
+ * app's own database (ShopingCartApp.DB_URL and credentials) unless --url/--user/--password say
+ * otherwise, and exits non-zero if a plan check fails.
+ */
+final class SchemaMigrations {
+
+    private interface Check {
+        boolean applied(DatabaseMetaData meta, String catalog) throws SQLException;
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final Check check;
+        final String[] statements;
+        final String note;
+
+        Migration(int version, String description, Check check, String note, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.check = check;
+            this.note = note;
+            this.statements = statements;
+        }
+    }
+
+    // Append only: a released version number must never change meaning
+    private static final Migration[] MIGRATIONS = {
+            new Migration(1, "base tables users, items, orders",
+                    (m, c) -> hasTable(m, c, "users") && hasTable(m, c, "items") && hasTable(m, c, "orders"), null,
+                    "CREATE TABLE IF NOT EXISTS users ("
+                            + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                            + "username VARCHAR(100) NOT NULL UNIQUE, "
+                            + "password VARCHAR(255) NOT NULL, "
+                            + "full_name VARCHAR(200), "
+                            + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+                    "CREATE TABLE IF NOT EXISTS items ("
+                            + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                            + "name VARCHAR(200) NOT NULL, "
+                            + "description TEXT, "
+                            + "price DECIMAL(10,2) NOT NULL, "
+                            + "stock INT NOT NULL DEFAULT 0, "
+                            + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+                    "CREATE TABLE IF NOT EXISTS orders ("
+                            + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                            + "user_id INT NOT NULL, "
+                            + "item_id INT NOT NULL, "
+                            + "quantity INT NOT NULL, "
+                            + "order_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+                            + "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, "
+                            + "FOREIGN KEY (item_id) REFERENCES items(id) ON DELETE CASCADE)"),
+            new Migration(2, "orders.client_order_id (journal checkout)",
+                    (m, c) -> hasColumn(m, c, "orders", "client_order_id"), null,
+                    "ALTER TABLE orders ADD COLUMN client_order_id CHAR(36) NULL UNIQUE"),
+            new Migration(3, "sales_daily rollups",
+                    (m, c) -> hasTable(m, c, "sales_daily"),
+                    "sales_daily starts empty: run Admin Menu -> Sales Reports -> Rebuild rollups once.",
+                    "CREATE TABLE IF NOT EXISTS sales_daily ("
+                            + "item_id INT NOT NULL, "
+                            + "sale_date DATE NOT NULL, "
+                            + "units BIGINT NOT NULL DEFAULT 0, "
+                            + "revenue DECIMAL(14,2) NOT NULL DEFAULT 0, "
+                            + "PRIMARY KEY (item_id, sale_date))",
+                    "CREATE INDEX idx_sales_date ON sales_daily (sale_date, item_id)"),
+            new Migration(4, "items.sku (bulk import)",
+                    (m, c) -> hasColumn(m, c, "items", "sku"), null,
+                    "ALTER TABLE items ADD COLUMN sku VARCHAR(64) NULL UNIQUE"),
+            new Migration(5, "item_stock_shards (hot items)",
+                    (m, c) -> hasTable(m, c, "item_stock_shards"), null,
+                    "CREATE TABLE IF NOT EXISTS item_stock_shards ("
+                            + "item_id INT NOT NULL, "
+                            + "shard INT NOT NULL, "
+                            + "stock INT NOT NULL DEFAULT 0, "
+                            + "PRIMARY KEY (item_id, shard), "
+                            + "FOREIGN KEY (item_id) REFERENCES items(id) ON DELETE CASCADE)"),
+            new Migration(6, "index orders(user_id, order_date, id)",
+                    (m, c) -> !indexesWithPrefix(m, c, "orders", "user_id", "order_date").isEmpty(), null,
+                    "CREATE INDEX idx_orders_user_date ON orders (user_id, order_date, id)"),
+            new Migration(7, "index orders(order_date, id)",
+                    (m, c) -> !indexesWithPrefix(m, c, "orders", "order_date").isEmpty(), null,
+                    "CREATE INDEX idx_orders_date ON orders (order_date, id)"),
+            new Migration(8, "items.deleted_at (soft delete)",
+                    (m, c) -> hasColumn(m, c, "items", "deleted_at"), null,
+                    "ALTER TABLE items ADD COLUMN deleted_at TIMESTAMP NULL"),
+            new Migration(9, "orders_archive (purged orders of deleted items)",
+                    (m, c) -> hasTable(m, c, "orders_archive"), null,
+                    "CREATE TABLE IF NOT EXISTS orders_archive ("
+                            + "id INT PRIMARY KEY, "
+                            + "user_id INT NOT NULL, "
+                            + "item_id INT NOT NULL, "
+                            + "quantity INT NOT NULL, "
+                            + "order_date TIMESTAMP NULL, "
+                            + "client_order_id CHAR(36) NULL, "
+                            + "archived_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+                    "CREATE INDEX idx_archive_item ON orders_archive (item_id, id)"),
+    };
+
+    static final int LATEST_VERSION = MIGRATIONS[MIGRATIONS.length - 1].version;
+
+    private final DataSource ds;
+
+    SchemaMigrations(DataSource ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Applies (or records as already present) every migration not yet in schema_version.
+     *
+     * @return one line per migration handled, empty if the schema was up to date
+     */
+    List<String> migrate() throws SQLException {
+        List<String> log = new ArrayList<>();
+        try (Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(true);
+            try (Statement st = conn.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS schema_version ("
+                        + "version INT PRIMARY KEY, "
+                        + "description VARCHAR(200) NOT NULL, "
+                        + "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            }
+            Set<Integer> done = appliedVersions(conn);
+            DatabaseMetaData meta = conn.getMetaData();
+            String catalog = conn.getCatalog();
+            for (Migration mig : MIGRATIONS) {
+                if (done.contains(mig.version)) {
+                    continue;
+                }
+                if (mig.check.applied(meta, catalog)) {
+                    log.add("V" + mig.version + " " + mig.description + ": already present, recorded");
+                } else {
+                    long start = System.nanoTime();
+                    try (Statement st = conn.createStatement()) {
+                        for (String sql : mig.statements) {
+                            st.execute(sql);
+                        }
+                    }
+                    log.add(String.format("V%d %s: applied in %.1f s", mig.version, mig.description,
+                            (System.nanoTime() - start) / 1e9));
+                    if (mig.note != null) {
+                        log.add("    " + mig.note);
+                    }
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                    stmt.setInt(1, mig.version);
+                    stmt.setString(2, mig.description);
+                    stmt.executeUpdate();
+                }
+            }
+            for (int version : done) {
+                if (version > LATEST_VERSION) {
+                    log.add("schema_version " + version + " is newer than this build (" + LATEST_VERSION + ")");
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Migrations not yet recorded, without changing anything (for -Dcart.migrate=false).
+     */
+    List<String> pending() throws SQLException {
+        List<String> pending = new ArrayList<>();
+        try (Connection conn = ds.getConnection()) {
+            Set<Integer> done = hasTable(conn.getMetaData(), conn.getCatalog(), "schema_version")
+                    ? appliedVersions(conn) : new HashSet<>();
+            for (Migration mig : MIGRATIONS) {
+                if (!done.contains(mig.version)) {
+                    pending.add("V" + mig.version + " " + mig.description);
+                }
+            }
+        }
+        return pending;
+    }
+
+    private static Set<Integer> appliedVersions(Connection conn) throws SQLException {
+        Set<Integer> done = new HashSet<>();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT version FROM schema_version")) {
+            while (rs.next()) {
+                done.add(rs.getInt(1));
+            }
+        }
+        return done;
+    }
+
+    // ========== Metadata helpers (also used by QueryPlanCheck) ==========
+
+    static boolean hasTable(DatabaseMetaData meta, String catalog, String table) throws SQLException {
+        return !columns(meta, catalog, table).isEmpty();
+    }
+
+    static boolean hasColumn(DatabaseMetaData meta, String catalog, String table, String column)
+            throws SQLException {
+        return columns(meta, catalog, table).contains(column);
+    }
+
+    private static Set<String> columns(DatabaseMetaData meta, String catalog, String table) throws SQLException {
+        Set<String> cols = new HashSet<>();
+        for (String name : new String[]{table, table.toUpperCase(Locale.ROOT)}) {
+            try (ResultSet rs = meta.getColumns(catalog, null, name, null)) {
+                while (rs.next()) {
+                    cols.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+                }
+            }
+            if (!cols.isEmpty()) {
+                break;
+            }
+        }
+        return cols;
+    }
+
+    /**
+     * Names (lower-case) of the table's indexes whose leading columns are exactly the given ones,
+     * in that order. Primary keys are reported under the driver's name for them (PRIMARY on MySQL).
+     */
+    static Set<String> indexesWithPrefix(DatabaseMetaData meta, String catalog, String table, String... prefix)
+            throws SQLException {
+        Map<String, TreeMap<Integer, String>> indexes = new TreeMap<>();
+        for (String name : new String[]{table, table.toUpperCase(Locale.ROOT)}) {
+            try (ResultSet rs = meta.getIndexInfo(catalog, null, name, false, false)) {
+                while (rs.next()) {
+                    String index = rs.getString("INDEX_NAME");
+                    String column = rs.getString("COLUMN_NAME");
+                    if (index != null && column != null) {
+                        indexes.computeIfAbsent(index.toLowerCase(Locale.ROOT), k -> new TreeMap<>())
+                                .put((int) rs.getShort("ORDINAL_POSITION"), column.toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            if (!indexes.isEmpty()) {
+                break;
+            }
+        }
+        Set<String> matching = new HashSet<>();
+        for (Map.Entry<String, TreeMap<Integer, String>> index : indexes.entrySet()) {
+            List<String> cols = new ArrayList<>(index.getValue().values());
+            if (cols.size() >= prefix.length && cols.subList(0, prefix.length).equals(Arrays.asList(prefix))) {
+                matching.add(index.getKey());
+            }
+        }
+        return matching;
+    }
+
+    // ========== Command line ==========
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = CartBenchmark.parseArgs(args);
+        String url = opts.getOrDefault("url", ShopingCartApp.DB_URL);
+        String user = opts.getOrDefault("user", ShopingCartApp.DB_USER);
+        String password = opts.getOrDefault("password", ShopingCartApp.DB_PASSWORD);
+        System.out.println("Migrating " + url);
+        List<String> failures;
+        try (ConnectionPool pool = new ConnectionPool(url, user, password, 1, 0, 60_000L, 30_000L, 1_000L, 16)) {
+            for (String line : new SchemaMigrations(pool).migrate()) {
+                System.out.println(line);
+            }
+            System.out.println("Schema at version " + LATEST_VERSION);
+            try (Connection conn = pool.getConnection()) {
+                failures = QueryPlanCheck.run(conn);
+            }
+        }
+        for (String failure : failures) {
+            System.err.println("Query plan check failed: " + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+        System.out.println("Query plans OK");
+    }
+}
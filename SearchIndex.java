@@ -0,0 +1,422 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SearchIndex.java
+ *
+ * In-process inverted index over items.name and items.description for the shoppers' Search
+ * option, so a search never runs LIKE '%x%' (a full table scan) against the database.
+ *
+ * - Text is lower-cased and split on anything that is not a letter or digit.
+ * - term -> sorted item ids (postings) in a TreeMap, so a prefix is one subMap range.
+ * - Every query word is a prefix and all of them must match ("red sh" finds "Red Shoes");
+ *   one-character words only match whole words, so "a" does not expand to half the catalog.
+ *   Candidates come from the most selective word only; the other words are checked against
+ *   the item's own sorted term arrays with a binary search.
+ * - Ranking: exact word in the name > prefix in the name > exact word in the description >
+ *   prefix in the description; ties go to the shorter name, then the lower id.
+ *
+ * Built once at startup by load() and kept current by addItem/updateItem/deleteItem.
+ * Soft-deleted items (ItemPurger) are not indexed.
+ * Items changed by another process (another app instance, a bulk load) show up after a restart.
+ * Readers share a read lock; the rare admin write takes the write lock.
+ */
+final class SearchIndex {
+
+    static final class Hit {
+        final int id;
+        final String name;
+        final int score;
+
+        Hit(int id, String name, int score) {
+            this.id = id;
+            this.name = name;
+            this.score = score;
+        }
+    }
+
+    // Score per query word, by where it matched
+    private static final int NAME_EXACT = 8;
+    private static final int NAME_PREFIX = 4;
+    private static final int DESCRIPTION_EXACT = 2;
+    private static final int DESCRIPTION_PREFIX = 1;
+    // Long descriptions only contribute their first distinct words
+    private static final int MAX_DESCRIPTION_TERMS = 64;
+    private static final int MAX_QUERY_TERMS = 8;
+    // Shorter query words must match a whole term
+    private static final int MIN_PREFIX_LENGTH = 2;
+    // Postings examined per search; the exact-word term comes first in its prefix range, so only
+    // very broad prefixes ("wi" over a million widgets) are cut short, keeping lookups bounded
+    private static final int MAX_CANDIDATES = Integer.getInteger("cart.search.maxCandidates", 10_000);
+
+    private static final String[] NO_TERMS = new String[0];
+
+    private static final class Doc {
+        final String name;
+        final String[] nameTerms;   // sorted, distinct
+        final String[] descTerms;   // sorted, distinct
+        final String[] terms;       // nameTerms + descTerms, sorted, distinct (what is indexed)
+
+        Doc(String name, String[] nameTerms, String[] descTerms) {
+            this.name = name;
+            this.nameTerms = nameTerms;
+            this.descTerms = descTerms;
+            TreeSet<String> all = new TreeSet<>(Arrays.asList(nameTerms));
+            all.addAll(Arrays.asList(descTerms));
+            this.terms = all.toArray(NO_TERMS);
+        }
+    }
+
+    /**
+     * Sorted, growable int array of item ids.
+     */
+    private static final class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size == 0 || ids[size - 1] < id) {
+                // Fast path: loading in id order, or a freshly inserted item
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+                ids[size++] = id;
+                return;
+            }
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                size--;
+            }
+        }
+    }
+
+    private final DataSource ds;
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    private final Map<Integer, Doc> docs = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile ItemPurger purger;
+
+    SearchIndex(DataSource ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Soft-deleted items are left out of the next load().
+     */
+    void setPurger(ItemPurger purger) {
+        this.purger = purger;
+    }
+
+    /**
+     * (Re)builds the index from the items table, streaming the rows.
+     */
+    void load() throws SQLException {
+        TreeMap<String, Postings> loadedPostings = new TreeMap<>();
+        Map<Integer, Doc> loadedDocs = new HashMap<>();
+        ItemPurger p = purger;
+        Sql query = p != null && p.isEnabled() ? Sql.SEARCH_LOAD_LIVE : Sql.SEARCH_LOAD;
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query.text)) {
+            OrderHistory.enableStreaming(stmt, 1000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt("id");
+                    Doc doc = newDoc(rs.getString("name"), rs.getString("description"));
+                    loadedDocs.put(id, doc);
+                    index(loadedPostings, id, doc);
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            postings.putAll(loadedPostings);
+            docs.clear();
+            docs.putAll(loadedDocs);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ========== Incremental updates ==========
+
+    /**
+     * Adds or replaces an item.
+     */
+    void put(int itemId, String name, String description) {
+        Doc doc = newDoc(name, description);
+        lock.writeLock().lock();
+        try {
+            Doc old = docs.put(itemId, doc);
+            if (old != null) {
+                unindex(itemId, old);
+            }
+            index(postings, itemId, doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * New name for an indexed item; its description terms are kept.
+     */
+    void rename(int itemId, String name) {
+        String[] nameTerms = tokenize(name, Integer.MAX_VALUE);
+        lock.writeLock().lock();
+        try {
+            Doc old = docs.get(itemId);
+            Doc doc = new Doc(name, nameTerms, old != null ? old.descTerms : NO_TERMS);
+            docs.put(itemId, doc);
+            if (old != null) {
+                unindex(itemId, old);
+            }
+            index(postings, itemId, doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(int itemId) {
+        lock.writeLock().lock();
+        try {
+            Doc old = docs.remove(itemId);
+            if (old != null) {
+                unindex(itemId, old);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void index(TreeMap<String, Postings> into, int itemId, Doc doc) {
+        for (String term : doc.terms) {
+            into.computeIfAbsent(term, t -> new Postings()).add(itemId);
+        }
+    }
+
+    private void unindex(int itemId, Doc doc) {
+        for (String term : doc.terms) {
+            Postings p = postings.get(term);
+            if (p != null) {
+                p.remove(itemId);
+                if (p.size == 0) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    // ========== Search ==========
+
+    /**
+     * Best matches for the query, highest rank first; empty if the query has no words.
+     */
+    List<Hit> search(String query, int limit) {
+        long start = System.nanoTime();
+        try {
+            return find(query, limit);
+        } finally {
+            Metrics.timer("cart_search_seconds").recordSince(start);
+        }
+    }
+
+    private List<Hit> find(String query, int limit) {
+        String[] words = tokenize(query, MAX_QUERY_TERMS);
+        if (words.length == 0 || limit <= 0) {
+            return new ArrayList<>();
+        }
+        // Worst hit on top, so it is the one dropped when the queue is full
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, (a, b) -> -compare(a, b));
+
+        lock.readLock().lock();
+        try {
+            // Drive from the word whose prefix range holds the fewest postings
+            NavigableMap<String, Postings> driver = null;
+            long driverCost = Long.MAX_VALUE;
+            String driverWord = null;
+            for (String word : words) {
+                NavigableMap<String, Postings> range = matchingTerms(word);
+                long cost = 0;
+                for (Postings p : range.values()) {
+                    cost += p.size;
+                    if (cost >= driverCost || cost > MAX_CANDIDATES) {
+                        break;
+                    }
+                }
+                if (cost < driverCost) {
+                    driver = range;
+                    driverCost = cost;
+                    driverWord = word;
+                }
+            }
+            if (driverCost == 0) {
+                return new ArrayList<>();
+            }
+
+            int examined = 0;
+            scan:
+            for (Map.Entry<String, Postings> entry : driver.entrySet()) {
+                String term = entry.getKey();
+                Postings p = entry.getValue();
+                for (int i = 0; i < p.size; i++) {
+                    if (++examined > MAX_CANDIDATES) {
+                        break scan;
+                    }
+                    int id = p.ids[i];
+                    Doc doc = docs.get(id);
+                    // An item whose terms hit this prefix several times is scored only once,
+                    // from the first of them
+                    if (doc == null || !term.equals(firstWithPrefix(doc.terms, driverWord))) {
+                        continue;
+                    }
+                    int score = score(doc, words);
+                    if (score > 0 && (top.size() < limit || beats(score, doc.name, id, top.peek()))) {
+                        top.add(new Hit(id, doc.name, score));
+                        if (top.size() > limit) {
+                            top.poll();
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Hit[] hits = top.toArray(new Hit[0]);
+        Arrays.sort(hits, SearchIndex::compare);
+        return new ArrayList<>(Arrays.asList(hits));
+    }
+
+    private NavigableMap<String, Postings> matchingTerms(String word) {
+        if (word.length() < MIN_PREFIX_LENGTH) {
+            return postings.subMap(word, true, word, true);
+        }
+        return postings.subMap(word, true, word + Character.MAX_VALUE, false);
+    }
+
+    /**
+     * Sum of per-word scores, or 0 if any word matches nothing in the item.
+     */
+    private static int score(Doc doc, String[] words) {
+        int total = 0;
+        for (String word : words) {
+            int s;
+            if (Arrays.binarySearch(doc.nameTerms, word) >= 0) {
+                s = NAME_EXACT;
+            } else if (word.length() >= MIN_PREFIX_LENGTH && firstWithPrefix(doc.nameTerms, word) != null) {
+                s = NAME_PREFIX;
+            } else if (Arrays.binarySearch(doc.descTerms, word) >= 0) {
+                s = DESCRIPTION_EXACT;
+            } else if (word.length() >= MIN_PREFIX_LENGTH && firstWithPrefix(doc.descTerms, word) != null) {
+                s = DESCRIPTION_PREFIX;
+            } else {
+                return 0;
+            }
+            total += s;
+        }
+        return total;
+    }
+
+    /**
+     * The smallest term in the sorted array that starts with prefix, or null.
+     */
+    private static String firstWithPrefix(String[] sorted, String prefix) {
+        int i = Arrays.binarySearch(sorted, prefix);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < sorted.length && sorted[i].startsWith(prefix) ? sorted[i] : null;
+    }
+
+    private static int compare(Hit a, Hit b) {
+        return compare(a.score, a.name, a.id, b);
+    }
+
+    /**
+     * Rank order: negative if (score, name, id) ranks above b.
+     */
+    private static int compare(int score, String name, int id, Hit b) {
+        if (score != b.score) {
+            return Integer.compare(b.score, score);
+        }
+        int la = name != null ? name.length() : 0;
+        int lb = b.name != null ? b.name.length() : 0;
+        if (la != lb) {
+            return Integer.compare(la, lb);
+        }
+        return Integer.compare(id, b.id);
+    }
+
+    // Checked before allocating a Hit that would be dropped straight away
+    private static boolean beats(int score, String name, int id, Hit worst) {
+        return compare(score, name, id, worst) < 0;
+    }
+
+    // ========== Tokenizing ==========
+
+    private static Doc newDoc(String name, String description) {
+        return new Doc(name, tokenize(name, Integer.MAX_VALUE), tokenize(description, MAX_DESCRIPTION_TERMS));
+    }
+
+    /**
+     * Distinct lower-case letter/digit runs of text, sorted; at most max of them (first seen wins).
+     */
+    static String[] tokenize(String text, int max) {
+        if (text == null || text.isEmpty()) {
+            return NO_TERMS;
+        }
+        TreeSet<String> terms = new TreeSet<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length() && terms.size() < max; i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                terms.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return terms.toArray(NO_TERMS);
+    }
+}
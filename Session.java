@@ -0,0 +1,62 @@
+package shopingcartapp;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Scanner;
+
+/**
+ * Session.java
+ *
+ * Per-connection state that used to live in static fields of ShopingCartApp:
+ * who is logged in, whether they are an admin, their cart, and where input/output go.
+ * The console uses one Session over System.in/System.out; server mode creates one per client socket.
+ */
+final class Session {
+    final Scanner in;
+    final PrintStream out;
+    final PrintStream err;
+    final boolean remote;
+    final Cart cart = new Cart();
+
+    int userId = -1;
+    boolean admin = false;
+    String username = null;
+    // Time of this session's last committed write, for ReadRouter's read-your-writes (0 = none)
+    long lastWriteMillis = 0;
+    private boolean open = true;
+
+    Session(InputStream in, PrintStream out, PrintStream err, boolean remote) {
+        this.in = new Scanner(in);
+        this.out = out;
+        this.err = err;
+        this.remote = remote;
+    }
+
+    static Session console() {
+        return new Session(System.in, System.out, System.err, false);
+    }
+
+    boolean isUser() {
+        return userId != -1;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    void markWrite() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    void logout() {
+        userId = -1;
+        admin = false;
+        username = null;
+        cart.clear();
+    }
+
+    void close() {
+        open = false;
+        out.flush();
+    }
+}
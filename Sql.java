@@ -0,0 +1,200 @@
+package shopingcartapp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sql.java
+ *
+ * Central registry of every statement the app runs. Each constant is one fixed SQL string,
+ * so ConnectionPool can prepare it once per physical connection and reuse it (and the MySQL
+ * server-side prepared statement behind it) on every call.
+ *
+ * Statements that used to be built on the fly are mapped onto a finite set:
+ * - ITEM_UPDATE covers every name/price/stock combination of updateItem (COALESCE keeps
+ *   columns bound to NULL unchanged)
+ * - lockItems(n) rounds the IN-list of a cart checkout up to one of LOCK_ITEMS_BUCKETS sizes
+ */
+enum Sql {
+    // ----- users -----
+    LOGIN_USER("SELECT id FROM users WHERE username = ? AND password = ?"),
+    LOGIN_ADMIN("SELECT id, role FROM users WHERE username = ? AND password = ?"),
+    USERS_LIST("SELECT id, username, email, role FROM users"),
+    USERS_LIST_NO_ROLE("SELECT id, username, email, NULL AS role FROM users"),
+    USERS_LIST_NO_EMAIL("SELECT id, username, NULL AS email, role FROM users"),
+    USERS_LIST_BASIC("SELECT id, username, NULL AS email, NULL AS role FROM users"),
+
+    // ----- items -----
+    CATALOG_LOAD("SELECT id, name, price, stock FROM items ORDER BY id"),
+    CATALOG_LOAD_LIVE("SELECT id, name, price, stock FROM items WHERE deleted_at IS NULL ORDER BY id"),
+    SEARCH_LOAD("SELECT id, name, description FROM items ORDER BY id"),
+    SEARCH_LOAD_LIVE("SELECT id, name, description FROM items WHERE deleted_at IS NULL ORDER BY id"),
+    ITEM_LOOKUP("SELECT name, price, stock FROM items WHERE id = ?"),
+    ITEM_EXISTS("SELECT 1 FROM items WHERE id = ?"),
+    ITEM_STOCK("SELECT stock FROM items WHERE id = ?"),
+    ITEM_SKU("SELECT sku FROM items WHERE id = ?"),
+    ITEM_STOCK_ALL("SELECT id, stock FROM items"),
+    ITEM_STOCK_FOR_UPDATE("SELECT stock FROM items WHERE id = ? FOR UPDATE"),
+    ITEM_INSERT("INSERT INTO items (name, price, stock) VALUES (?, ?, ?)"),
+    ITEM_UPDATE("UPDATE items SET name = COALESCE(?, name), price = COALESCE(?, price), "
+            + "stock = COALESCE(?, stock) WHERE id = ?"),
+    ITEM_DELETE("DELETE FROM items WHERE id = ?"),
+    ITEM_UPSERT("INSERT INTO items (sku, name, description, price, stock) VALUES (?, ?, ?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE name = VALUES(name), description = VALUES(description), "
+            + "price = VALUES(price), stock = VALUES(stock)"),
+    STOCK_DECREMENT("UPDATE items SET stock = stock - ? WHERE id = ?"),
+    STOCK_DECREMENT_GUARDED("UPDATE items SET stock = stock - ? WHERE id = ? AND stock >= ?"),
+    ITEM_SET_STOCK("UPDATE items SET stock = ? WHERE id = ?"),
+    ITEM_SOFT_DELETE("UPDATE items SET deleted_at = CURRENT_TIMESTAMP, stock = 0 "
+            + "WHERE id = ? AND deleted_at IS NULL"),
+    ITEMS_DELETED("SELECT id FROM items WHERE deleted_at IS NOT NULL"),
+    ITEMS_DELETED_SKUS("SELECT id, sku FROM items WHERE deleted_at IS NOT NULL AND sku IS NOT NULL"),
+
+    // ----- background purge of soft-deleted items (see ItemPurger) -----
+    PURGE_COUNT("SELECT COUNT(*) FROM orders WHERE item_id = ?"),
+    PURGE_CHUNK_END("SELECT MAX(id) FROM (SELECT id FROM orders WHERE item_id = ? ORDER BY id LIMIT ?) chunk"),
+    PURGE_ARCHIVE("INSERT INTO orders_archive (id, user_id, item_id, quantity, order_date, client_order_id) "
+            + "SELECT id, user_id, item_id, quantity, order_date, client_order_id FROM orders "
+            + "WHERE item_id = ? AND id <= ?"),
+    PURGE_DELETE("DELETE FROM orders WHERE item_id = ? AND id <= ?"),
+    PURGE_ITEM("DELETE FROM items WHERE id = ? AND deleted_at IS NOT NULL"),
+
+    // ----- hot-item stock shards (see StockShards) -----
+    SHARDS_ITEMS("SELECT item_id, COUNT(*) AS shards FROM item_stock_shards GROUP BY item_id"),
+    SHARDS_TOTALS("SELECT item_id, SUM(stock) AS stock FROM item_stock_shards GROUP BY item_id"),
+    SHARDS_TOTAL("SELECT COALESCE(SUM(stock), 0) FROM item_stock_shards WHERE item_id = ?"),
+    SHARDS_FOR_ITEM("SELECT shard, stock FROM item_stock_shards WHERE item_id = ? ORDER BY shard"),
+    SHARDS_LOCK("SELECT shard, stock FROM item_stock_shards WHERE item_id = ? ORDER BY shard FOR UPDATE"),
+    SHARD_TAKE("UPDATE item_stock_shards SET stock = stock - ? WHERE item_id = ? AND shard = ? AND stock >= ?"),
+    SHARD_INSERT("INSERT INTO item_stock_shards (item_id, shard, stock) VALUES (?, ?, ?)"),
+    SHARDS_DELETE("DELETE FROM item_stock_shards WHERE item_id = ?"),
+
+    // ----- orders -----
+    ORDER_INSERT("INSERT INTO orders (user_id, item_id, quantity) VALUES (?, ?, ?)"),
+    ORDER_INSERT_JOURNALED("INSERT INTO orders (client_order_id, user_id, item_id, quantity, order_date) "
+            + "VALUES (?, ?, ?, ?, ?)"),
+    ORDERS_ALL_PAGE("SELECT orders.id, users.username, items.name, orders.quantity, orders.order_date "
+            + "FROM orders "
+            + "JOIN users ON orders.user_id = users.id "
+            + "JOIN items ON orders.item_id = items.id "
+            + "WHERE orders.order_date >= ? AND orders.order_date < ? "
+            + "AND (orders.order_date < ? OR (orders.order_date = ? AND orders.id < ?)) "
+            + "ORDER BY orders.order_date DESC, orders.id DESC LIMIT ?"),
+    ORDERS_USER_PAGE("SELECT orders.id, items.name, items.price, orders.quantity, orders.order_date "
+            + "FROM orders JOIN items ON orders.item_id = items.id "
+            + "WHERE orders.user_id = ? AND orders.order_date >= ? AND orders.order_date < ? "
+            + "AND (orders.order_date < ? OR (orders.order_date = ? AND orders.id < ?)) "
+            + "ORDER BY orders.order_date DESC, orders.id DESC LIMIT ?"),
+    ORDERS_FIRST_DATE("SELECT MIN(order_date) FROM orders"),
+
+    // ----- exports (streamed, see DataExport) -----
+    EXPORT_ORDERS("SELECT orders.id AS order_id, orders.order_date, orders.user_id, users.username, "
+            + "orders.item_id, items.name AS item_name, orders.quantity "
+            + "FROM orders "
+            + "JOIN users ON orders.user_id = users.id "
+            + "JOIN items ON orders.item_id = items.id "
+            + "WHERE orders.order_date >= ? AND orders.order_date < ? "
+            + "ORDER BY orders.id"),
+    EXPORT_ITEMS("SELECT id, sku, name, description, price, stock FROM items ORDER BY id"),
+    EXPORT_ITEMS_LIVE("SELECT id, sku, name, description, price, stock FROM items WHERE deleted_at IS NULL ORDER BY id"),
+    // Hot items keep their stock in item_stock_shards and 0 in items.stock (see StockShards)
+    EXPORT_ITEMS_SHARDED("SELECT id, sku, name, description, price, stock + COALESCE(("
+            + "SELECT SUM(item_stock_shards.stock) FROM item_stock_shards "
+            + "WHERE item_stock_shards.item_id = items.id), 0) AS stock "
+            + "FROM items ORDER BY id"),
+    EXPORT_ITEMS_SHARDED_LIVE("SELECT id, sku, name, description, price, stock + COALESCE(("
+            + "SELECT SUM(item_stock_shards.stock) FROM item_stock_shards "
+            + "WHERE item_stock_shards.item_id = items.id), 0) AS stock "
+            + "FROM items WHERE deleted_at IS NULL ORDER BY id"),
+    EXPORT_ITEMS_NO_SKU("SELECT id, NULL AS sku, name, description, price, stock FROM items ORDER BY id"),
+
+    // ----- sales rollups -----
+    SALES_ADD("INSERT INTO sales_daily (item_id, sale_date, units, revenue) "
+            + "SELECT id, CAST(COALESCE(?, CURRENT_TIMESTAMP) AS DATE), ?, price * ? FROM items WHERE id = ? "
+            + "ON DUPLICATE KEY UPDATE units = units + VALUES(units), revenue = revenue + VALUES(revenue)"),
+    SALES_DELETE_DAY("DELETE FROM sales_daily WHERE sale_date = ?"),
+    SALES_BACKFILL_DAY("INSERT INTO sales_daily (item_id, sale_date, units, revenue) "
+            + "SELECT orders.item_id, ?, SUM(orders.quantity), SUM(orders.quantity) * items.price "
+            + "FROM orders JOIN items ON orders.item_id = items.id "
+            + "WHERE orders.order_date >= ? AND orders.order_date < ? "
+            + "GROUP BY orders.item_id, items.price"),
+    SALES_BY_ITEM("SELECT sales_daily.item_id, items.name, SUM(sales_daily.units) AS units, "
+            + "SUM(sales_daily.revenue) AS revenue "
+            + "FROM sales_daily LEFT JOIN items ON sales_daily.item_id = items.id "
+            + "WHERE sales_daily.sale_date >= ? AND sales_daily.sale_date < ? "
+            + "GROUP BY sales_daily.item_id, items.name ORDER BY sales_daily.item_id"),
+    SALES_TOP("SELECT sales_daily.item_id, items.name, SUM(sales_daily.units) AS units, "
+            + "SUM(sales_daily.revenue) AS revenue "
+            + "FROM sales_daily LEFT JOIN items ON sales_daily.item_id = items.id "
+            + "WHERE sales_daily.sale_date >= ? AND sales_daily.sale_date < ? "
+            + "GROUP BY sales_daily.item_id, items.name ORDER BY revenue DESC LIMIT ?"),
+    SALES_BY_DAY("SELECT sale_date, SUM(units) AS units, SUM(revenue) AS revenue FROM sales_daily "
+            + "WHERE sale_date >= ? AND sale_date < ? GROUP BY sale_date ORDER BY sale_date");
+
+    final String text;
+
+    Sql(String text) {
+        this.text = text;
+    }
+
+    // ----- bucketed IN-lists -----
+    static final int[] LOCK_ITEMS_BUCKETS = {1, 2, 4, 8, 16, 32, 64};
+    static final int LOCK_ITEMS_MAX = LOCK_ITEMS_BUCKETS[LOCK_ITEMS_BUCKETS.length - 1];
+    private static final String[] LOCK_ITEMS = new String[LOCK_ITEMS_BUCKETS.length];
+
+    static {
+        for (int b = 0; b < LOCK_ITEMS_BUCKETS.length; b++) {
+            StringBuilder sb = new StringBuilder("SELECT id, stock FROM items WHERE id IN (");
+            for (int i = 0; i < LOCK_ITEMS_BUCKETS[b]; i++) {
+                sb.append(i == 0 ? "?" : ", ?");
+            }
+            sb.append(") ORDER BY id FOR UPDATE");
+            LOCK_ITEMS[b] = sb.toString();
+        }
+    }
+
+    /**
+     * Smallest bucket that holds n ids (n &lt;= LOCK_ITEMS_MAX).
+     */
+    static int lockItemsBucket(int n) {
+        for (int bucket : LOCK_ITEMS_BUCKETS) {
+            if (n <= bucket) {
+                return bucket;
+            }
+        }
+        throw new IllegalArgumentException("IN-list too long: " + n);
+    }
+
+    /**
+     * SELECT ... WHERE id IN (?, ...) ORDER BY id FOR UPDATE with exactly bucket placeholders;
+     * unused slots are padded by repeating the last id.
+     */
+    static String lockItems(int bucket) {
+        for (int b = 0; b < LOCK_ITEMS_BUCKETS.length; b++) {
+            if (LOCK_ITEMS_BUCKETS[b] == bucket) {
+                return LOCK_ITEMS[b];
+            }
+        }
+        throw new IllegalArgumentException("Not a lock bucket: " + bucket);
+    }
+
+    // ----- reverse lookup for metrics -----
+    private static final Map<String, String> NAMES = new HashMap<>();
+
+    static {
+        for (Sql sql : values()) {
+            NAMES.put(sql.text, sql.name());
+        }
+        for (int b = 0; b < LOCK_ITEMS_BUCKETS.length; b++) {
+            NAMES.put(LOCK_ITEMS[b], "LOCK_ITEMS_" + LOCK_ITEMS_BUCKETS[b]);
+        }
+    }
+
+    /**
+     * Registry name of a statement's SQL text ("ADHOC" for SQL that is not registered here),
+     * used to label per-statement metrics without unbounded cardinality.
+     */
+    static String nameOf(String text) {
+        return NAMES.getOrDefault(text, "ADHOC");
+    }
+}
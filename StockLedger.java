@@ -0,0 +1,137 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * StockLedger.java
+ *
+ * In-process reservation ledger in front of items.stock.
+ * Each item has an atomic counter loaded from the database; checkouts reserve against it
+ * with a CAS loop before touching MySQL, so sold-out items and oversells are rejected
+ * without a round trip.
+ *
+ * The database stays authoritative:
+ * - a reservation is released again if the order transaction rolls back or is rejected
+ * - if MySQL disagrees with the ledger (e.g. another process sold the stock), the entry is
+ *   invalidated and reloaded on the next reservation
+ * - admin updates and deletes invalidate the entry for that item, a bulk import all of them
+ * - quantities accepted into the order journal but not yet drained into items.stock are
+ *   subtracted whenever an entry is (re)loaded (see setPending)
+ * - hot items count the stock in their shard rows too (see setShards)
+ */
+final class StockLedger {
+
+    enum Reservation { RESERVED, SOLD_OUT, NOT_FOUND }
+
+    private final DataSource ds;
+    private final ConcurrentHashMap<Integer, AtomicInteger> counters = new ConcurrentHashMap<>();
+    private volatile IntUnaryOperator pending = itemId -> 0;
+    private volatile StockShards shards;
+
+    StockLedger(DataSource ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Source of per-item quantities already sold but not yet reflected in items.stock.
+     */
+    void setPending(IntUnaryOperator pending) {
+        this.pending = pending;
+    }
+
+    /**
+     * Stock shards of hot items, added to items.stock on every (re)load.
+     */
+    void setShards(StockShards shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Loads every item's stock in one pass (startup warm-up).
+     */
+    void loadAll() throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            Map<Integer, Integer> sharded = shards != null ? shards.totals(conn) : Collections.emptyMap();
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_STOCK_ALL.text);
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt("id");
+                    int stock = rs.getInt("stock") + sharded.getOrDefault(id, 0);
+                    counters.put(id, new AtomicInteger(stock - pending.applyAsInt(id)));
+                }
+            }
+        }
+    }
+
+    Reservation tryReserve(int itemId, int quantity) throws SQLException {
+        AtomicInteger counter = counters.get(itemId);
+        if (counter == null) {
+            counter = load(itemId);
+            if (counter == null) {
+                return Reservation.NOT_FOUND;
+            }
+        }
+        while (true) {
+            int available = counter.get();
+            if (available < quantity) {
+                return Reservation.SOLD_OUT;
+            }
+            if (counter.compareAndSet(available, available - quantity)) {
+                return Reservation.RESERVED;
+            }
+        }
+    }
+
+    /**
+     * Gives back a reservation whose order did not commit.
+     */
+    void release(int itemId, int quantity) {
+        AtomicInteger counter = counters.get(itemId);
+        if (counter != null) {
+            counter.addAndGet(quantity);
+        }
+    }
+
+    /**
+     * Drops the entry so the next reservation reloads it from items.stock.
+     */
+    void invalidate(int itemId) {
+        counters.remove(itemId);
+    }
+
+    /**
+     * Drops every entry (after a bulk catalog import).
+     */
+    void invalidateAll() {
+        counters.clear();
+    }
+
+    int size() {
+        return counters.size();
+    }
+
+    private AtomicInteger load(int itemId) throws SQLException {
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_STOCK.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                int stock = rs.getInt("stock") + (shards != null ? shards.total(conn, itemId) : 0);
+                AtomicInteger loaded = new AtomicInteger(stock - pending.applyAsInt(itemId));
+                AtomicInteger existing = counters.putIfAbsent(itemId, loaded);
+                return existing != null ? existing : loaded;
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * StockShards.java
+ *
+ * Opt-in "hot item" stock. Every buyer of one item otherwise serializes on the exclusive lock of
+ * its single items row; a hot item instead keeps its stock in N rows of
+ * item_stock_shards(item_id, shard, stock), so concurrent buyers mostly lock different rows.
+ *
+ * - An item's stock is always items.stock + SUM(shard stock). Sharding moves the current
+ *   stock into the shards and leaves items.stock at 0, so the items row is no longer written
+ *   by checkouts (the order INSERT only takes a shared foreign-key lock on it).
+ * - take() starts at a random shard with a guarded decrement and tries the neighbouring
+ *   shards when one runs short; only if no single shard can cover the quantity does it lock
+ *   all shards of the item and take across them, so a sharded item is never reported out of
+ *   stock while its total still covers the order.
+ * - reshard() (admin) sets the shard count, optionally with a new total, and spreads the total
+ *   evenly; with 1 shard or fewer the stock goes back into items.stock and the item is no
+ *   longer hot. Rebalancing is reshard() with the same count.
+ * - Reads (catalog, ledger, item lookups) add total()/totals() to items.stock.
+ *
+ * Which items are hot is read once by load() (and again on Reload Schema Capabilities) and
+ * kept in memory, so the checkout path does not query for it. Disabled until the
+ * item_stock_shards table exists (SchemaCapabilities).
+ */
+final class StockShards {
+
+    private final DataSource ds;
+    private final SchemaCapabilities schema;
+    // item_id -> shard count
+    private final ConcurrentHashMap<Integer, Integer> hot = new ConcurrentHashMap<>();
+
+    StockShards(DataSource ds, SchemaCapabilities schema) {
+        this.ds = ds;
+        this.schema = schema;
+    }
+
+    boolean isEnabled() {
+        return schema.hasTable("item_stock_shards");
+    }
+
+    /**
+     * Re-reads which items are sharded and into how many shards.
+     */
+    void load() throws SQLException {
+        if (!isEnabled()) {
+            hot.clear();
+            return;
+        }
+        Map<Integer, Integer> loaded = new HashMap<>();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_ITEMS.text);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                loaded.put(rs.getInt("item_id"), rs.getInt("shards"));
+            }
+        }
+        hot.keySet().retainAll(loaded.keySet());
+        hot.putAll(loaded);
+    }
+
+    boolean isHot(int itemId) {
+        return !hot.isEmpty() && hot.containsKey(itemId);
+    }
+
+    int shardCount(int itemId) {
+        return hot.getOrDefault(itemId, 0);
+    }
+
+    Map<Integer, Integer> hotItems() {
+        return Collections.unmodifiableMap(new HashMap<>(hot));
+    }
+
+    // ========== Checkout (inside the caller's transaction) ==========
+
+    /**
+     * Takes quantity from the item's shards.
+     *
+     * @return false if all shards together hold less than quantity
+     */
+    boolean take(Connection conn, int itemId, int quantity) throws SQLException {
+        int n = shardCount(itemId);
+        if (n > 0) {
+            int first = ThreadLocalRandom.current().nextInt(n);
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARD_TAKE.text)) {
+                for (int k = 0; k < n; k++) {
+                    stmt.setInt(1, quantity);
+                    stmt.setInt(2, itemId);
+                    stmt.setInt(3, (first + k) % n);
+                    stmt.setInt(4, quantity);
+                    if (stmt.executeUpdate() == 1) {
+                        return true;
+                    }
+                }
+            }
+        }
+        Metrics.counter("cart_shard_spills_total").increment();
+        return takeAcross(conn, itemId, quantity);
+    }
+
+    /**
+     * Journal drain: the ledger already accepted the order, so if the shards fall short the
+     * rest is taken from items.stock unguarded (the total stays right; a rebalance folds it back).
+     */
+    void takeAccepted(Connection conn, int itemId, int quantity) throws SQLException {
+        if (take(conn, itemId, quantity)) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.STOCK_DECREMENT.text)) {
+            stmt.setInt(1, quantity);
+            stmt.setInt(2, itemId);
+            stmt.executeUpdate();
+        }
+    }
+
+    // Locks every shard of the item (ascending) and takes from each in turn
+    private boolean takeAcross(Connection conn, int itemId, int quantity) throws SQLException {
+        List<int[]> shards = lockShards(conn, itemId);
+        long total = 0;
+        for (int[] s : shards) {
+            total += Math.max(s[1], 0);
+        }
+        if (total < quantity) {
+            return false;
+        }
+        int remaining = quantity;
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARD_TAKE.text)) {
+            for (int[] s : shards) {
+                int t = Math.min(Math.max(s[1], 0), remaining);
+                if (t == 0) {
+                    continue;
+                }
+                stmt.setInt(1, t);
+                stmt.setInt(2, itemId);
+                stmt.setInt(3, s[0]);
+                stmt.setInt(4, t);
+                stmt.addBatch();
+                remaining -= t;
+                if (remaining == 0) {
+                    break;
+                }
+            }
+            stmt.executeBatch();
+        }
+        return true;
+    }
+
+    private static List<int[]> lockShards(Connection conn, int itemId) throws SQLException {
+        List<int[]> shards = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_LOCK.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    shards.add(new int[]{rs.getInt("shard"), rs.getInt("stock")});
+                }
+            }
+        }
+        return shards;
+    }
+
+    // ========== Reads ==========
+
+    /**
+     * Stock held in the item's shards (0 for items that are not hot, without a query).
+     */
+    int total(Connection conn, int itemId) throws SQLException {
+        if (!isHot(itemId)) {
+            return 0;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_TOTAL.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Shard stock of every hot item (empty, without a query, if there are none).
+     */
+    Map<Integer, Integer> totals(Connection conn) throws SQLException {
+        Map<Integer, Integer> totals = new HashMap<>();
+        if (hot.isEmpty()) {
+            return totals;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_TOTALS.text);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                totals.put(rs.getInt("item_id"), rs.getInt("stock"));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Current stock per shard, for the admin view.
+     */
+    List<int[]> shards(Connection conn, int itemId) throws SQLException {
+        List<int[]> shards = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_FOR_ITEM.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    shards.add(new int[]{rs.getInt("shard"), rs.getInt("stock")});
+                }
+            }
+        }
+        return shards;
+    }
+
+    // ========== Admin ==========
+
+    /**
+     * Spreads the item's stock evenly over count shards in one transaction (the items row is
+     * locked first, then the shards, like a checkout). count <= 1 un-shards the item.
+     *
+     * @param newTotal new total stock, or -1 to keep the current one
+     * @return the item's total stock afterwards, or -1 if the item does not exist
+     */
+    int reshard(int itemId, int count, int newTotal) throws SQLException {
+        if (!isEnabled()) {
+            throw new SQLException("item_stock_shards does not exist; create it first (see README)");
+        }
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = ds.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    int total = reshard(conn, itemId, count, newTotal);
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                    if (total >= 0) {
+                        if (count > 1) {
+                            hot.put(itemId, count);
+                        } else {
+                            hot.remove(itemId);
+                        }
+                    }
+                    return total;
+                } catch (SQLException e) {
+                    OrderService.rollbackQuietly(conn);
+                    if (!OrderService.isRetryable(e) || attempt >= OrderService.MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+            OrderService.backoff(attempt);
+        }
+    }
+
+    /**
+     * reshard() inside the caller's transaction, without updating the hot set (for callers that
+     * keep the shard count, e.g. the catalog import).
+     */
+    static int reshard(Connection conn, int itemId, int count, int newTotal) throws SQLException {
+        int base;
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_STOCK_FOR_UPDATE.text)) {
+            stmt.setInt(1, itemId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return -1;
+                }
+                base = rs.getInt("stock");
+            }
+        }
+        long total = base;
+        for (int[] s : lockShards(conn, itemId)) {
+            total += s[1];
+        }
+        if (newTotal >= 0) {
+            total = newTotal;
+        }
+        total = Math.max(total, 0);
+
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARDS_DELETE.text)) {
+            stmt.setInt(1, itemId);
+            stmt.executeUpdate();
+        }
+        if (count > 1) {
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SHARD_INSERT.text)) {
+                for (int shard = 0; shard < count; shard++) {
+                    stmt.setInt(1, itemId);
+                    stmt.setInt(2, shard);
+                    // The first (total % count) shards get one extra unit
+                    stmt.setInt(3, (int) (total / count + (shard < total % count ? 1 : 0)));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_SET_STOCK.text)) {
+            stmt.setInt(1, count > 1 ? 0 : (int) total);
+            stmt.setInt(2, itemId);
+            stmt.executeUpdate();
+        }
+        return (int) total;
+    }
+
+    /**
+     * Drops a deleted item from the hot set (its shard rows go with it by ON DELETE CASCADE).
+     */
+    void forget(int itemId) {
+        hot.remove(itemId);
+    }
+}
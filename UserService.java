@@ -0,0 +1,104 @@
+package shopingcartapp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * UserService.java
+ *
+ * Credential checks behind loginUser/loginAdmin, kept free of console I/O so they can be
+ * called from sessions, benchmarks and load tests alike.
+ *
+ * Login latency and outcomes are reported to Metrics (cart_login_seconds, cart_logins_total).
+ * An admin check that only the fallback credentials pass is counted as result="fallback".
+ */
+final class UserService {
+
+    enum AdminCheck { ADMIN, NOT_ADMIN, UNKNOWN }
+
+    private final DataSource ds;
+    private final SchemaCapabilities schema;
+    private volatile String fallbackAdminUser;
+    private volatile String fallbackAdminPassword;
+
+    UserService(DataSource ds, SchemaCapabilities schema) {
+        this.ds = ds;
+        this.schema = schema;
+    }
+
+    /**
+     * Hardcoded admin credentials accepted when the DB does not confirm an admin (null for none).
+     */
+    void setFallbackAdmin(String username, String password) {
+        this.fallbackAdminUser = username;
+        this.fallbackAdminPassword = password;
+    }
+
+    boolean isFallbackAdmin(String username, String password) {
+        String user = fallbackAdminUser;
+        String pass = fallbackAdminPassword;
+        return user != null && pass != null && user.equals(username) && pass.equals(password);
+    }
+
+    /**
+     * @return the user's id, or -1 if the username/password pair does not match
+     */
+    int authenticate(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        String outcome = "error";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.LOGIN_USER.text)) {
+            stmt.setString(1, username);
+            stmt.setString(2, password);
+            try (ResultSet rs = stmt.executeQuery()) {
+                int id = rs.next() ? rs.getInt("id") : -1;
+                outcome = id == -1 ? "failure" : "success";
+                return id;
+            }
+        } finally {
+            Metrics.timer("cart_login_seconds", "kind", "user").recordSince(start);
+            Metrics.counter("cart_logins_total", "kind", "user", "result", outcome).increment();
+        }
+    }
+
+    /**
+     * ADMIN only if users.role exists and says 'admin'; NOT_ADMIN if the credentials match a user
+     * we cannot (or must not) elevate; UNKNOWN if they match nobody.
+     */
+    AdminCheck checkAdmin(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            AdminCheck check = queryAdmin(username, password);
+            outcome = check == AdminCheck.ADMIN ? "success" : "failure";
+            return check;
+        } finally {
+            // The caller lets these in anyway, DB error or not
+            if (!"success".equals(outcome) && isFallbackAdmin(username, password)) {
+                outcome = "fallback";
+            }
+            Metrics.timer("cart_login_seconds", "kind", "admin").recordSince(start);
+            Metrics.counter("cart_logins_total", "kind", "admin", "result", outcome).increment();
+        }
+    }
+
+    private AdminCheck queryAdmin(String username, String password) throws SQLException {
+        boolean roleExists = schema.hasRole();
+        try (Connection conn = ds.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(roleExists ? Sql.LOGIN_ADMIN.text : Sql.LOGIN_USER.text)) {
+            stmt.setString(1, username);
+            stmt.setString(2, password);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return AdminCheck.UNKNOWN;
+                }
+                // MySQL's default collation made the old role = 'admin' check case-insensitive
+                return roleExists && "admin".equalsIgnoreCase(rs.getString("role"))
+                        ? AdminCheck.ADMIN : AdminCheck.NOT_ADMIN;
+            }
+        }
+    }
+}
@@ -1,20 +1,44 @@
 package shopingcartapp;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.util.Scanner;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * ShopingCartApp.java
  *
  * Console-based shopping cart application with user and admin sides.
- * - User: view items, place order, view cart, logout
- * - Admin: view/add/update/delete items, view all orders, view users, logout
+ * Runs either as a single console session or, with --server [port], as a line-protocol
+ * server where each client connection gets its own Session (see CartServer), or, with
+ * --batch [file], runs a command script from the file or stdin without menus (see BatchRunner).
+ * - User: view/search items, place order, add to/view/checkout cart, view my orders, logout
+ * - Admin: view/add/update/delete items, bulk CSV import, CSV/JSONL export, hot-item stock shards, item purge progress, view all orders, view users, sales reports, logout
  *
  * Features:
- * - JDBC connection (MySQL)
+ * - Versioned schema migrations at startup, with an EXPLAIN check of the hot queries' indexes (SchemaMigrations)
+ * - Pooled JDBC connections (MySQL) via ConnectionPool: bounded size, idle eviction, validation on borrow
  * - Robust admin login: uses DB role='admin' if users.role exists; otherwise falls back to hardcoded admin creds
- * - Transaction support for placeOrder (atomic insert order + update stock)
- * - Prepared statements and basic input sanitation
+ *   (optional columns are detected once at startup by SchemaCapabilities)
+ * - Transaction support for placeOrder (atomic insert order + update stock), with an optimistic
+ *   guarded-decrement checkout and automatic deadlock/lock-wait retry (OrderService)
+ * - Prepared statements (named in Sql, cached per connection by the pool) and basic input sanitation
+ * - Per-operation timers and counters (Metrics) over JMX and in a periodic Prometheus text dump
+ * - Sales reports (per item, per day, top sellers) from incrementally maintained rollups (SalesRollup)
+ * - Optional read replica (-Dcart.replica.url) for browse/report queries, with read-your-writes (ReadRouter)
+ * - Soft item delete; the item's orders are archived and purged in the background in small chunks (ItemPurger)
+ * - Opt-in sharded stock rows for hot items, so their buyers do not queue on one row lock (StockShards)
+ * - Catalog search over item names and descriptions from an in-memory inverted index (SearchIndex)
  *
  * NOTE:
  * - Ensure MySQL connector (mysql-connector-java) is on your classpath.
@@ -23,19 +47,78 @@ import java.util.Scanner;
  */
 public class ShopingCartApp {
     // === CONFIGURATION ===
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/shopping_cart_db?useSSL=false&serverTimezone=UTC";
-    private static final String DB_USER = "root";          // change as needed
-    private static final String DB_PASSWORD = "Ayush@1234"; // change as needed
+    static final String DB_URL = "jdbc:mysql://localhost:3306/shopping_cart_db?useSSL=false&serverTimezone=UTC&useServerPrepStmts=true&rewriteBatchedStatements=true";
+    static final String DB_USER = "root";          // change as needed
+    static final String DB_PASSWORD = "Ayush@1234"; // change as needed
+
+    // Connection pool sizing (override with -Dcart.pool.maxSize=... etc.)
+    private static final int POOL_MAX_SIZE = Integer.getInteger("cart.pool.maxSize", 10);
+    private static final int POOL_MIN_IDLE = Integer.getInteger("cart.pool.minIdle", 2);
+    private static final long POOL_MAX_IDLE_MILLIS = Long.getLong("cart.pool.maxIdleMillis", 300_000L);
+    private static final long POOL_BORROW_TIMEOUT_MILLIS = Long.getLong("cart.pool.borrowTimeoutMillis", 5_000L);
+    private static final long POOL_VALIDATE_AFTER_MILLIS = Long.getLong("cart.pool.validateAfterMillis", 1_000L);
+    private static final int POOL_STATEMENT_CACHE_SIZE = Integer.getInteger("cart.pool.statementCacheSize", 64);
 
     // Fallback admin credentials (you provided these)
     private static final String FALLBACK_ADMIN_USER = "admin";
     private static final String FALLBACK_ADMIN_PASSWORD = "admin123";
 
-    private static Connection conn;
-    private static Scanner scanner = new Scanner(System.in);
-    private static int loggedInUserId = -1;
-    private static boolean isAdmin = false;
-    private static String loggedInUsername = null;
+    private static final int DEFAULT_SERVER_PORT = 5555;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int DEFAULT_REPORT_DAYS = 30;
+    private static final int SEARCH_RESULTS = 20;
+
+    // Bulk catalog import: rows per JDBC batch and per committed (resumable) chunk
+    private static final int IMPORT_BATCH_SIZE = Integer.getInteger("cart.import.batchSize", 1_000);
+    private static final int IMPORT_CHUNK_ROWS = Integer.getInteger("cart.import.chunkRows", 10_000);
+
+    // Schema migrations at startup (-Dcart.migrate=false only reports pending ones) and the hot-query
+    // plan check afterwards: warn (print failures), fail (refuse to start) or off
+    private static final boolean MIGRATE = Boolean.parseBoolean(System.getProperty("cart.migrate", "true"));
+    private static final String PLAN_CHECK = System.getProperty("cart.planCheck", "warn");
+
+    // Background purge of soft-deleted items: orders per archive/delete chunk, average rate cap,
+    // and how often the worker looks for work when nothing woke it
+    private static final int PURGE_CHUNK_ROWS = Integer.getInteger("cart.purge.chunkRows", 500);
+    private static final int PURGE_ROWS_PER_SECOND = Integer.getInteger("cart.purge.rowsPerSecond", 5_000);
+    private static final long PURGE_IDLE_MILLIS = Long.getLong("cart.purge.idleMillis", 10_000L);
+
+    // Headless --batch mode: commands per transaction (consecutive orders or item writes)
+    private static final int BATCH_SIZE = Integer.getInteger("cart.batch.size", 1_000);
+
+    // Checkout strategy: OPTIMISTIC (guarded decrement), LOCKING (SELECT ... FOR UPDATE)
+    // or GROUP_COMMIT (concurrent orders batched per item into one transaction)
+    private static final OrderService.Mode CHECKOUT_MODE =
+            OrderService.Mode.valueOf(System.getProperty("cart.checkout", "optimistic").toUpperCase());
+    // In-memory stock reservation ledger in front of items.stock (-Dcart.ledger=false to disable;
+    // JOURNAL checkout needs it and keeps it on)
+    private static final boolean LEDGER_ENABLED = Boolean.parseBoolean(System.getProperty("cart.ledger", "true"));
+    // Catalog cache bounds for viewItems
+    private static final long CATALOG_TTL_MILLIS = Long.getLong("cart.catalog.ttlMillis", 30_000L);
+    private static final int CATALOG_MAX_ENTRIES = Integer.getInteger("cart.catalog.maxEntries", 100_000);
+
+    // Metrics: exposed over JMX, and dumped in Prometheus text format every dumpMillis (0 = no file)
+    private static final String METRICS_FILE = System.getProperty("cart.metrics.file", "cart-metrics.prom");
+    private static final long METRICS_DUMP_MILLIS = Long.getLong("cart.metrics.dumpMillis", 15_000L);
+
+    // Optional read replica for browse/report queries (-Dcart.replica.url=jdbc:mysql://...; unset = primary only)
+    private static final String REPLICA_URL = System.getProperty("cart.replica.url");
+    private static final String REPLICA_USER = System.getProperty("cart.replica.user", DB_USER);
+    private static final String REPLICA_PASSWORD = System.getProperty("cart.replica.password", DB_PASSWORD);
+    private static final long READ_YOUR_WRITES_MILLIS = Long.getLong("cart.replica.readYourWritesMillis", 5_000L);
+
+    private static ConnectionPool pool;
+    private static ConnectionPool replicaPool;
+    private static ReadRouter router;
+    private static OrderService orderService;
+    private static StockLedger ledger;
+    private static SchemaCapabilities schema;
+    private static UserService userService;
+    private static CatalogCache catalog;
+    private static SalesRollup sales;
+    private static SearchIndex search;
+    private static StockShards shards;
+    private static ItemPurger purger;
 
     public static void main(String[] args) {
         try {
@@ -46,85 +129,152 @@ public class ShopingCartApp {
                 System.err.println("JDBC Driver not found in classpath (com.mysql.cj.jdbc.Driver). Make sure MySQL connector is added.");
             }
 
-            conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            System.out.println("Connected to database!");
+            pool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD,
+                    POOL_MAX_SIZE, POOL_MIN_IDLE, POOL_MAX_IDLE_MILLIS,
+                    POOL_BORROW_TIMEOUT_MILLIS, POOL_VALIDATE_AFTER_MILLIS, POOL_STATEMENT_CACHE_SIZE);
+            pool.warmUp();
+            if (REPLICA_URL != null && !REPLICA_URL.isEmpty()) {
+                replicaPool = new ConnectionPool(REPLICA_URL, REPLICA_USER, REPLICA_PASSWORD,
+                        POOL_MAX_SIZE, POOL_MIN_IDLE, POOL_MAX_IDLE_MILLIS,
+                        POOL_BORROW_TIMEOUT_MILLIS, POOL_VALIDATE_AFTER_MILLIS, POOL_STATEMENT_CACHE_SIZE);
+                replicaPool.warmUp();
+            }
+            router = new ReadRouter(pool, replicaPool, READ_YOUR_WRITES_MILLIS);
+            startMetrics();
+            migrateSchema();
+            schema = new SchemaCapabilities(pool);
+            schema.refresh();
+            userService = new UserService(pool, schema);
+            userService.setFallbackAdmin(FALLBACK_ADMIN_USER, FALLBACK_ADMIN_PASSWORD);
+            shards = new StockShards(pool, schema);
+            shards.load();
+            purger = new ItemPurger(pool, schema, PURGE_CHUNK_ROWS, PURGE_ROWS_PER_SECOND, PURGE_IDLE_MILLIS);
+            purger.load();
+            if (LEDGER_ENABLED || CHECKOUT_MODE == OrderService.Mode.JOURNAL) {
+                // Built here rather than inside OrderService so admin edits and imports invalidate it
+                ledger = new StockLedger(pool);
+                ledger.setShards(shards);
+                ledger.loadAll();
+            }
+            catalog = new CatalogCache(router.readSource(), CATALOG_TTL_MILLIS, CATALOG_MAX_ENTRIES);
+            catalog.setShards(shards);
+            catalog.setPurger(purger);
+            sales = new SalesRollup(pool, schema);
+            search = new SearchIndex(router.readSource());
+            search.setPurger(purger);
+            search.load();
+            orderService = new OrderService(pool, CHECKOUT_MODE, ledger, catalog, sales, shards);
+            orderService.setPurger(purger);
+            System.out.println("Connected to database! (pool: " + pool.getIdleCount() + " warm, max " + POOL_MAX_SIZE + ")");
+            if (replicaPool != null) {
+                System.out.println("Browse/report queries go to replica " + REPLICA_URL);
+            }
+
+            if (args.length > 0 && "--batch".equals(args[0])) {
+                BatchRunner batch = new BatchRunner(pool, userService, orderService, ledger, catalog, search, shards,
+                        purger, BATCH_SIZE);
+                try (BufferedReader in = args.length > 1
+                        ? Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)
+                        : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+                    batch.run(in, System.out);
+                }
+            } else if (args.length > 0 && "--server".equals(args[0])) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVER_PORT;
+                try (CartServer server = new CartServer(port)) {
+                    server.serve();
+                }
+            } else {
+                runSession(Session.console());
+            }
+
+        } catch (SQLException e) {
+            System.err.println("Database error:");
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.err.println("I/O error:");
+            e.printStackTrace();
+        } finally {
+            safeCloseConnection();
+        }
+    }
 
-            while (true) {
-                if (loggedInUserId == -1 && !isAdmin) {
-                    System.out.println("\n==== Welcome ====");
-                    System.out.println("1. User Login");
-                    System.out.println("2. Admin Login");
-                    System.out.println("3. Exit");
-                    System.out.print("Choose an option: ");
-                    int choice = readInt();
+    /**
+     * Drives one session (console or remote client) through the welcome/user/admin menus
+     * until it exits or the client disconnects.
+     */
+    static void runSession(Session s) {
+        try {
+            while (s.isOpen()) {
+                if (!s.isUser() && !s.admin) {
+                    s.out.println("\n==== Welcome ====");
+                    s.out.println("1. User Login");
+                    s.out.println("2. Admin Login");
+                    s.out.println("3. Exit");
+                    s.out.print("Choose an option: ");
+                    int choice = readInt(s);
 
                     switch (choice) {
                         case 1:
-                            loginUser();
+                            loginUser(s);
                             break;
                         case 2:
-                            loginAdmin();
+                            loginAdmin(s);
                             break;
                         case 3:
-                            closeAndExit();
+                            closeAndExit(s);
                             break;
                         default:
-                            System.out.println("Invalid choice.");
+                            s.out.println("Invalid choice.");
                     }
-                } else if (isAdmin) {
-                    adminMenu();
+                } else if (s.admin) {
+                    adminMenu(s);
                 } else {
-                    userMenu();
+                    userMenu(s);
                 }
             }
-
-        } catch (SQLException e) {
-            System.err.println("Database error:");
-            e.printStackTrace();
-        } finally {
-            safeCloseConnection();
+        } catch (NoSuchElementException e) {
+            // Input stream ended (client disconnected or stdin closed)
+            s.close();
         }
     }
 
     // ========== Utility input helpers ==========
-    private static int readInt() {
+    private static int readInt(Session s) {
+        s.out.flush();
         while (true) {
             try {
-                String line = scanner.nextLine().trim();
+                String line = s.in.nextLine().trim();
                 return Integer.parseInt(line);
             } catch (NumberFormatException ex) {
-                System.out.print("Please enter a valid integer: ");
+                s.out.print("Please enter a valid integer: ");
             }
         }
     }
 
-    private static String readLine() {
-        return scanner.nextLine().trim();
+    private static String readLine(Session s) {
+        s.out.flush();
+        return s.in.nextLine().trim();
     }
 
     // ========== Login flows ==========
-    private static void loginUser() {
-        System.out.print("Enter username: ");
-        String username = readLine();
-        System.out.print("Enter password: ");
-        String password = readLine();
-
-        String sql = "SELECT id FROM users WHERE username = ? AND password = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            stmt.setString(2, password);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    loggedInUserId = rs.getInt("id");
-                    isAdmin = false;
-                    loggedInUsername = username;
-                    System.out.println("Login successful. Welcome, " + username + "!");
-                } else {
-                    System.out.println("Invalid username or password.");
-                }
+    private static void loginUser(Session s) {
+        s.out.print("Enter username: ");
+        String username = readLine(s);
+        s.out.print("Enter password: ");
+        String password = readLine(s);
+
+        try {
+            int userId = userService.authenticate(username, password);
+            if (userId != -1) {
+                s.userId = userId;
+                s.admin = false;
+                s.username = username;
+                s.out.println("Login successful. Welcome, " + username + "!");
+            } else {
+                s.out.println("Invalid username or password.");
             }
         } catch (SQLException e) {
-            System.err.println("Error during user login:");
+            s.err.println("Error during user login:");
             e.printStackTrace();
         }
     }
@@ -134,476 +284,1121 @@ public class ShopingCartApp {
      * - If users table has a 'role' column, check role='admin' in DB.
      * - If 'role' column doesn't exist, try DB username/password only (but do NOT elevate to admin).
      * - If DB checks fail, fallback to hardcoded admin credentials (FALLBACK_ADMIN_*).
+     * Whether 'role' exists comes from SchemaCapabilities (read once at startup), so this is a
+     * single lookup on the unique username index.
      */
-    private static void loginAdmin() {
-        System.out.print("Enter admin username: ");
-        String username = readLine();
-        System.out.print("Enter admin password: ");
-        String password = readLine();
+    private static void loginAdmin(Session s) {
+        s.out.print("Enter admin username: ");
+        String username = readLine(s);
+        s.out.print("Enter admin password: ");
+        String password = readLine(s);
 
         boolean dbTried = false;
 
         try {
-            // check whether 'role' column exists in users table (case-insensitive typical)
-            DatabaseMetaData meta = conn.getMetaData();
-            boolean roleExists = false;
-            try (ResultSet cols = meta.getColumns(null, null, "users", "role")) {
-                if (cols.next()) {
-                    roleExists = true;
-                } else {
-                    // Some DBs/catalogs use uppercase/lowercase - try a case-insensitive search
-                    try (ResultSet cols2 = meta.getColumns(null, null, "users", null)) {
-                        while (cols2.next()) {
-                            String colName = cols2.getString("COLUMN_NAME");
-                            if ("role".equalsIgnoreCase(colName)) {
-                                roleExists = true;
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (roleExists) {
-                // 'role' column exists -> require role='admin'
-                String sql = "SELECT id FROM users WHERE username = ? AND password = ? AND role = 'admin'";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, username);
-                    stmt.setString(2, password);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        if (rs.next()) {
-                            isAdmin = true;
-                            loggedInUserId = -1;
-                            loggedInUsername = username;
-                            System.out.println("Admin login successful (DB role).");
-                            return;
-                        } else {
-                            dbTried = true;
-                        }
-                    }
-                }
-            } else {
-                // No 'role' column -> attempt username/password check only, but do NOT auto-elevate to admin
-                String sql = "SELECT id FROM users WHERE username = ? AND password = ?";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, username);
-                    stmt.setString(2, password);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        if (rs.next()) {
-                            // Found a DB user, but since there's no 'role' column we cannot confirm admin role.
-                            dbTried = true;
-                        }
-                    }
-                }
+            UserService.AdminCheck check = userService.checkAdmin(username, password);
+            if (check == UserService.AdminCheck.ADMIN) {
+                s.admin = true;
+                s.userId = -1;
+                s.username = username;
+                s.out.println("Admin login successful (DB role).");
+                return;
             }
+            // Found a DB user, but either not an admin or (no 'role' column) we cannot confirm admin role.
+            dbTried = check == UserService.AdminCheck.NOT_ADMIN;
         } catch (SQLException e) {
             // If any DB error occurs, don't crash: we'll fallback to hardcoded admin
-            System.err.println("DB admin-check error (proceeding to fallback): " + e.getMessage());
+            s.err.println("DB admin-check error (proceeding to fallback): " + e.getMessage());
         }
 
         // If DB check didn't succeed in granting admin, try fallback hardcoded credentials
-        if (FALLBACK_ADMIN_USER.equals(username) && FALLBACK_ADMIN_PASSWORD.equals(password)) {
-            isAdmin = true;
-            loggedInUserId = -1;
-            loggedInUsername = username;
-            System.out.println("Admin login successful (fallback credentials).");
+        if (userService.isFallbackAdmin(username, password)) {
+            s.admin = true;
+            s.userId = -1;
+            s.username = username;
+            s.out.println("Admin login successful (fallback credentials).");
         } else {
             // If dbTried true it means credentials matched a user without role; do not grant admin.
             if (dbTried) {
-                System.out.println("User authenticated in DB but does not have admin role. Admin login failed.");
+                s.out.println("User authenticated in DB but does not have admin role. Admin login failed.");
             } else {
-                System.out.println("Invalid admin credentials.");
+                s.out.println("Invalid admin credentials.");
             }
         }
     }
 
-    private static void closeAndExit() {
+    private static void closeAndExit(Session s) {
+        s.out.println("Goodbye!");
+        if (s.remote) {
+            // Only this client leaves; the server and its pool keep running
+            s.close();
+            return;
+        }
         safeCloseConnection();
-        System.out.println("Goodbye!");
         System.exit(0);
     }
 
     private static void safeCloseConnection() {
-        if (conn != null) {
-            try {
-                conn.close();
-            } catch (SQLException ignore) {
+        if (purger != null) {
+            purger.close();
+        }
+        if (orderService != null) {
+            orderService.close();
+        }
+        if (replicaPool != null) {
+            replicaPool.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        Metrics.stop();
+    }
+
+    /**
+     * Brings the schema up to date and checks that the hot queries can still use their indexes.
+     */
+    private static void migrateSchema() throws SQLException {
+        SchemaMigrations migrations = new SchemaMigrations(pool);
+        if (MIGRATE) {
+            for (String line : migrations.migrate()) {
+                System.out.println("Schema migration " + line);
+            }
+        } else {
+            List<String> pending = migrations.pending();
+            if (!pending.isEmpty()) {
+                System.err.println("Pending schema migrations (cart.migrate=false): " + pending);
             }
         }
+        if ("off".equals(PLAN_CHECK)) {
+            return;
+        }
+        List<String> failures = checkQueryPlans();
+        for (String failure : failures) {
+            System.err.println("Query plan check failed: " + failure);
+        }
+        if (!failures.isEmpty() && "fail".equals(PLAN_CHECK)) {
+            throw new SQLException(failures.size() + " hot queries lost their index (cart.planCheck=fail)");
+        }
+    }
+
+    private static List<String> checkQueryPlans() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            return QueryPlanCheck.run(conn);
+        }
+    }
+
+    private static void startMetrics() {
+        Metrics.gauge("cart_pool_active_connections", pool::getActiveCount);
+        Metrics.gauge("cart_pool_idle_connections", pool::getIdleCount);
+        Metrics.gauge("cart_pool_total_connections", pool::getTotalCount);
+        Metrics.gauge("cart_pool_borrow_timeouts", pool::getTimeoutCount);
+        Metrics.gauge("cart_pool_statement_cache_hits", pool::getStatementCacheHits);
+        Metrics.gauge("cart_pool_statement_cache_misses", pool::getStatementCacheMisses);
+        Metrics.registerMBean();
+        Metrics.startDump(Paths.get(METRICS_FILE), METRICS_DUMP_MILLIS);
     }
 
     // ========== User menu & actions ==========
-    private static void userMenu() {
-        System.out.println("\n==== User Menu ====");
-        System.out.println("1. View Items");
-        System.out.println("2. Place Order");
-        System.out.println("3. View My Cart");
-        System.out.println("4. Logout");
-        System.out.println("5. Exit");
-        System.out.print("Choose an option: ");
-        int choice = readInt();
+    private static void userMenu(Session s) {
+        s.out.println("\n==== User Menu ====");
+        s.out.println("1. View Items");
+        s.out.println("2. Place Order");
+        s.out.println("3. Add to Cart");
+        s.out.println("4. View Cart");
+        s.out.println("5. Remove from Cart");
+        s.out.println("6. Checkout Cart");
+        s.out.println("7. View My Orders");
+        s.out.println("8. Search Items");
+        s.out.println("9. Logout");
+        s.out.println("10. Exit");
+        s.out.print("Choose an option: ");
+        int choice = readInt(s);
 
         switch (choice) {
             case 1:
-                viewItems();
+                viewItems(s);
                 break;
             case 2:
-                placeOrder();
+                placeOrder(s);
                 break;
             case 3:
-                viewCart();
+                addToCart(s);
                 break;
             case 4:
-                loggedInUserId = -1;
-                loggedInUsername = null;
-                System.out.println("Logged out.");
+                viewCartContents(s);
                 break;
             case 5:
-                closeAndExit();
+                removeFromCart(s);
+                break;
+            case 6:
+                checkoutCart(s);
+                break;
+            case 7:
+                viewCart(s);
+                break;
+            case 8:
+                searchItems(s);
+                break;
+            case 9:
+                s.logout();
+                s.out.println("Logged out.");
+                break;
+            case 10:
+                closeAndExit(s);
                 break;
             default:
-                System.out.println("Invalid choice.");
+                s.out.println("Invalid choice.");
         }
     }
 
-    private static void viewItems() {
-        String sql = "SELECT * FROM items";
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            System.out.printf("%-5s %-30s %-10s %-7s\n", "ID", "Name", "Price", "Stock");
-            System.out.println("-------------------------------------------------------------------");
-            while (rs.next()) {
-                System.out.printf("%-5d %-30s %-10.2f %-7d\n",
-                        rs.getInt("id"),
-                        rs.getString("name"),
-                        rs.getDouble("price"),
-                        rs.getInt("stock"));
+    /**
+     * Matches come from SearchIndex; price and stock from the catalog snapshot, or the
+     * table for items the snapshot does not hold.
+     */
+    private static void searchItems(Session s) {
+        s.out.print("Search for: ");
+        String query = readLine(s);
+        List<SearchIndex.Hit> hits = search.search(query, SEARCH_RESULTS);
+        if (hits.isEmpty()) {
+            s.out.println("No matching items.");
+            return;
+        }
+        try {
+            CatalogCache.Snapshot snap = router.needsPrimary(s) && router.hasReplica() ? null : catalog.get();
+            s.out.printf("%-5s %-30s %-10s %-7s\n", "ID", "Name", "Price", "Stock");
+            s.out.println("-------------------------------------------------------------------");
+            for (SearchIndex.Hit hit : hits) {
+                if (purger.isDeleted(hit.id)) {
+                    // The index may still hold an item soft-deleted since its last load
+                    continue;
+                }
+                int i = snap != null ? snap.indexOf(hit.id) : -1;
+                if (i >= 0) {
+                    s.out.printf("%-5d %-30s %-10s %-7d\n",
+                            hit.id, snap.name(i), Money.format(snap.priceCents(i)), snap.stock(i));
+                    continue;
+                }
+                try (Connection conn = router.read(s);
+                     PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_LOOKUP.text)) {
+                    stmt.setInt(1, hit.id);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            s.out.printf("%-5d %-30s %-10s %-7d\n",
+                                    hit.id, rs.getString("name"),
+                                    Money.format(Money.get(rs, "price")),
+                                    rs.getInt("stock") + shards.total(conn, hit.id));
+                        }
+                    }
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error fetching items:");
+            s.err.println("Error fetching items:");
             e.printStackTrace();
         }
     }
 
     /**
-     * placeOrder uses transaction support to ensure:
-     *  - order INSERT
-     *  - items stock UPDATE
-     * happen atomically.
+     * Served from CatalogCache; only reads the table directly when the catalog
+     * is too large to cache.
      */
-    private static void placeOrder() {
-        if (loggedInUserId == -1) {
-            System.out.println("You must be logged in as a user to place orders.");
-            return;
-        }
-
-        System.out.print("Enter item ID to buy: ");
-        int itemId = readInt();
-        System.out.print("Enter quantity: ");
-        int quantity = readInt();
-
+    private static void viewItems(Session s) {
         try {
-            // Begin transaction
-            conn.setAutoCommit(false);
-
-            // 1) Check stock FOR UPDATE (locks row)
-            String checkSql = "SELECT stock FROM items WHERE id = ? FOR UPDATE";
-            try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                checkStmt.setInt(1, itemId);
-                try (ResultSet rs = checkStmt.executeQuery()) {
-                    if (rs.next()) {
-                        int stock = rs.getInt("stock");
-                        if (stock < quantity) {
-                            System.out.println("Not enough stock available.");
-                            conn.rollback();
-                            conn.setAutoCommit(true);
-                            return;
+            // The shared catalog may have been reloaded from a lagging replica
+            CatalogCache.Snapshot snap = router.needsPrimary(s) && router.hasReplica() ? null : catalog.get();
+            s.out.printf("%-5s %-30s %-10s %-7s\n", "ID", "Name", "Price", "Stock");
+            s.out.println("-------------------------------------------------------------------");
+            if (snap != null) {
+                for (int i = 0; i < snap.size(); i++) {
+                    s.out.printf("%-5d %-30s %-10s %-7d\n",
+                            snap.id(i),
+                            snap.name(i),
+                            Money.format(snap.priceCents(i)),
+                            snap.stock(i));
+                }
+                return;
+            }
+            try (Connection conn = router.read(s)) {
+                Map<Integer, Integer> sharded = shards.totals(conn);
+                try (PreparedStatement stmt = conn.prepareStatement(Sql.CATALOG_LOAD.text);
+                     ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (purger.isDeleted(rs.getInt("id"))) {
+                            continue;
                         }
-                    } else {
-                        System.out.println("Item not found.");
-                        conn.rollback();
-                        conn.setAutoCommit(true);
-                        return;
+                        s.out.printf("%-5d %-30s %-10s %-7d\n",
+                                rs.getInt("id"),
+                                rs.getString("name"),
+                                Money.format(Money.get(rs, "price")),
+                                rs.getInt("stock") + sharded.getOrDefault(rs.getInt("id"), 0));
                     }
                 }
             }
+        } catch (SQLException e) {
+            s.err.println("Error fetching items:");
+            e.printStackTrace();
+        }
+    }
 
-            // 2) Insert order
-            String orderSql = "INSERT INTO orders (user_id, item_id, quantity) VALUES (?, ?, ?)";
-            try (PreparedStatement orderStmt = conn.prepareStatement(orderSql, Statement.RETURN_GENERATED_KEYS)) {
-                orderStmt.setInt(1, loggedInUserId);
-                orderStmt.setInt(2, itemId);
-                orderStmt.setInt(3, quantity);
-                orderStmt.executeUpdate();
-            }
-
-            // 3) Update stock
-            String updateSql = "UPDATE items SET stock = stock - ? WHERE id = ?";
-            try (PreparedStatement updateStmt = conn.prepareStatement(updateSql)) {
-                updateStmt.setInt(1, quantity);
-                updateStmt.setInt(2, itemId);
-                updateStmt.executeUpdate();
-            }
+    /**
+     * placeOrder delegates to OrderService, which runs the order INSERT and the
+     * stock UPDATE in one transaction (LOCKING, OPTIMISTIC or GROUP_COMMIT, see CHECKOUT_MODE)
+     * and retries deadlocks/lock-wait timeouts itself.
+     */
+    private static void placeOrder(Session s) {
+        if (!s.isUser()) {
+            s.out.println("You must be logged in as a user to place orders.");
+            return;
+        }
 
-            // Commit transaction
-            conn.commit();
-            conn.setAutoCommit(true);
-            System.out.println("Order placed successfully!");
+        s.out.print("Enter item ID to buy: ");
+        int itemId = readInt(s);
+        s.out.print("Enter quantity: ");
+        int quantity = readInt(s);
+        if (quantity <= 0) {
+            s.out.println("Quantity must be positive.");
+            return;
+        }
 
+        try {
+            switch (orderService.placeOrder(s.userId, itemId, quantity)) {
+                case OK:
+                    s.markWrite();
+                    s.out.println("Order placed successfully!");
+                    break;
+                case OUT_OF_STOCK:
+                    s.out.println("Not enough stock available.");
+                    break;
+                case NOT_FOUND:
+                    s.out.println("Item not found.");
+                    break;
+            }
         } catch (SQLException e) {
-            System.err.println("Error placing order, rolling back:");
+            s.err.println("Error placing order, rolled back:");
             e.printStackTrace();
-            try {
-                conn.rollback();
-                conn.setAutoCommit(true);
-            } catch (SQLException ex) {
-                System.err.println("Rollback failed:");
-                ex.printStackTrace();
-            }
         }
     }
 
-    private static void viewCart() {
-        if (loggedInUserId == -1) {
-            System.out.println("You must be logged in as a user to view your cart.");
+    // ========== Cart (basket) actions ==========
+    private static void addToCart(Session s) {
+        s.out.print("Enter item ID to add: ");
+        int itemId = readInt(s);
+        s.out.print("Enter quantity: ");
+        int quantity = readInt(s);
+        if (quantity <= 0) {
+            s.out.println("Quantity must be positive.");
+            return;
+        }
+        if (!s.cart.add(itemId, quantity)) {
+            s.out.println("Quantity too large.");
             return;
         }
+        s.out.println("Added to cart (" + s.cart.size() + " line(s)).");
+    }
 
-        String sql = "SELECT items.name, items.price, orders.quantity, orders.order_date " +
-                "FROM orders JOIN items ON orders.item_id = items.id " +
-                "WHERE orders.user_id = ? ORDER BY orders.order_date DESC";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, loggedInUserId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                System.out.printf("%-30s %-10s %-10s %-20s\n", "Item", "Price", "Quantity", "Date");
-                System.out.println("--------------------------------------------------------------------------");
-                while (rs.next()) {
-                    Timestamp ts = rs.getTimestamp("order_date");
-                    String dateStr = ts != null ? ts.toString() : "N/A";
-                    System.out.printf("%-30s %-10.2f %-10d %-20s\n",
-                            rs.getString("name"),
-                            rs.getDouble("price"),
-                            rs.getInt("quantity"),
-                            dateStr);
+    private static void viewCartContents(Session s) {
+        if (s.cart.isEmpty()) {
+            s.out.println("Your cart is empty.");
+            return;
+        }
+        try {
+            CatalogCache.Snapshot snap = catalog.get();
+            long totalCents = 0;
+            s.out.printf("%-5s %-30s %-10s %-10s %-10s\n", "ID", "Item", "Price", "Quantity", "Subtotal");
+            s.out.println("--------------------------------------------------------------------------");
+            for (Map.Entry<Integer, Integer> line : s.cart.lines().entrySet()) {
+                int i = snap != null ? snap.indexOf(line.getKey()) : -1;
+                if (i < 0) {
+                    s.out.printf("%-5d %-30s %-10s %-10d %-10s\n", line.getKey(), "(unknown item)", "-", line.getValue(), "-");
+                    continue;
                 }
+                long subtotal = Money.times(snap.priceCents(i), line.getValue());
+                totalCents += subtotal;
+                s.out.printf("%-5d %-30s %-10s %-10d %-10s\n", line.getKey(), snap.name(i),
+                        Money.format(snap.priceCents(i)), line.getValue(), Money.format(subtotal));
+            }
+            s.out.println("Total: " + Money.format(totalCents));
+        } catch (SQLException e) {
+            s.err.println("Error fetching cart prices:");
+            e.printStackTrace();
+        }
+    }
+
+    private static void removeFromCart(Session s) {
+        s.out.print("Enter item ID to remove: ");
+        int itemId = readInt(s);
+        if (s.cart.remove(itemId)) {
+            s.out.println("Removed from cart.");
+        } else {
+            s.out.println("Item is not in your cart.");
+        }
+    }
+
+    /**
+     * Buys every cart line in one transaction (see OrderService.checkoutCart).
+     */
+    private static void checkoutCart(Session s) {
+        if (s.cart.isEmpty()) {
+            s.out.println("Your cart is empty.");
+            return;
+        }
+        try {
+            OrderService.CartResult result = orderService.checkoutCart(s.userId, s.cart);
+            switch (result.result) {
+                case OK:
+                    s.markWrite();
+                    s.out.println("Checkout successful! All items ordered.");
+                    break;
+                case OUT_OF_STOCK:
+                    s.out.println("Not enough stock available for item " + result.itemId + ". Nothing was ordered.");
+                    break;
+                case NOT_FOUND:
+                    s.out.println("Item " + result.itemId + " not found. Nothing was ordered.");
+                    break;
             }
         } catch (SQLException e) {
-            System.err.println("Error viewing cart:");
+            s.err.println("Error during checkout, rolled back:");
             e.printStackTrace();
         }
     }
 
+    private static void viewCart(Session s) {
+        if (!s.isUser()) {
+            s.out.println("You must be logged in as a user to view your orders.");
+            return;
+        }
+
+        browseOrders(s, s.userId, "Error viewing cart:", () -> {
+            s.out.printf("%-30s %-10s %-10s %-20s\n", "Item", "Price", "Quantity", "Date");
+            s.out.println("--------------------------------------------------------------------------");
+        }, rs -> {
+            Timestamp ts = rs.getTimestamp("order_date");
+            String dateStr = ts != null ? ts.toString() : "N/A";
+            s.out.printf("%-30s %-10s %-10d %-20s\n",
+                    rs.getString("name"),
+                    Money.format(Money.get(rs, "price")),
+                    rs.getInt("quantity"),
+                    dateStr);
+        });
+    }
+
+    /**
+     * Shared pager for order listings: asks for page size and an optional date range, then
+     * shows one keyset page at a time. A connection is only held while a page is being read,
+     * never while waiting for the user.
+     */
+    private static void browseOrders(Session s, int userId, String errorMessage,
+                                     Runnable header, OrderHistory.RowHandler row) {
+        s.out.print("Page size (blank for " + DEFAULT_PAGE_SIZE + "): ");
+        String sizeStr = readLine(s);
+        s.out.print("From date YYYY-MM-DD (blank for none): ");
+        String fromStr = readLine(s);
+        s.out.print("To date YYYY-MM-DD, inclusive (blank for none): ");
+        String toStr = readLine(s);
+
+        int pageSize;
+        Timestamp from;
+        Timestamp to;
+        try {
+            pageSize = sizeStr.isEmpty() ? DEFAULT_PAGE_SIZE : Integer.parseInt(sizeStr);
+            from = fromStr.isEmpty() ? null : Timestamp.valueOf(LocalDate.parse(fromStr).atStartOfDay());
+            to = toStr.isEmpty() ? null : Timestamp.valueOf(LocalDate.parse(toStr).plusDays(1).atStartOfDay());
+        } catch (NumberFormatException | DateTimeParseException e) {
+            s.out.println("Invalid page size or date.");
+            return;
+        }
+        if (pageSize <= 0) {
+            s.out.println("Page size must be positive.");
+            return;
+        }
+
+        OrderHistory.Cursor cursor = OrderHistory.Cursor.FIRST;
+        int page = 1;
+        while (true) {
+            s.out.println("-- Page " + page + " --");
+            header.run();
+            try (Connection conn = router.read(s)) {
+                cursor = OrderHistory.page(conn, userId, from, to, cursor, pageSize, row);
+            } catch (SQLException e) {
+                s.err.println(errorMessage);
+                e.printStackTrace();
+                return;
+            }
+            if (cursor == null) {
+                s.out.println("(end of orders)");
+                return;
+            }
+            s.out.print("Press Enter for next page, or q to stop: ");
+            if (readLine(s).equalsIgnoreCase("q")) {
+                return;
+            }
+            page++;
+        }
+    }
+
     // ========== Admin menu & actions ==========
-    private static void adminMenu() {
-        System.out.println("\n==== Admin Menu ====");
-        System.out.println("1. View Items");
-        System.out.println("2. Add Item");
-        System.out.println("3. Update Item");
-        System.out.println("4. Delete Item");
-        System.out.println("5. View All Orders");
-        System.out.println("6. View Users");
-        System.out.println("7. Logout");
-        System.out.println("8. Exit");
-        System.out.print("Choose an option: ");
-        int choice = readInt();
+    private static void adminMenu(Session s) {
+        s.out.println("\n==== Admin Menu ====");
+        s.out.println("1. View Items");
+        s.out.println("2. Add Item");
+        s.out.println("3. Update Item");
+        s.out.println("4. Delete Item");
+        s.out.println("5. View All Orders");
+        s.out.println("6. View Users");
+        s.out.println("7. View Connection Pool Stats");
+        s.out.println("8. Reload Schema Capabilities");
+        s.out.println("9. Sales Reports");
+        s.out.println("10. Import Items from CSV");
+        s.out.println("11. Export Orders/Catalog");
+        s.out.println("12. Hot Item Stock Shards");
+        s.out.println("13. Item Purge Progress");
+        s.out.println("14. Logout");
+        s.out.println("15. Exit");
+        s.out.print("Choose an option: ");
+        int choice = readInt(s);
 
         switch (choice) {
             case 1:
-                viewItems();
+                viewItems(s);
                 break;
             case 2:
-                addItem();
+                addItem(s);
                 break;
             case 3:
-                updateItem();
+                updateItem(s);
                 break;
             case 4:
-                deleteItem();
+                deleteItem(s);
                 break;
             case 5:
-                viewAllOrders();
+                viewAllOrders(s);
                 break;
             case 6:
-                viewUsers();
+                viewUsers(s);
                 break;
             case 7:
-                isAdmin = false;
-                loggedInUsername = null;
-                System.out.println("Admin logged out.");
+                viewPoolStats(s);
                 break;
             case 8:
-                closeAndExit();
+                reloadSchema(s);
+                break;
+            case 9:
+                salesReports(s);
+                break;
+            case 10:
+                importItems(s);
+                break;
+            case 11:
+                exportData(s);
+                break;
+            case 12:
+                hotItems(s);
+                break;
+            case 13:
+                purgeProgress(s);
+                break;
+            case 14:
+                s.logout();
+                s.out.println("Admin logged out.");
+                break;
+            case 15:
+                closeAndExit(s);
                 break;
             default:
-                System.out.println("Invalid choice.");
+                s.out.println("Invalid choice.");
         }
     }
 
-    private static void addItem() {
-        System.out.print("Enter item name: ");
-        String name = readLine();
-        System.out.print("Enter price: ");
-        double price;
+    private static void addItem(Session s) {
+        s.out.print("Enter item name: ");
+        String name = readLine(s);
+        s.out.print("Enter price: ");
+        long price;
         try {
-            price = Double.parseDouble(readLine());
+            price = Money.parse(readLine(s));
         } catch (NumberFormatException e) {
-            System.out.println("Invalid price.");
+            s.out.println("Invalid price.");
             return;
         }
-        System.out.print("Enter stock quantity: ");
-        int stock = readInt();
+        if (!Money.isValidPrice(price)) {
+            s.out.println("Price out of range.");
+            return;
+        }
+        s.out.print("Enter stock quantity: ");
+        int stock = readInt(s);
 
-        String sql = "INSERT INTO items (name, price, stock) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_INSERT.text, Statement.RETURN_GENERATED_KEYS)) {
             stmt.setString(1, name);
-            stmt.setDouble(2, price);
+            Money.set(stmt, 2, price);
             stmt.setInt(3, stock);
             int rows = stmt.executeUpdate();
+            catalog.invalidate();
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                if (keys.next()) {
+                    search.put(keys.getInt(1), name, null);
+                }
+            }
             if (rows > 0) {
-                System.out.println("Item added successfully.");
+                s.markWrite();
+                s.out.println("Item added successfully.");
             } else {
-                System.out.println("Failed to add item.");
+                s.out.println("Failed to add item.");
             }
         } catch (SQLException e) {
-            System.err.println("Error adding item:");
+            s.err.println("Error adding item:");
             e.printStackTrace();
         }
     }
 
-    private static void updateItem() {
-        System.out.print("Enter item ID to update: ");
-        int itemId = readInt();
+    private static void updateItem(Session s) {
+        s.out.print("Enter item ID to update: ");
+        int itemId = readInt(s);
+        if (purger.isDeleted(itemId)) {
+            s.out.println("Item not found.");
+            return;
+        }
 
-        // Check existence
-        String check = "SELECT * FROM items WHERE id = ?";
-        try (PreparedStatement checkStmt = conn.prepareStatement(check)) {
-            checkStmt.setInt(1, itemId);
-            try (ResultSet rs = checkStmt.executeQuery()) {
-                if (!rs.next()) {
-                    System.out.println("Item not found.");
-                    return;
-                } else {
-                    System.out.printf("Current -> Name: %s, Price: %.2f, Stock: %d\n",
-                            rs.getString("name"), rs.getDouble("price"), rs.getInt("stock"));
+        // Check existence (catalog cache first, table only on a miss)
+        try {
+            CatalogCache.Snapshot snap = catalog.get();
+            int i = snap != null ? snap.indexOf(itemId) : -1;
+            if (i >= 0) {
+                s.out.printf("Current -> Name: %s, Price: %s, Stock: %d\n",
+                        snap.name(i), Money.format(snap.priceCents(i)), snap.stock(i));
+            } else {
+                try (Connection conn = pool.getConnection();
+                     PreparedStatement checkStmt = conn.prepareStatement(Sql.ITEM_LOOKUP.text)) {
+                    checkStmt.setInt(1, itemId);
+                    try (ResultSet rs = checkStmt.executeQuery()) {
+                        if (!rs.next()) {
+                            s.out.println("Item not found.");
+                            return;
+                        } else {
+                            s.out.printf("Current -> Name: %s, Price: %s, Stock: %d\n",
+                                    rs.getString("name"), Money.format(Money.get(rs, "price")),
+                                    rs.getInt("stock") + shards.total(conn, itemId));
+                        }
+                    }
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error fetching item:");
+            s.err.println("Error fetching item:");
             e.printStackTrace();
             return;
         }
 
-        System.out.print("Enter new name (leave blank to keep unchanged): ");
-        String name = readLine();
-        System.out.print("Enter new price (or leave blank): ");
-        String priceStr = readLine();
-        System.out.print("Enter new stock (or leave blank): ");
-        String stockStr = readLine();
+        s.out.print("Enter new name (leave blank to keep unchanged): ");
+        String name = readLine(s);
+        s.out.print("Enter new price (or leave blank): ");
+        String priceStr = readLine(s);
+        s.out.print("Enter new stock (or leave blank): ");
+        String stockStr = readLine(s);
 
-        // Build update dynamically
-        StringBuilder sb = new StringBuilder("UPDATE items SET ");
-        boolean first = true;
-        if (!name.isEmpty()) {
-            sb.append("name = ?");
-            first = false;
-        }
-        if (!priceStr.isEmpty()) {
-            if (!first) sb.append(", ");
-            sb.append("price = ?");
-            first = false;
-        }
-        if (!stockStr.isEmpty()) {
-            if (!first) sb.append(", ");
-            sb.append("stock = ?");
+        if (name.isEmpty() && priceStr.isEmpty() && stockStr.isEmpty()) {
+            s.out.println("No changes provided.");
+            return;
         }
-        sb.append(" WHERE id = ?");
 
-        // If only WHERE clause (no changes), then nothing to do
-        if (sb.toString().trim().equals("UPDATE items SET WHERE id = ?")) {
-            System.out.println("No changes provided.");
-            return;
+        long price = 0;
+        if (!priceStr.isEmpty()) {
+            try {
+                price = Money.parse(priceStr);
+            } catch (NumberFormatException e) {
+                s.out.println("Invalid numeric format for price/stock.");
+                return;
+            }
+            if (!Money.isValidPrice(price)) {
+                s.out.println("Price out of range.");
+                return;
+            }
         }
 
-        try (PreparedStatement updateStmt = conn.prepareStatement(sb.toString())) {
-            int idx = 1;
-            if (!name.isEmpty()) updateStmt.setString(idx++, name);
-            if (!priceStr.isEmpty()) updateStmt.setDouble(idx++, Double.parseDouble(priceStr));
-            if (!stockStr.isEmpty()) updateStmt.setInt(idx++, Integer.parseInt(stockStr));
-            updateStmt.setInt(idx, itemId);
+        // One fixed statement for every combination: NULL keeps the current value
+        try (Connection conn = pool.getConnection();
+             PreparedStatement updateStmt = conn.prepareStatement(Sql.ITEM_UPDATE.text)) {
+            int stock = stockStr.isEmpty() ? 0 : Integer.parseInt(stockStr);
+            // A hot item's stock lives in its shards; the new total is spread over them below
+            boolean sharded = !stockStr.isEmpty() && shards.isHot(itemId);
+            if (!name.isEmpty()) updateStmt.setString(1, name);
+            else updateStmt.setNull(1, Types.VARCHAR);
+            if (!priceStr.isEmpty()) Money.set(updateStmt, 2, price);
+            else updateStmt.setNull(2, Types.DECIMAL);
+            if (!stockStr.isEmpty() && !sharded) updateStmt.setInt(3, stock);
+            else updateStmt.setNull(3, Types.INTEGER);
+            updateStmt.setInt(4, itemId);
             int updated = updateStmt.executeUpdate();
+            if (sharded && updated > 0) {
+                shards.reshard(itemId, shards.shardCount(itemId), stock);
+            }
+            if (!stockStr.isEmpty()) {
+                invalidateStock(itemId);
+            }
+            if (!name.isEmpty() && updated > 0) {
+                search.rename(itemId, name);
+            }
+            if (!name.isEmpty() || !priceStr.isEmpty()) {
+                catalog.invalidate();
+            } else if (updated > 0) {
+                catalog.setStock(itemId, stock);
+            }
             if (updated > 0) {
-                System.out.println("Item updated.");
+                s.markWrite();
+                s.out.println("Item updated.");
             } else {
-                System.out.println("Update failed or no changes were made.");
+                s.out.println("Update failed or no changes were made.");
             }
         } catch (SQLException e) {
-            System.err.println("Error updating item:");
+            s.err.println("Error updating item:");
             e.printStackTrace();
         } catch (NumberFormatException e) {
-            System.out.println("Invalid numeric format for price/stock.");
+            s.out.println("Invalid numeric format for price/stock.");
         }
     }
 
-    private static void deleteItem() {
-        System.out.print("Enter item ID to delete: ");
-        int itemId = readInt();
-        String sql = "DELETE FROM items WHERE id = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, itemId);
-            int rows = stmt.executeUpdate();
-            if (rows > 0) {
-                System.out.println("Item deleted.");
+    /**
+     * A soft delete once ItemPurger is enabled: the item is hidden and stops selling at once, and
+     * its orders are archived and purged in the background. Otherwise a plain DELETE, which
+     * cascades to all of the item's orders in one transaction.
+     */
+    private static void deleteItem(Session s) {
+        s.out.print("Enter item ID to delete: ");
+        int itemId = readInt(s);
+        try {
+            boolean soft = purger.isEnabled();
+            boolean found;
+            if (soft) {
+                found = purger.delete(itemId);
+            } else {
+                try (Connection conn = pool.getConnection();
+                     PreparedStatement stmt = conn.prepareStatement(Sql.ITEM_DELETE.text)) {
+                    stmt.setInt(1, itemId);
+                    found = stmt.executeUpdate() > 0;
+                }
+            }
+            invalidateStock(itemId);
+            catalog.invalidate();
+            search.remove(itemId);
+            shards.forget(itemId);
+            if (found) {
+                s.markWrite();
+                s.out.println(soft
+                        ? "Item deleted. Its orders are archived in the background (see Item Purge Progress)."
+                        : "Item deleted.");
             } else {
-                System.out.println("Item not found or could not be deleted.");
+                s.out.println("Item not found or could not be deleted.");
             }
         } catch (SQLException e) {
-            System.err.println("Error deleting item:");
+            s.err.println("Error deleting item:");
             e.printStackTrace();
         }
     }
 
-    private static void viewAllOrders() {
-        String sql = "SELECT orders.id, users.username, items.name, orders.quantity, orders.order_date " +
-                "FROM orders " +
-                "JOIN users ON orders.user_id = users.id " +
-                "JOIN items ON orders.item_id = items.id " +
-                "ORDER BY orders.order_date DESC";
-        try (PreparedStatement stmt = conn.prepareStatement(sql);
-             ResultSet rs = stmt.executeQuery()) {
-            System.out.printf("%-5s %-20s %-30s %-10s %-20s\n", "ID", "User", "Item", "Quantity", "Date");
-            System.out.println("----------------------------------------------------------------------------------------");
-            while (rs.next()) {
-                Timestamp ts = rs.getTimestamp("order_date");
-                String dateStr = ts != null ? ts.toString() : "N/A";
-                System.out.printf("%-5d %-20s %-30s %-10d %-20s\n",
-                        rs.getInt("id"),
-                        rs.getString("username"),
-                        rs.getString("name"),
-                        rs.getInt("quantity"),
-                        dateStr);
+    /**
+     * Streams a supplier CSV (sku,name,description,price,stock) into items, upserting on sku.
+     * A failed import resumes from its last committed chunk when started again on the same file.
+     */
+    private static void importItems(Session s) {
+        if (!schema.hasColumn("items", "sku")) {
+            s.out.println("items.sku does not exist; add it first (see README).");
+            return;
+        }
+        s.out.print("CSV file path: ");
+        String path = readLine(s);
+        if (path.isEmpty()) {
+            s.out.println("No file given.");
+            return;
+        }
+        CatalogImport.Result result;
+        try {
+            CatalogImport catalogImport = new CatalogImport(pool, shards, IMPORT_BATCH_SIZE, IMPORT_CHUNK_ROWS);
+            catalogImport.setPurger(purger);
+            result = catalogImport.run(Paths.get(path));
+        } catch (IOException e) {
+            s.err.println("Error reading " + path + ": " + e.getMessage());
+            return;
+        } catch (SQLException e) {
+            s.err.println("Import stopped; run it again on the same file to resume from the last committed chunk:");
+            e.printStackTrace();
+            return;
+        } finally {
+            // Whatever was committed is visible now
+            catalog.invalidate();
+            if (ledger != null) {
+                ledger.invalidateAll();
+            }
+            try {
+                search.load();
+            } catch (SQLException e) {
+                s.err.println("Error rebuilding the search index:");
+                e.printStackTrace();
+            }
+        }
+        s.markWrite();
+        if (result.resumedAfter > 0) {
+            s.out.println("Resumed after record " + result.resumedAfter + ".");
+        }
+        s.out.printf("Imported %d item(s) in %.1f s (%.0f rows/s), %d rejected.\n",
+                result.imported, result.elapsedNanos / 1e9, result.rowsPerSecond(), result.rejected);
+        if (result.rejected > 0) {
+            s.out.println("Rejected rows and reasons: " + path + ".rejects");
+        }
+    }
+
+    /**
+     * Streams orders (optionally within a date range) or the catalog to a CSV or JSON Lines file,
+     * gzip-compressed if the path ends in .gz. Reads go through the ReadRouter like other reports.
+     */
+    private static void exportData(Session s) {
+        s.out.println("1. Orders");
+        s.out.println("2. Catalog");
+        s.out.print("Choose an option: ");
+        int choice = readInt(s);
+        if (choice < 1 || choice > 2) {
+            s.out.println("Invalid choice.");
+            return;
+        }
+        s.out.print("Format csv or jsonl (blank for csv): ");
+        String formatStr = readLine(s);
+        DataExport.Format format;
+        try {
+            format = formatStr.isEmpty() ? DataExport.Format.CSV : DataExport.Format.valueOf(formatStr.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            s.out.println("Invalid format.");
+            return;
+        }
+        Timestamp from = null;
+        Timestamp to = null;
+        if (choice == 1) {
+            s.out.print("From date YYYY-MM-DD (blank for none): ");
+            String fromStr = readLine(s);
+            s.out.print("To date YYYY-MM-DD, inclusive (blank for none): ");
+            String toStr = readLine(s);
+            try {
+                from = fromStr.isEmpty() ? null : Timestamp.valueOf(LocalDate.parse(fromStr).atStartOfDay());
+                to = toStr.isEmpty() ? null : Timestamp.valueOf(LocalDate.parse(toStr).plusDays(1).atStartOfDay());
+            } catch (DateTimeParseException e) {
+                s.out.println("Invalid date.");
+                return;
+            }
+        }
+        s.out.print("Output file (add .gz to compress): ");
+        String path = readLine(s);
+        if (path.isEmpty()) {
+            s.out.println("No file given.");
+            return;
+        }
+
+        long start = System.nanoTime();
+        long rows;
+        try (Connection conn = router.read(s)) {
+            rows = choice == 1
+                    ? DataExport.orders(conn, from, to, format, Paths.get(path))
+                    : DataExport.items(conn, schema, format, Paths.get(path));
+        } catch (SQLException e) {
+            s.err.println("Error exporting data:");
+            e.printStackTrace();
+            return;
+        } catch (IOException e) {
+            s.err.println("Error writing " + path + ": " + e.getMessage());
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        s.out.printf("Exported %d row(s) to %s in %.1f s (%.0f rows/s).\n",
+                rows, path, seconds, seconds > 0 ? rows / seconds : 0);
+    }
+
+    /**
+     * Lists sharded items and shards, rebalances or un-shards one. The item's total stock is
+     * unchanged by all three.
+     */
+    private static void hotItems(Session s) {
+        if (!shards.isEnabled()) {
+            s.out.println("Hot-item shards are not set up: create the item_stock_shards table (see README), "
+                    + "then reload schema capabilities.");
+            return;
+        }
+        Map<Integer, Integer> hot = new TreeMap<>(shards.hotItems());
+        if (hot.isEmpty()) {
+            s.out.println("No sharded items.");
+        } else {
+            s.out.printf("%-8s %-8s %-10s %s\n", "Item", "Shards", "Total", "Stock per shard");
+            s.out.println("----------------------------------------------------------------");
+            try (Connection conn = pool.getConnection()) {
+                for (int itemId : hot.keySet()) {
+                    StringBuilder perShard = new StringBuilder();
+                    long total = 0;
+                    for (int[] shard : shards.shards(conn, itemId)) {
+                        perShard.append(shard[1]).append(' ');
+                        total += shard[1];
+                    }
+                    s.out.printf("%-8d %-8d %-10d %s\n", itemId, hot.get(itemId), total, perShard);
+                }
+            } catch (SQLException e) {
+                s.err.println("Error reading stock shards:");
+                e.printStackTrace();
+                return;
             }
+        }
+
+        s.out.println("1. Shard an item (or change its shard count)");
+        s.out.println("2. Rebalance an item");
+        s.out.println("3. Un-shard an item");
+        s.out.println("4. Back");
+        s.out.print("Choose an option: ");
+        int choice = readInt(s);
+        if (choice < 1 || choice > 3) {
+            return;
+        }
+        s.out.print("Enter item ID: ");
+        int itemId = readInt(s);
+        int count;
+        if (choice == 1) {
+            s.out.print("Number of shards (2 or more): ");
+            count = readInt(s);
+            if (count < 2) {
+                s.out.println("Use at least 2 shards (or option 3 to un-shard).");
+                return;
+            }
+        } else if (choice == 2) {
+            count = shards.shardCount(itemId);
+            if (count == 0) {
+                s.out.println("Item " + itemId + " is not sharded.");
+                return;
+            }
+        } else {
+            count = 1;
+        }
+
+        try {
+            int total = shards.reshard(itemId, count, -1);
+            if (total < 0) {
+                s.out.println("Item not found.");
+                return;
+            }
+            invalidateStock(itemId);
+            catalog.invalidate();
+            s.markWrite();
+            s.out.println(count > 1
+                    ? "Item " + itemId + ": " + total + " in stock over " + count + " shards."
+                    : "Item " + itemId + ": " + total + " in stock, no longer sharded.");
         } catch (SQLException e) {
-            System.err.println("Error fetching orders:");
+            s.err.println("Error resharding item:");
             e.printStackTrace();
         }
     }
 
-    private static void viewUsers() {
-        String sql = "SELECT id, username, email, role FROM users";
-        try (PreparedStatement stmt = conn.prepareStatement(sql);
+    /**
+     * Deleted items still waiting for their orders to be archived, with rate and time left for
+     * the one in progress.
+     */
+    private static void purgeProgress(Session s) {
+        if (!purger.isEnabled()) {
+            s.out.println("Soft delete is not set up: items.deleted_at and orders_archive come from the "
+                    + "schema migrations (see README), then reload schema capabilities.");
+            return;
+        }
+        Set<Integer> deleted = purger.deletedIds();
+        if (deleted.isEmpty()) {
+            s.out.println("No deleted items waiting to be purged.");
+            return;
+        }
+        Map<Integer, ItemPurger.Progress> running = new TreeMap<>();
+        for (ItemPurger.Progress p : purger.progress()) {
+            running.put(p.itemId, p);
+        }
+        Map<Integer, ItemPurger.Failure> failed = new TreeMap<>();
+        for (ItemPurger.Failure f : purger.failures()) {
+            failed.put(f.itemId, f);
+        }
+        s.out.printf("%-8s %-12s %-12s %-10s %s\n", "Item", "Archived", "Orders", "Rows/s", "Time left");
+        s.out.println("-------------------------------------------------------------");
+        long now = System.currentTimeMillis();
+        for (int itemId : deleted) {
+            ItemPurger.Progress p = running.get(itemId);
+            if (p == null) {
+                s.out.printf("%-8d %s\n", itemId, "queued");
+            } else {
+                long archived = p.archived;
+                double rate = archived / (Math.max(1, now - p.startedMillis) / 1000.0);
+                long left = Math.max(0, p.total - archived);
+                s.out.printf("%-8d %-12d %-12d %-10.0f %s\n", itemId, archived, p.total, rate,
+                        rate > 0 ? String.format("%.0f s", left / rate) : "-");
+            }
+            ItemPurger.Failure f = failed.get(itemId);
+            if (f != null) {
+                s.out.printf("         FAILED %d time(s), next try in %d s: %s\n", f.attempts,
+                        Math.max(0, f.retryAtMillis - now) / 1000, f.message);
+            }
+        }
+    }
+
+    /**
+     * Keeps the stock ledger from drifting after admin writes to items.stock.
+     */
+    private static void invalidateStock(int itemId) {
+        if (ledger != null) {
+            ledger.invalidate(itemId);
+        }
+    }
+
+    private static void viewAllOrders(Session s) {
+        browseOrders(s, -1, "Error fetching orders:", () -> {
+            s.out.printf("%-5s %-20s %-30s %-10s %-20s\n", "ID", "User", "Item", "Quantity", "Date");
+            s.out.println("----------------------------------------------------------------------------------------");
+        }, rs -> {
+            Timestamp ts = rs.getTimestamp("order_date");
+            String dateStr = ts != null ? ts.toString() : "N/A";
+            s.out.printf("%-5d %-20s %-30s %-10d %-20s\n",
+                    rs.getInt("id"),
+                    rs.getString("username"),
+                    rs.getString("name"),
+                    rs.getInt("quantity"),
+                    dateStr);
+        });
+    }
+
+    private static void viewUsers(Session s) {
+        Sql sql = schema.hasEmail()
+                ? (schema.hasRole() ? Sql.USERS_LIST : Sql.USERS_LIST_NO_ROLE)
+                : (schema.hasRole() ? Sql.USERS_LIST_NO_EMAIL : Sql.USERS_LIST_BASIC);
+        try (Connection conn = router.read(s);
+             PreparedStatement stmt = conn.prepareStatement(sql.text);
              ResultSet rs = stmt.executeQuery()) {
-            System.out.printf("%-5s %-20s %-30s %-10s\n", "ID", "Username", "Email", "Role");
-            System.out.println("--------------------------------------------------------------------------");
+            s.out.printf("%-5s %-20s %-30s %-10s\n", "ID", "Username", "Email", "Role");
+            s.out.println("--------------------------------------------------------------------------");
             while (rs.next()) {
-                System.out.printf("%-5d %-20s %-30s %-10s\n",
+                s.out.printf("%-5d %-20s %-30s %-10s\n",
                         rs.getInt("id"),
                         rs.getString("username"),
                         rs.getString("email") != null ? rs.getString("email") : "",
                         rs.getString("role") != null ? rs.getString("role") : "");
             }
         } catch (SQLException e) {
-            System.err.println("Error fetching users:");
+            s.err.println("Error fetching users:");
+            e.printStackTrace();
+        }
+    }
+
+    private static void viewPoolStats(Session s) {
+        s.out.println("Connection pool: " + pool.stats());
+        if (replicaPool != null) {
+            s.out.println("Replica pool:    " + replicaPool.stats());
+        }
+    }
+
+    /**
+     * Reports come from the sales_daily rollup (kept current by every checkout), never from a
+     * scan of orders, so they cost the same however long the order history is.
+     */
+    private static void salesReports(Session s) {
+        if (!sales.isEnabled()) {
+            s.out.println("Sales rollups are not set up: create the sales_daily table (see README), "
+                    + "then reload schema capabilities and rebuild the rollups.");
+            return;
+        }
+        s.out.println("1. Revenue and units per item");
+        s.out.println("2. Revenue and units per day");
+        s.out.println("3. Top sellers");
+        s.out.println("4. Rebuild rollups from order history");
+        s.out.print("Choose an option: ");
+        int choice = readInt(s);
+        if (choice == 4) {
+            rebuildSalesRollups(s);
+            return;
+        }
+        if (choice < 1 || choice > 3) {
+            s.out.println("Invalid choice.");
+            return;
+        }
+
+        s.out.print("Days to include, ending today (blank for " + DEFAULT_REPORT_DAYS + "): ");
+        String daysStr = readLine(s);
+        int days;
+        try {
+            days = daysStr.isEmpty() ? DEFAULT_REPORT_DAYS : Integer.parseInt(daysStr);
+        } catch (NumberFormatException e) {
+            s.out.println("Invalid number of days.");
+            return;
+        }
+        if (days <= 0) {
+            s.out.println("Number of days must be positive.");
+            return;
+        }
+        LocalDate to = LocalDate.now().plusDays(1);
+        LocalDate from = to.minusDays(days);
+
+        try (Connection conn = router.read(s)) {
+            switch (choice) {
+                case 1:
+                    s.out.printf("%-8s %-30s %-10s %-12s\n", "Item", "Name", "Units", "Revenue");
+                    s.out.println("----------------------------------------------------------------");
+                    SalesRollup.byItem(conn, from, to, rs -> printSalesRow(s, rs));
+                    break;
+                case 2:
+                    s.out.printf("%-12s %-10s %-12s\n", "Day", "Units", "Revenue");
+                    s.out.println("----------------------------------");
+                    SalesRollup.byDay(conn, from, to, rs -> s.out.printf("%-12s %-10d %-12s\n",
+                            rs.getDate("sale_date"),
+                            rs.getLong("units"),
+                            Money.format(Money.get(rs, "revenue"))));
+                    break;
+                default:
+                    s.out.print("How many items (blank for 10): ");
+                    String nStr = readLine(s);
+                    int n = nStr.isEmpty() ? 10 : Integer.parseInt(nStr);
+                    s.out.printf("%-8s %-30s %-10s %-12s\n", "Item", "Name", "Units", "Revenue");
+                    s.out.println("----------------------------------------------------------------");
+                    SalesRollup.top(conn, from, to, Math.max(1, n), rs -> printSalesRow(s, rs));
+                    break;
+            }
+        } catch (SQLException e) {
+            s.err.println("Error reading sales rollups:");
+            e.printStackTrace();
+        } catch (NumberFormatException e) {
+            s.out.println("Invalid number.");
+        }
+    }
+
+    private static void printSalesRow(Session s, ResultSet rs) throws SQLException {
+        String name = rs.getString("name");
+        s.out.printf("%-8d %-30s %-10d %-12s\n",
+                rs.getInt("item_id"),
+                name != null ? name : "(deleted)",
+                rs.getLong("units"),
+                Money.format(Money.get(rs, "revenue")));
+    }
+
+    private static void rebuildSalesRollups(Session s) {
+        s.out.println("Rebuilding sales_daily for every day before today...");
+        try {
+            long start = System.currentTimeMillis();
+            int days = sales.backfill(s.out);
+            s.out.println("Rebuilt " + days + " days in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (SQLException e) {
+            s.err.println("Error rebuilding sales rollups:");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Re-reads table/column metadata, e.g. after adding users.role or users.email, and which
+     * items are sharded or soft-deleted, then re-runs the query plan check.
+     */
+    private static void reloadSchema(Session s) {
+        try {
+            schema.refresh();
+            shards.load();
+            purger.load();
+            catalog.invalidate();
+            s.out.println("Schema capabilities: " + schema.describe());
+            List<String> failures = checkQueryPlans();
+            s.out.println(failures.isEmpty() ? "Query plans OK." : "Query plan check failed:");
+            for (String failure : failures) {
+                s.out.println("  " + failure);
+            }
+        } catch (SQLException e) {
+            s.err.println("Error reading schema metadata:");
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}